@@ -0,0 +1,98 @@
+package com.example.iot;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.RecipientRef;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.japi.function.Function;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Shared plumbing for the IoT benchmarks: an actor system that can spawn from the outside,
+ * blocking asks, and reply sinks that count down a latch.
+ */
+final class BenchmarkSupport {
+	static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+	private BenchmarkSupport() {}
+
+	static ActorSystem<SpawnProtocol.Command> createSystem(String name) {
+		return createSystem(name, ConfigFactory.load());
+	}
+
+	static ActorSystem<SpawnProtocol.Command> createSystem(String name, Config config) {
+		// writes only log sampled DEBUG lines, this keeps setup chatter and a logback.xml turned up to DEBUG out of the results
+		((Logger) LoggerFactory.getLogger("com.example.iot")).setLevel(Level.WARN);
+		return ActorSystem.create(SpawnProtocol.create(), name, config);
+	}
+
+	static void terminate(ActorSystem<?> system) throws Exception {
+		system.terminate();
+		system.getWhenTerminated().toCompletableFuture().get(TIMEOUT.getSeconds(), TimeUnit.SECONDS);
+	}
+
+	static <T> ActorRef<T> spawn(ActorSystem<SpawnProtocol.Command> system, Behavior<T> behavior, String name) {
+		return ask(system, system, replyTo -> new SpawnProtocol.Spawn<>(behavior, name, Props.empty(), replyTo));
+	}
+
+	static <Req, Res> Res ask(ActorSystem<?> system, RecipientRef<Req> target, Function<ActorRef<Res>, Req> message) {
+		return AskPattern.ask(target, message, TIMEOUT, system.scheduler()).toCompletableFuture().join();
+	}
+
+	// reply sink for fire-and-count traffic, so a storm of N requests costs one await instead of N asks
+	static <T> Behavior<T> countDown(CountDownLatch latch) {
+		return Behaviors.receiveMessage(message -> {
+			latch.countDown();
+			return Behaviors.same();
+		});
+	}
+
+	static String[] deviceIds(int devices) {
+		String[] ids = new String[devices];
+		for (int i = 0; i < devices; i++) {
+			ids[i] = "device" + i;
+		}
+		return ids;
+	}
+
+	// registers every device with the group and records one reading on each
+	static void populateGroup(ActorSystem<SpawnProtocol.Command> system, ActorRef<DeviceGroup.Command> group, String groupId, String[] deviceIds)
+			throws InterruptedException {
+		Queue<ActorRef<Device.Command>> devices = new ConcurrentLinkedQueue<>();
+		CountDownLatch registered = new CountDownLatch(deviceIds.length);
+		ActorRef<DeviceManager.DeviceRegistered> registeredSink = spawn(system, Behaviors.receiveMessage(r -> {
+			devices.add(r.device);
+			registered.countDown();
+			return Behaviors.same();
+		}), "registered-sink");
+		for (String deviceId : deviceIds) {
+			group.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId, registeredSink));
+		}
+		registered.await();
+
+		CountDownLatch recorded = new CountDownLatch(deviceIds.length);
+		ActorRef<Device.TemperatureRecorded> recordedSink = spawn(system, countDown(recorded), "recorded-sink");
+		long requestId = 0;
+		for (ActorRef<Device.Command> device : devices) {
+			device.tell(new Device.RecordTemperature(requestId, 20.0 + (requestId % 10), recordedSink));
+			requestId++;
+		}
+		recorded.await();
+	}
+}
@@ -0,0 +1,59 @@
+package com.example.iot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.SpawnProtocol;
+
+/**
+ * Round trips against a single Device actor: throughput plus the latency distribution
+ * (SampleTime reports p50/p90/p99/p99.9). Run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DeviceBenchmark {
+	private ActorSystem<SpawnProtocol.Command> system;
+	private ActorRef<Device.Command> device;
+	private long requestId;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		system = BenchmarkSupport.createSystem("device-benchmark");
+		device = BenchmarkSupport.spawn(system, Device.create("group", "device"), "device");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkSupport.terminate(system);
+	}
+
+	@Benchmark
+	public Device.TemperatureRecorded recordTemperature() {
+		long id = requestId++;
+		return BenchmarkSupport.ask(system, device, replyTo -> new Device.RecordTemperature(id, 21.5, replyTo));
+	}
+
+	@Benchmark
+	public Device.RespondTemperature readTemperature() {
+		long id = requestId++;
+		return BenchmarkSupport.ask(system, device, replyTo -> new Device.ReadTemperature(id, replyTo));
+	}
+}
@@ -0,0 +1,70 @@
+package com.example.iot;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.SpawnProtocol;
+
+/**
+ * Registration storm: time for a fresh DeviceGroup to track every device of the group,
+ * from the first RequestTrackDevice to the last DeviceRegistered.
+ * Each iteration gets its own actor system so spawned devices don't pile up across iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeviceGroupBenchmark {
+	@Param({"10", "1000", "100000"})
+	public int devices;
+
+	private String[] deviceIds;
+	private ActorSystem<SpawnProtocol.Command> system;
+	private ActorRef<DeviceGroup.Command> group;
+	private CountDownLatch registered;
+	private ActorRef<DeviceManager.DeviceRegistered> registeredSink;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		deviceIds = BenchmarkSupport.deviceIds(devices);
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() {
+		system = BenchmarkSupport.createSystem("group-benchmark");
+		group = BenchmarkSupport.spawn(system, DeviceGroup.create("group"), "group");
+		registered = new CountDownLatch(devices);
+		registeredSink = BenchmarkSupport.spawn(system, BenchmarkSupport.countDown(registered), "registered-sink");
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDownIteration() throws Exception {
+		BenchmarkSupport.terminate(system);
+	}
+
+	@Benchmark
+	public void trackDeviceStorm() throws InterruptedException {
+		for (String deviceId : deviceIds) {
+			group.tell(new DeviceManager.RequestTrackDevice("group", deviceId, registeredSink));
+		}
+		registered.await();
+	}
+}
@@ -0,0 +1,58 @@
+package com.example.iot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.SpawnProtocol;
+
+/**
+ * RequestAllTemperatures against a populated group, i.e. the full DeviceGroupQuery fan-out
+ * and collection, at different group sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class DeviceGroupQueryBenchmark {
+	@Param({"10", "1000", "100000"})
+	public int devices;
+
+	private ActorSystem<SpawnProtocol.Command> system;
+	private ActorRef<DeviceGroup.Command> group;
+	private long requestId;
+
+	@Setup(Level.Trial)
+	public void setup() throws InterruptedException {
+		system = BenchmarkSupport.createSystem("query-benchmark");
+		group = BenchmarkSupport.spawn(system, DeviceGroup.create("group"), "group");
+		BenchmarkSupport.populateGroup(system, group, "group", BenchmarkSupport.deviceIds(devices));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkSupport.terminate(system);
+	}
+
+	@Benchmark
+	public DeviceManager.RespondAllTemperatures queryAllTemperatures() {
+		long id = requestId++;
+		return BenchmarkSupport.ask(system, group, replyTo -> new DeviceManager.RequestAllTemperatures(id, "group", replyTo));
+	}
+}
@@ -0,0 +1,125 @@
+package com.example.iot;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.Behaviors;
+
+/**
+ * The fork-join default against virtual threads (JDK 21 only) for every dispatcher, the blocking one included.
+ * journaledBatch waits for the ReadingJournal's fsync, queryStorm runs many group queries at once
+ * while a batch is being journaled, which is where a shared blocking pool would show up.
+ * The virtual runs need a JDK 21 build and runtime:
+ * mvn -P jmh,jdk21 package && java -jar target/benchmarks.jar DispatcherBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class DispatcherBenchmark {
+	private static final int DEVICES = 1000;
+	private static final int BATCH_SIZE = 100;
+	private static final int QUERIES = 100;
+
+	@Param({"fork-join", "virtual"})
+	public String executor;
+
+	private ActorSystem<SpawnProtocol.Command> system;
+	private ActorRef<DeviceGroup.Command> group;
+	private Path journalDirectory;
+	private List<DeviceManager.TemperatureEntry> batch;
+	// replies of the running queryStorm invocation count down the latch in here
+	private final AtomicReference<CountDownLatch> stormLatch = new AtomicReference<>();
+	private ActorRef<Object> stormSink;
+	private long requestId;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Config config = ConfigFactory.load();
+		if (executor.equals("virtual")) {
+			String virtual = VirtualThreadExecutor.class.getName();
+			config = ConfigFactory.parseString(
+					"akka.actor.default-dispatcher.executor = \"" + virtual + "\"\n"
+					+ "akka.actor.default-blocking-io-dispatcher.executor = \"" + virtual + "\"\n"
+					+ "iot.tiers.device.dispatcher = \"\"\n"
+					+ "iot.tiers.query.dispatcher = \"iot.dispatchers.virtual\"")
+					.withFallback(config);
+		}
+		system = BenchmarkSupport.createSystem("dispatcher-benchmark", config);
+
+		journalDirectory = Files.createTempDirectory("dispatcher-benchmark");
+		// every batch fills a journal batch, so its ack waits for an fsync and not for the flush timer
+		// and queryStorm runs one device round trip per query instead of answering them from a coalesced one
+		GroupSettings settings = GroupSettings.DEFAULT
+				.withQueryCoalescing(false)
+				.withJournal(JournalSettings.create(journalDirectory).withBatching(BATCH_SIZE, Duration.ofSeconds(1)));
+		group = BenchmarkSupport.spawn(system, DeviceGroup.create("group", settings), "group");
+		String[] deviceIds = BenchmarkSupport.deviceIds(DEVICES);
+		BenchmarkSupport.populateGroup(system, group, "group", deviceIds);
+
+		stormSink = BenchmarkSupport.spawn(system, Behaviors.receiveMessage(reply -> {
+			stormLatch.get().countDown();
+			return Behaviors.same();
+		}), "storm-sink");
+
+		batch = new ArrayList<>();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			batch.add(new DeviceManager.TemperatureEntry("group", deviceIds[i * (DEVICES / BATCH_SIZE)], 20.0 + i % 10));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkSupport.terminate(system);
+		try (Stream<Path> files = Files.walk(journalDirectory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public DeviceManager.TemperatureBatchRecorded journaledBatch() {
+		long id = requestId++;
+		return BenchmarkSupport.ask(system, group, replyTo -> new DeviceManager.RecordTemperatureBatch(id, batch, replyTo));
+	}
+
+	@Benchmark
+	public void queryStorm() throws InterruptedException {
+		CountDownLatch answered = new CountDownLatch(QUERIES + 1);
+		stormLatch.set(answered);
+		group.tell(new DeviceManager.RecordTemperatureBatch(requestId++, batch, stormSink.narrow()));
+		for (int i = 0; i < QUERIES; i++) {
+			group.tell(new DeviceManager.RequestAllTemperatures(requestId++, "group", stormSink.narrow()));
+		}
+		answered.await();
+	}
+}
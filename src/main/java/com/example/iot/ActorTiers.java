@@ -0,0 +1,95 @@
+package com.example.iot;
+
+import com.typesafe.config.Config;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.Props;
+
+/**
+ * Dispatcher and mailbox of each tier of IoT actors: managers, groups, devices and group queries.
+ * Instances are immutable, the with* methods return a changed copy. fromConfig reads them from iot.tiers,
+ * which is what groups and managers use unless GroupSettings.withTiers says otherwise.
+ */
+public final class ActorTiers {
+	private Props manager;
+	private Props group;
+	private Props device;
+	private Props query;
+
+	private ActorTiers() {}
+
+	private ActorTiers copy() {
+		ActorTiers copy = new ActorTiers();
+		copy.manager = manager;
+		copy.group = group;
+		copy.device = device;
+		copy.query = query;
+		return copy;
+	}
+
+	// config is the whole config, e.g. system.settings().config()
+	public static ActorTiers fromConfig(Config config) {
+		Config tiers = config.getConfig("iot.tiers");
+		ActorTiers fromConfig = new ActorTiers();
+		fromConfig.manager = props(tiers.getConfig("manager"));
+		fromConfig.group = props(tiers.getConfig("group"));
+		fromConfig.device = props(tiers.getConfig("device"));
+		fromConfig.query = props(tiers.getConfig("query"));
+		return fromConfig;
+	}
+
+	// the tiers of settings, or the configured ones if it has none
+	static ActorTiers of(GroupSettings settings, ActorSystem<?> system) {
+		return settings.tiers() != null ? settings.tiers() : fromConfig(system.settings().config());
+	}
+
+	// an empty dispatcher or mailbox means Akka's default
+	private static Props props(Config tier) {
+		String dispatcher = tier.getString("dispatcher");
+		String mailbox = tier.getString("mailbox");
+		Props props = mailbox.isEmpty() ? Props.empty() : MailboxSelector.fromConfig(mailbox);
+		return dispatcher.isEmpty() ? props : props.withDispatcherFromConfig(dispatcher);
+	}
+
+	public ActorTiers withManager(Props value) {
+		ActorTiers copy = copy();
+		copy.manager = value;
+		return copy;
+	}
+
+	public ActorTiers withGroup(Props value) {
+		ActorTiers copy = copy();
+		copy.group = value;
+		return copy;
+	}
+
+	// e.g. DispatcherSelector.fromConfig("iot.dispatchers.device-throughput") to pin devices to their own threads
+	public ActorTiers withDevice(Props value) {
+		ActorTiers copy = copy();
+		copy.device = value;
+		return copy;
+	}
+
+	public ActorTiers withQuery(Props value) {
+		ActorTiers copy = copy();
+		copy.query = value;
+		return copy;
+	}
+
+	public Props manager() {
+		return manager;
+	}
+
+	public Props group() {
+		return group;
+	}
+
+	public Props device() {
+		return device;
+	}
+
+	public Props query() {
+		return query;
+	}
+}
@@ -0,0 +1,6 @@
+package com.example.iot;
+
+/**
+ * Marker for messages that can cross node boundaries, bound to Jackson CBOR in application.conf.
+ */
+public interface CborSerializable {}
@@ -0,0 +1,177 @@
+package com.example.iot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The readings of one group as three columns: device ids, values and timestamps, row i of each belongs
+ * to the same device. A device without a reading has value NaN and timestamp 0.
+ * <p>
+ * File layout, big-endian: int magic, short version, int row count, the id dictionary as short length
+ * and UTF-8 bytes per row, then all values as doubles and all timestamps as epoch millis longs.
+ */
+public final class ColumnarReadings {
+	private static final int MAGIC = 0x494F5452; // "IOTR"
+	private static final short VERSION = 1;
+	private static final int HEADER = Integer.BYTES + Short.BYTES + Integer.BYTES;
+	private static final int ROW_BYTES = Double.BYTES + Long.BYTES;
+
+	private String[] deviceIds;
+	private double[] values;
+	private long[] timestamps;
+	private int size;
+
+	public ColumnarReadings(int expectedSize) {
+		int capacity = Math.max(expectedSize, 1);
+		deviceIds = new String[capacity];
+		values = new double[capacity];
+		timestamps = new long[capacity];
+	}
+
+	// where a group's readings live in a snapshot directory, see GroupSettings.withSnapshotDirectory.
+	// The group id is escaped like journal segment names, so it can't point outside of the directory.
+	public static Path fileFor(Path directory, String groupId) {
+		return directory.resolve(ReadingSegmentWriter.prefixFor(groupId) + ".readings");
+	}
+
+	public void add(String deviceId, double value, long timestamp) {
+		if (size == deviceIds.length) {
+			int capacity = size * 2;
+			deviceIds = Arrays.copyOf(deviceIds, capacity);
+			values = Arrays.copyOf(values, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+		}
+		deviceIds[size] = deviceId;
+		values[size] = value;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String deviceId(int row) {
+		return deviceIds[row];
+	}
+
+	public boolean hasValue(int row) {
+		return !Double.isNaN(values[row]);
+	}
+
+	public double value(int row) {
+		return values[row];
+	}
+
+	public long timestamp(int row) {
+		return timestamps[row];
+	}
+
+	// writes to a temporary file next to path and moves it over, readers never see a half-written file
+	public void write(Path path) throws IOException {
+		byte[][] encodedIds = new byte[size][];
+		int dictionaryBytes = 0;
+		for (int i = 0; i < size; i++) {
+			encodedIds[i] = deviceIds[i].getBytes(StandardCharsets.UTF_8);
+			if (encodedIds[i].length > Short.MAX_VALUE) {
+				throw new IllegalArgumentException("Device id " + deviceIds[i] + " is too long");
+			}
+			dictionaryBytes += Short.BYTES + encodedIds[i].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER + dictionaryBytes + size * ROW_BYTES);
+		buffer.putInt(MAGIC).putShort(VERSION).putInt(size);
+		for (byte[] id : encodedIds) {
+			buffer.putShort((short) id.length).put(id);
+		}
+		for (int i = 0; i < size; i++) {
+			buffer.putDouble(values[i]);
+		}
+		for (int i = 0; i < size; i++) {
+			buffer.putLong(timestamps[i]);
+		}
+		buffer.flip();
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// a truncated or corrupt file fails with an IOException, nothing in it is trusted before it's checked
+	public static ColumnarReadings read(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large for a readings file");
+			}
+			buffer = ByteBuffer.allocate((int) fileSize);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException(path + " ended early");
+				}
+			}
+		}
+		buffer.flip();
+
+		if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC) {
+			throw new IOException(path + " is not a readings file");
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new IOException(path + " has unsupported version " + version);
+		}
+
+		int size = buffer.getInt();
+		// every row takes at least an empty id, a value and a timestamp
+		if (size < 0 || size > buffer.remaining() / (Short.BYTES + ROW_BYTES)) {
+			throw new IOException(path + " claims " + size + " rows but has " + buffer.remaining() + " bytes left");
+		}
+		ColumnarReadings readings = new ColumnarReadings(size);
+		Set<String> seen = new HashSet<>();
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+		for (int i = 0; i < size; i++) {
+			int length = buffer.remaining() < Short.BYTES ? -1 : buffer.getShort();
+			if (length < 0 || length > buffer.remaining()) {
+				throw new IOException(path + " has a broken device id in row " + i);
+			}
+			ByteBuffer id = buffer.slice();
+			id.limit(length);
+			buffer.position(buffer.position() + length);
+			try {
+				readings.deviceIds[i] = decoder.decode(id).toString();
+			} catch (CharacterCodingException e) {
+				throw new IOException(path + " has a device id in row " + i + " that isn't UTF-8", e);
+			}
+			if (!seen.add(readings.deviceIds[i])) {
+				throw new IOException(path + " has device " + readings.deviceIds[i] + " more than once");
+			}
+		}
+		if (buffer.remaining() != size * ROW_BYTES) {
+			throw new IOException(path + " has " + buffer.remaining() + " bytes of values and timestamps for " + size + " rows");
+		}
+		buffer.asDoubleBuffer().get(readings.values, 0, size);
+		buffer.position(buffer.position() + size * Double.BYTES);
+		buffer.asLongBuffer().get(readings.timestamps, 0, size);
+		readings.size = size;
+		return readings;
+	}
+}
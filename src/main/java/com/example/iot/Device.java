@@ -1,7 +1,13 @@
 package com.example.iot;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Optional;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import org.slf4j.event.Level;
+
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
@@ -9,81 +15,408 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
 import scala.collection.immutable.ArraySeq.ofInt;
 
 public class Device extends AbstractBehavior<Device.Command> {
 	private final String groupId;
 	private final String deviceId;
-	private Optional<Double> lastTemperatureReading = Optional.empty();
+	// last reading kept unboxed, hasReading tells whether lastTemperature holds anything yet
+	private boolean hasReading;
+	private double lastTemperature;
+	private long lastTimestamp;
+	// recent readings for windowed stats, allocated on the first write
+	private final int readingBufferCapacity;
+	// group to push reading changes to, null unless the group materializes readings
+	private final ActorRef<DeviceGroup.Command> reportTo;
+	private ReadingBuffer recentReadings;
+	private double[] statsScratch;
+	private AckPolicy ackPolicy;
+	private int writesSinceAck;
+	// group that decides about passivation, null if the device never passivates
+	private final ActorRef<DeviceGroup.Command> passivateVia;
+	// the group's journal, null if readings aren't journaled
+	private final ActorRef<ReadingJournal.Command> journal;
+	private final boolean ackAfterFlush;
+	private final EventLog recordedLog;
+	private final TemperatureSubscriptions subscriptions;
+
+	// writes are logged at DEBUG, one in this many and at most once per interval for each device
+	static final int RECORDED_LOG_SAMPLE_EVERY = 100;
+	static final Duration RECORDED_LOG_MIN_INTERVAL = Duration.ofSeconds(1);
 
-	public interface Command {}
+	public interface Command extends CborSerializable {}
 
+	// the group's go-ahead after DeviceIdle, the device hands its last reading back and stops
 	static enum Passivate implements Command {
 		INSTANCE
 	}
 
-	// readTemp request
+	static enum IdleTimeout implements Command {
+		INSTANCE
+	}
+
+	/**
+	 * When a device answers RecordTemperature with TemperatureRecorded. With everyN the ack carries the
+	 * requestId of the Nth write and covers the writes before it, since messages from one sender stay ordered.
+	 */
+	public static final class AckPolicy {
+		public static final AckPolicy ALWAYS = new AckPolicy(1, false);
+		public static final AckPolicy NEVER = new AckPolicy(0, false);
+		// only writes sent with ackRequested = true are acked
+		public static final AckPolicy ON_REQUEST = new AckPolicy(0, true);
+
+		final int every;
+		final boolean onRequest;
+
+		@JsonCreator
+		private AckPolicy(int every, boolean onRequest) {
+			this.every = every;
+			this.onRequest = onRequest;
+		}
+
+		// every nth write is acked, as is any write sent with ackRequested = true
+		public static AckPolicy everyN(int n) {
+			if (n < 1) {
+				throw new IllegalArgumentException("n must be positive, was " + n);
+			}
+			return n == 1 ? ALWAYS : new AckPolicy(n, true);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			AckPolicy that = (AckPolicy) o;
+
+			return every == that.every && onRequest == that.onRequest;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * every + (onRequest ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			if (every == 1) return "AckPolicy.ALWAYS";
+			if (every == 0) return onRequest ? "AckPolicy.ON_REQUEST" : "AckPolicy.NEVER";
+			return "AckPolicy.everyN(" + every + ")";
+		}
+	}
+
+	static final class ChangeAckPolicy implements Command {
+		final AckPolicy ackPolicy;
+
+		ChangeAckPolicy(AckPolicy ackPolicy) {
+			this.ackPolicy = ackPolicy;
+		}
+	}
+
+	// readTemp request, primitiveOnly skips boxing the reading into RespondTemperature.value
 	public static final class ReadTemperature implements Command {
 		final long requestId;
 		final ActorRef<RespondTemperature> replyTo;
+		final boolean primitiveOnly;
 
 		public ReadTemperature(long requestId, ActorRef<RespondTemperature> replyTo) {
+			this(requestId, replyTo, false);
+		}
+
+		@JsonCreator
+		public ReadTemperature(long requestId, ActorRef<RespondTemperature> replyTo, boolean primitiveOnly) {
 			this.requestId = requestId;
 			this.replyTo = replyTo;
+			this.primitiveOnly = primitiveOnly;
 		}
 
 	}
 
 	// readTemp response
-	public static final class RespondTemperature {
+	public static final class RespondTemperature implements CborSerializable {
 		final long requestId;
 		final String deviceId;
+		// null in replies to primitiveOnly reads, use hasValue and temperature instead
 		final Optional<Double> value;
+		final boolean hasValue;
+		final double temperature;
+		// epoch millis of the reading, 0 if unknown
+		final long timestamp;
 
 		public RespondTemperature(long requestId, String deviceId, Optional<Double> value) {
+			this(requestId, deviceId, value, value.isPresent(), value.isPresent() ? value.get() : Double.NaN, 0L);
+		}	
+
+		public RespondTemperature(long requestId, String deviceId, boolean hasValue, double temperature, long timestamp) {
+			this(requestId, deviceId, null, hasValue, temperature, timestamp);
+		}
+
+		@JsonCreator
+		private RespondTemperature(long requestId, String deviceId, Optional<Double> value, boolean hasValue, double temperature,
+				long timestamp) {
 			this.requestId = requestId;
 			this.deviceId = deviceId;
 			this.value = value;
+			this.hasValue = hasValue;
+			this.temperature = temperature;
+			this.timestamp = timestamp;
+		}
 
-		}	
+	}
+
+	// stats over the readings recorded within the last window, limited to what the reading buffer still holds
+	public static final class ReadTemperatureStats implements Command {
+		final long requestId;
+		final Duration window;
+		final ActorRef<RespondTemperatureStats> replyTo;
 
+		public ReadTemperatureStats(long requestId, Duration window, ActorRef<RespondTemperatureStats> replyTo) {
+			this.requestId = requestId;
+			this.window = window;
+			this.replyTo = replyTo;
+		}
+	}
+
+	// min, max, mean and p95 are NaN when no reading falls in the window
+	public static final class RespondTemperatureStats implements CborSerializable {
+		final long requestId;
+		final String deviceId;
+		final int count;
+		final double min;
+		final double max;
+		final double mean;
+		final double p95;
+
+		public RespondTemperatureStats(long requestId, String deviceId, int count, double min, double max, double mean, double p95) {
+			this.requestId = requestId;
+			this.deviceId = deviceId;
+			this.count = count;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.p95 = p95;
+		}
 	}
 
-	// writeTemp request
+	// writeTemp request, whether it gets a TemperatureRecorded back depends on the device's AckPolicy
 	public static final class RecordTemperature implements Command {
 		final long requestId;
 		final double value;
 		final ActorRef<TemperatureRecorded> replyTo;
+		final boolean ackRequested;
 		
 		public RecordTemperature(long requestId, double value, ActorRef<TemperatureRecorded> replyTo) {
+			this(requestId, value, replyTo, false);
+		}
+
+		@JsonCreator
+		public RecordTemperature(long requestId, double value, ActorRef<TemperatureRecorded> replyTo, boolean ackRequested) {
 			this.requestId = requestId;
 			this.value = value;
 			this.replyTo = replyTo;
+			this.ackRequested = ackRequested;
 		}
 	}
 
 
-	// writeTemp response
-	public static final class TemperatureRecorded {
+	// writeTemp request without a reply, for senders that ack on the device's behalf (e.g. batches).
+	// They also journal it, a device only journals RecordTemperature.
+	public static final class UpdateTemperature implements Command {
+		final double value;
+
+		@JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
+		public UpdateTemperature(double value) {
+			this.value = value;
+		}
+	}
+
+	// writeTemp response, error is only set when FLUSH_BEFORE_ACK was promised and the journal couldn't keep it
+	public static final class TemperatureRecorded implements CborSerializable {
 		final long requestId;
+		final String error;
 
 		public TemperatureRecorded(long requestId) {
+			this(requestId, null);
+		}
+
+		@JsonCreator
+		public TemperatureRecorded(long requestId, String error) {
 			this.requestId = requestId;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Pushes this device's reading to subscriber as TemperatureUpdate whenever it changes, as limited
+	 * by settings, starting with the current reading. Subscribing again changes the settings.
+	 * A subscription made on the device ends when the device stops or passivates, subscribe through
+	 * DeviceManager.SubscribeTemperatures to follow a device across passivation.
+	 */
+	public static final class SubscribeTemperature implements Command {
+		final ActorRef<TemperatureUpdate> subscriber;
+		final SubscriptionSettings settings;
+		// false when the group subscribes on the subscriber's behalf and watches it itself
+		final boolean watchSubscriber;
+
+		public SubscribeTemperature(ActorRef<TemperatureUpdate> subscriber, SubscriptionSettings settings) {
+			this(subscriber, settings, true);
+		}
+
+		@JsonCreator
+		SubscribeTemperature(ActorRef<TemperatureUpdate> subscriber, SubscriptionSettings settings, boolean watchSubscriber) {
+			this.subscriber = subscriber;
+			this.settings = settings;
+			this.watchSubscriber = watchSubscriber;
+		}
+	}
+
+	public static final class UnsubscribeTemperature implements Command {
+		final ActorRef<TemperatureUpdate> subscriber;
+
+		@JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
+		public UnsubscribeTemperature(ActorRef<TemperatureUpdate> subscriber) {
+			this.subscriber = subscriber;
+		}
+	}
+
+	// pushed to subscribers, timestamp is the epoch millis of the reading
+	public static final class TemperatureUpdate implements CborSerializable {
+		final String groupId;
+		final String deviceId;
+		final double value;
+		final long timestamp;
+
+		@JsonCreator
+		public TemperatureUpdate(String groupId, String deviceId, double value, long timestamp) {
+			this.groupId = groupId;
+			this.deviceId = deviceId;
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// the subscriber's interval is over, see TemperatureSubscriptions
+	static final class FlushSubscription implements Command {
+		final ActorRef<TemperatureUpdate> subscriber;
+
+		FlushSubscription(ActorRef<TemperatureUpdate> subscriber) {
+			this.subscriber = subscriber;
+		}
+	}
+
+	static final class SubscriberTerminated implements Command {
+		final ActorRef<TemperatureUpdate> subscriber;
+
+		SubscriberTerminated(ActorRef<TemperatureUpdate> subscriber) {
+			this.subscriber = subscriber;
 		}
 	}
 
+	public static final int DEFAULT_READING_BUFFER_CAPACITY = 32;
+
 	// factory method
 	public static Behavior<Command> create(String groupId, String deviceId) {
-		return Behaviors.setup(context -> new Device(context, groupId, deviceId));
+		return new Builder().groupId(groupId).deviceId(deviceId).build();
 	}	
 
+	// fields are read by PersistentDevice, which is built from the same builder
+	public static final class Builder {
+		String groupId;
+		String deviceId;
+		AckPolicy ackPolicy = AckPolicy.ALWAYS;
+		int readingBufferCapacity = DEFAULT_READING_BUFFER_CAPACITY;
+		ActorRef<DeviceGroup.Command> reportTo;
+		Duration idleTimeout;
+		ActorRef<DeviceGroup.Command> passivateVia;
+		boolean hasReading;
+		double lastTemperature;
+		long lastTimestamp;
+		boolean persistent;
+		ActorRef<ReadingJournal.Command> journal;
+		boolean ackAfterFlush;
+
+		public Builder() {}
+
+		public Builder groupId(String value) {
+			groupId = value;
+			return this;
+		}
+		public Builder deviceId(String value) {
+			deviceId = value;
+			return this;
+		}
+		public Builder ackPolicy(AckPolicy value) {
+			ackPolicy = value;
+			return this;
+		}
+		// how many recent readings ReadTemperatureStats can look at, 0 keeps only the last reading
+		public Builder readingBufferCapacity(int value) {
+			readingBufferCapacity = value;
+			return this;
+		}
+		public Builder reportTo(ActorRef<DeviceGroup.Command> ref) {
+			reportTo = ref;
+			return this;
+		}
+		// after idleTimeout without messages the device asks the group to passivate it
+		public Builder passivateWhenIdle(Duration idleTimeout, ActorRef<DeviceGroup.Command> group) {
+			this.idleTimeout = idleTimeout;
+			this.passivateVia = group;
+			return this;
+		}
+		// the reading a passivated device had, so it comes back with it
+		public Builder lastReading(double temperature, long timestamp) {
+			hasReading = true;
+			lastTemperature = temperature;
+			lastTimestamp = timestamp;
+			return this;
+		}
+
+		// RecordTemperature readings go to journal, with FLUSH_BEFORE_ACK the ack waits for the flush
+		public Builder journal(ActorRef<ReadingJournal.Command> ref, JournalSettings.Durability durability) {
+			journal = ref;
+			ackAfterFlush = durability == JournalSettings.Durability.FLUSH_BEFORE_ACK;
+			return this;
+		}
+		// journal every reading and recover the last one after a restart, see PersistentDevice
+		public Builder persistent(boolean value) {
+			persistent = value;
+			return this;
+		}
+
+		public Behavior<Command> build() {
+			if (persistent) {
+				return MetricsInterceptor.instrument(PersistentDevice.class, Command.class, PersistentDevice.create(this));
+			}
+			return MetricsInterceptor.instrument(Device.class, Command.class,
+					Behaviors.setup(context -> Behaviors.withTimers(timers -> new Device(this, context, timers))));
+		}
+	}
+
 	// private constructor
-	private Device(ActorContext<Command> context, String groupId, String deviceId) {
+	private Device(Builder builder, ActorContext<Command> context, TimerScheduler<Command> timers) {
 		super(context);
-		this.groupId = groupId;
-		this.deviceId = deviceId;
+		this.groupId = builder.groupId;
+		this.deviceId = builder.deviceId;
+		this.ackPolicy = builder.ackPolicy;
+		this.readingBufferCapacity = builder.readingBufferCapacity;
+		this.reportTo = builder.reportTo;
+		this.passivateVia = builder.passivateVia;
+		this.hasReading = builder.hasReading;
+		this.lastTemperature = builder.lastTemperature;
+		this.lastTimestamp = builder.lastTimestamp;
+		this.journal = builder.journal;
+		this.ackAfterFlush = builder.journal != null && builder.ackAfterFlush;
+		this.subscriptions = new TemperatureSubscriptions(groupId, deviceId, timers);
+
+		if (passivateVia != null) {
+			context.setReceiveTimeout(builder.idleTimeout, IdleTimeout.INSTANCE);
+		}
 
-		context.getLog().info("Device actor {}-{} started", groupId, deviceId);
+		this.recordedLog = EventLog.create(context.getLog(), Level.DEBUG, "temperature-recorded", RECORDED_LOG_SAMPLE_EVERY,
+				RECORDED_LOG_MIN_INTERVAL);
+		context.getLog().debug("Device actor {}-{} started", groupId, deviceId);
 	}
 
 
@@ -93,25 +426,146 @@ public class Device extends AbstractBehavior<Device.Command> {
 		return newReceiveBuilder()
 			.onMessage(ReadTemperature.class, this::onReadTemperature)
 			.onMessage(RecordTemperature.class, this::onRecordTemperature)
-			.onMessage(Passivate.class, m -> Behaviors.stopped())
+			.onMessage(UpdateTemperature.class, this::onUpdateTemperature)
+			.onMessage(ChangeAckPolicy.class, this::onChangeAckPolicy)
+			.onMessage(ReadTemperatureStats.class, this::onReadTemperatureStats)
+			.onMessage(SubscribeTemperature.class, this::onSubscribeTemperature)
+			.onMessage(UnsubscribeTemperature.class, u -> onUnsubscribe(u.subscriber))
+			.onMessage(SubscriberTerminated.class, t -> onUnsubscribe(t.subscriber))
+			.onMessage(FlushSubscription.class, this::onFlushSubscription)
+			.onMessage(IdleTimeout.class, this::onIdleTimeout)
+			.onMessage(Passivate.class, this::onPassivate)
 			.onSignal(PostStop.class, signal -> onPostStop())
 			.build();
 	}
 
 	private Behavior<Command> onRecordTemperature(RecordTemperature  r) {
-		getContext().getLog().info("Updating temperature reading to {} with {}", r.value, r.requestId);
-		lastTemperatureReading = Optional.of(r.value);
-		r.replyTo.tell(new TemperatureRecorded(r.requestId));
+		if (recordedLog.shouldLog()) {
+			recordedLog.log("group={} device={} value={} requestId={}", groupId, deviceId, r.value, r.requestId);
+		}
+		record(r.value);
+		if (journal != null) {
+			journal.tell(new ReadingJournal.Append(deviceId, r.value, lastTimestamp));
+		}
+		if (shouldAck(r)) {
+			TemperatureRecorded recorded = new TemperatureRecorded(r.requestId);
+			if (ackAfterFlush) {
+				journal.tell(new ReadingJournal.AckAfterFlush<>(r.replyTo, recorded,
+						new TemperatureRecorded(r.requestId, "Reading of device " + deviceId + " could not be journaled")));
+			} else {
+				r.replyTo.tell(recorded);
+			}
+		}
 		return this;
 	}
 
+	private boolean shouldAck(RecordTemperature r) {
+		if (ackPolicy.every > 0 && ++writesSinceAck >= ackPolicy.every) {
+			writesSinceAck = 0;
+			return true;
+		}
+		return r.ackRequested && ackPolicy.onRequest;
+	}
+
+	private Behavior<Command> onChangeAckPolicy(ChangeAckPolicy c) {
+		ackPolicy = c.ackPolicy;
+		writesSinceAck = 0;
+		return this;
+	}
+
+	private Behavior<Command> onUpdateTemperature(UpdateTemperature u) {
+		record(u.value);
+		return this;
+	}
+
+	private void record(double value) {
+		boolean changed = !hasReading || Double.compare(lastTemperature, value) != 0;
+		hasReading = true;
+		lastTemperature = value;
+		lastTimestamp = System.currentTimeMillis();
+		if (changed && reportTo != null) {
+			reportTo.tell(new DeviceGroup.DeviceTemperatureChanged(deviceId, value));
+		}
+		if (changed) {
+			subscriptions.changed(value, lastTimestamp);
+		}
+		if (readingBufferCapacity > 0) {
+			if (recentReadings == null) {
+				recentReadings = new ReadingBuffer(readingBufferCapacity);
+			}
+			recentReadings.add(value, lastTimestamp);
+		}
+	}
+
+	private Behavior<Command> onSubscribeTemperature(SubscribeTemperature s) {
+		if (subscriptions.subscribe(s.subscriber, s.settings, hasReading, lastTemperature, lastTimestamp) && s.watchSubscriber) {
+			getContext().watchWith(s.subscriber, new SubscriberTerminated(s.subscriber));
+		}
+		return this;
+	}
+
+	private Behavior<Command> onUnsubscribe(ActorRef<TemperatureUpdate> subscriber) {
+		if (subscriptions.unsubscribe(subscriber)) {
+			getContext().unwatch(subscriber);
+		}
+		return this;
+	}
+
+	private Behavior<Command> onFlushSubscription(FlushSubscription f) {
+		subscriptions.flush(f.subscriber);
+		return this;
+	}
+
+	private Behavior<Command> onReadTemperatureStats(ReadTemperatureStats r) {
+		if (recentReadings != null && statsScratch == null) {
+			statsScratch = new double[recentReadings.capacity()];
+		}
+		r.replyTo.tell(windowStats(r, deviceId, recentReadings, statsScratch));
+		return this;
+	}
+
+	// readings may be null when nothing was recorded yet, scratch has to hold readings.capacity() values
+	static RespondTemperatureStats windowStats(ReadTemperatureStats r, String deviceId, ReadingBuffer readings, double[] scratch) {
+		int count = readings == null ? 0 : readings.valuesSince(System.currentTimeMillis() - r.window.toMillis(), scratch);
+		if (count == 0) {
+			return new RespondTemperatureStats(r.requestId, deviceId, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+		}
+
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			sum += scratch[i];
+		}
+		// sorting the window in the scratch array gives min, max and the nearest-rank p95 in one go
+		Arrays.sort(scratch, 0, count);
+		double p95 = scratch[(int) Math.ceil(0.95 * count) - 1];
+		return new RespondTemperatureStats(r.requestId, deviceId, count, scratch[0], scratch[count - 1], sum / count, p95);
+	}
+
 	private Behavior<Command> onReadTemperature(ReadTemperature r) {
-		r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, lastTemperatureReading));
+		if (r.primitiveOnly) {
+			r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, hasReading, lastTemperature, lastTimestamp));
+		} else {
+			Optional<Double> value = hasReading ? Optional.of(lastTemperature) : Optional.empty();
+			r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, value));
+		}
 		return this;	
 	}
 
+	// only the group knows whether messages for this device are on their way, so it has the final say
+	private Behavior<Command> onIdleTimeout(IdleTimeout timeout) {
+		passivateVia.tell(new DeviceGroup.DeviceIdle(deviceId, getContext().getSelf()));
+		return this;
+	}
+
+	private Behavior<Command> onPassivate(Passivate passivate) {
+		if (passivateVia != null) {
+			passivateVia.tell(new DeviceGroup.DevicePassivated(deviceId, hasReading, lastTemperature, lastTimestamp, ackPolicy));
+		}
+		return Behaviors.stopped();
+	}
+
 	private Device onPostStop() {
-		getContext().getLog().info("Device actor {}-{} stopped", groupId, deviceId);
+		getContext().getLog().debug("Device actor {}-{} stopped", groupId, deviceId);
 		return this;
 	}
 
@@ -1,44 +1,294 @@
 package com.example.iot;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 import com.example.iot.DeviceManager.RequestAllTemperatures;
 
+import org.slf4j.event.Level;
+
+import akka.actor.DeadLetter;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.eventstream.EventStream;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import akka.pattern.StatusReply;
 
 public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
 	private final String groupId;
+	private final GroupSettings settings;
 	private final Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+	// every device id the group has seen, queries refer to devices by their index in it
+	private final DeviceIndex deviceIndex = new DeviceIndex();
+	// by device index, the ref queries send to: running and passivating devices, null for all others
+	private final ArrayList<ActorRef<Device.Command>> queryTargets = new ArrayList<>();
+	// immutable snapshots shared by every query and device list until the membership changes, null when stale
+	private QueriedDevices queryTargetsView;
+	private Map<String, DeviceManager.TemperatureReading> passivatedReadingsView;
+	private Set<String> deviceIdsView;
+	// current reading of every device, only kept with materialized readings
+	private final Map<String, DeviceManager.TemperatureReading> materializedReadings = new HashMap<>();
+	// immutable copy handed out to requesters, rebuilt on the first request after a change
+	private Map<String, DeviceManager.TemperatureReading> materializedView;
+	// requesters sharing the running coalesced query, null when none is running
+	private List<RequestAllTemperatures> waitingForQuery;
+	private final ActorRef<DeviceManager.RespondAllTemperatures> coalescedResultAdapter;
+	private Map<String, DeviceManager.TemperatureReading> lastQueryResult;
+	private long lastQueryResultNanos;
+	// devices tracked with an explicit ack policy, they don't follow changes to the group default
+	private final Set<String> devicesWithOwnAckPolicy = new HashSet<>();
+	private Device.AckPolicy defaultAckPolicy = Device.AckPolicy.ALWAYS;
+	// devices stopped for being idle, only their last reading is kept until they're needed again
+	private final Map<String, PassivatedDevice> passivatedDevices = new HashMap<>();
+	// devices told to passivate that haven't handed back their reading yet
+	private final Map<String, Passivation> passivating = new HashMap<>();
+	// suffix for the names of respawned devices, the stopped incarnation may still hold the old name
+	private long respawns;
+	// write-behind journal of the group's readings, null unless GroupSettings.withJournal is set
+	private final ActorRef<ReadingJournal.Command> journal;
+	private final EventLog batchLog;
+	private final ActorTiers tiers;
+	// runs the group's queries when GroupSettings.withSharedQueryAggregator is on, null otherwise or once it has failed
+	private ActorRef<DeviceGroupQueryAggregator.Command> queryAggregator;
+	// one per subscriber, devices are subscribed as they spawn so the list outlives passivation
+	private final List<Subscription> subscriptions = new ArrayList<>(0);
+
+	public interface Command extends CborSerializable {}
 
-	public interface Command {}
+	// groups run as entities of this type when the DeviceManager is sharded, the entity id is the groupId
+	public static final EntityTypeKey<Command> ENTITY_TYPE_KEY = EntityTypeKey.create(Command.class, "DeviceGroup");
 
 
 	// factory method
 	public static Behavior<DeviceGroup.Command> create(String groupId) {
-		return Behaviors.setup(context -> new DeviceGroup(context, groupId));
+		return create(groupId, GroupSettings.DEFAULT);
+	}
+
+	public static Behavior<DeviceGroup.Command> create(String groupId, GroupSettings settings) {
+		return MetricsInterceptor.instrument(DeviceGroup.class, Command.class,
+				Behaviors.setup(context -> new DeviceGroup(context, groupId, settings)));
 	}
 
 	// private constructor
-	private DeviceGroup(ActorContext<Command> context, String groupId) {
+	private DeviceGroup(ActorContext<Command> context, String groupId, GroupSettings settings) {
 		super(context);
 		this.groupId = groupId;
+		this.settings = settings;
+		this.tiers = ActorTiers.of(settings, context.getSystem());
+		this.coalescedResultAdapter = context.messageAdapter(DeviceManager.RespondAllTemperatures.class, WrappedCoalescedResult::new);
+		this.journal = settings.journal() == null ? null
+				: context.spawn(ReadingJournal.create(groupId, settings.journal(), context.getSelf()), "journal", DispatcherSelector.blocking());
+		if (journal != null) {
+			context.watchWith(journal, JournalTerminated.INSTANCE);
+		}
+		if (settings.sharedQueryAggregator()) {
+			this.queryAggregator = context.spawn(DeviceGroupQueryAggregator.create(), "query-aggregator", tiers.query());
+			context.watchWith(queryAggregator, QueryAggregatorTerminated.INSTANCE);
+		}
+		if (settings.snapshotDirectory() != null) {
+			restore(ColumnarReadings.fileFor(settings.snapshotDirectory(), groupId));
+		}
+		if (!settings.passivateIdleDevicesAfter().isZero()) {
+			// refs handed out before a device passivated are dead, what clients still send to them ends up here
+			context.getSystem().eventStream().tell(new EventStream.Subscribe<>(DeadLetter.class,
+					context.messageAdapter(DeadLetter.class, DeadDeviceLetter::new)));
+		}
+		this.batchLog = EventLog.create(context.getLog(), Level.DEBUG, "batch-recorded", 1, Duration.ofSeconds(1));
 		context.getLog().info("Device Group {} started.", groupId);
 	}
 
+	// restored devices start out passivated, they are spawned once something is sent to them
+	private void restore(Path file) {
+		if (!Files.exists(file)) {
+			return;
+		}
+
+		ColumnarReadings rows;
+		try {
+			rows = ColumnarReadings.read(file);
+		} catch (IOException e) {
+			getContext().getLog().warn("Could not restore device group {} from {}, starting empty", groupId, file, e);
+			return;
+		}
+
+		for (int i = 0; i < rows.size(); i++) {
+			String deviceId = deviceIndex.id(deviceIndex.add(rows.deviceId(i)));
+			PassivatedDevice device = new PassivatedDevice(rows.hasValue(i), rows.value(i), rows.timestamp(i), null);
+			passivatedDevices.put(deviceId, device);
+			if (settings.materializedReadings()) {
+				materializedReadings.put(deviceId, device.reading());
+			}
+		}
+		getContext().getLog().info("Restored {} devices of group {} from {}", rows.size(), groupId, file);
+	}
+
+	private static class WrappedCoalescedResult implements Command {
+		final DeviceManager.RespondAllTemperatures response;
+
+		WrappedCoalescedResult(DeviceManager.RespondAllTemperatures response) {
+			this.response = response;
+		}
+	}
+
+	private static class DeadDeviceLetter implements Command {
+		final DeadLetter deadLetter;
+
+		DeadDeviceLetter(DeadLetter deadLetter) {
+			this.deadLetter = deadLetter;
+		}
+	}
+
+	private static enum QueryAggregatorTerminated implements Command {
+		INSTANCE
+	}
+
+	private static enum JournalTerminated implements Command {
+		INSTANCE
+	}
+
+	// sent by the journal after a write failed, it fails every ack from then on
+	static enum JournalFailed implements Command {
+		INSTANCE
+	}
+
+	/**
+	 * Stops the group once its devices have stopped and the journal has written everything they sent it.
+	 * Stopping the group any other way loses the readings still waiting in the journal's mailbox.
+	 */
+	public static enum Stop implements Command {
+		INSTANCE
+	}
+
+	// pushed by devices when their reading changes, see GroupSettings.withMaterializedReadings
+	static final class DeviceTemperatureChanged implements Command {
+		final String deviceId;
+		final double value;
+
+		DeviceTemperatureChanged(String deviceId, double value) {
+			this.deviceId = deviceId;
+			this.value = value;
+		}
+	}
+
+	// sent by an idle device, asking to be passivated
+	static final class DeviceIdle implements Command {
+		final String deviceId;
+		final ActorRef<Device.Command> device;
+
+		DeviceIdle(String deviceId, ActorRef<Device.Command> device) {
+			this.deviceId = deviceId;
+			this.device = device;
+		}
+	}
+
+	// a device's state right before it stopped for passivation
+	static final class DevicePassivated implements Command {
+		final String deviceId;
+		final boolean hasReading;
+		final double temperature;
+		final long timestamp;
+		final Device.AckPolicy ackPolicy;
+
+		DevicePassivated(String deviceId, boolean hasReading, double temperature, long timestamp, Device.AckPolicy ackPolicy) {
+			this.deviceId = deviceId;
+			this.hasReading = hasReading;
+			this.temperature = temperature;
+			this.timestamp = timestamp;
+			this.ackPolicy = ackPolicy;
+		}
+	}
+
+	private static final class PassivatedDevice {
+		final boolean hasReading;
+		final double temperature;
+		final long timestamp;
+		// null when the device follows the group's default
+		final Device.AckPolicy ackPolicy;
+
+		PassivatedDevice(boolean hasReading, double temperature, long timestamp, Device.AckPolicy ackPolicy) {
+			this.hasReading = hasReading;
+			this.temperature = temperature;
+			this.timestamp = timestamp;
+			this.ackPolicy = ackPolicy;
+		}
+
+		DeviceManager.TemperatureReading reading() {
+			return hasReading ? new DeviceManager.Temperature(temperature) : DeviceManager.TemperatureNotAvailable.INSTANCE;
+		}
+	}
+
+	// messages for a passivating device wait here until it has stopped and can be respawned
+	private static final class Passivation {
+		final ActorRef<Device.Command> device;
+		final List<Command> buffered = new ArrayList<>();
+
+		Passivation(ActorRef<Device.Command> device) {
+			this.device = device;
+		}
+	}
+
+	private static final class Subscription {
+		// null for every device of the group
+		final String deviceId;
+		final ActorRef<Device.TemperatureUpdate> subscriber;
+		final SubscriptionSettings settings;
+
+		Subscription(String deviceId, ActorRef<Device.TemperatureUpdate> subscriber, SubscriptionSettings settings) {
+			this.deviceId = deviceId;
+			this.subscriber = subscriber;
+			this.settings = settings;
+		}
+
+		boolean matches(String deviceId) {
+			return this.deviceId == null || this.deviceId.equals(deviceId);
+		}
+	}
+
+	private static final class SubscriberTerminated implements Command {
+		final ActorRef<Device.TemperatureUpdate> subscriber;
+
+		SubscriberTerminated(ActorRef<Device.TemperatureUpdate> subscriber) {
+			this.subscriber = subscriber;
+		}
+	}
+
+	// buffered for a device that is being passivated
+	private static final class ForwardToDevice implements Command {
+		final String deviceId;
+		final Device.Command command;
+
+		ForwardToDevice(String deviceId, Device.Command command) {
+			this.deviceId = deviceId;
+			this.command = command;
+		}
+	}
+
 	private class DeviceTerminated implements Command {
     public final String groupId;
     public final String deviceId;
+    // the incarnation that stopped, a respawned device has the same id
+    final ActorRef<Device.Command> device;
 
-    DeviceTerminated(String groupId, String deviceId) {
+    DeviceTerminated(String groupId, String deviceId, ActorRef<Device.Command> device) {
       this.groupId = groupId;
       this.deviceId = deviceId;
+      this.device = device;
     }
   }
 
@@ -46,24 +296,62 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
 	public Receive<Command> createReceive() {
 		return newReceiveBuilder()
 			.onMessage(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+			.onMessage(DeviceManager.BulkTrackDevices.class, this::onBulkTrackDevices)
+			.onMessage(DeviceManager.RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
 			.onMessage(DeviceManager.RequestDeviceList.class, r -> r.groupId.equals(groupId), this::onDeviceList)
 			.onMessage(DeviceTerminated.class, this::onTerminated)
+			.onMessage(DeviceTemperatureChanged.class, this::onDeviceTemperatureChanged)
+			.onMessage(DeviceIdle.class, this::onDeviceIdle)
+			.onMessage(DevicePassivated.class, this::onDevicePassivated)
+			.onMessage(DeadDeviceLetter.class, this::onDeadDeviceLetter)
+			.onMessage(WrappedCoalescedResult.class, this::onCoalescedResult)
+			.onMessage(QueryAggregatorTerminated.class, terminated -> onQueryAggregatorTerminated())
+			.onMessage(JournalTerminated.class, terminated -> onJournalTerminated())
+			.onMessage(JournalFailed.class, failed -> onJournalFailed())
+			.onMessage(Stop.class, stop -> onStop())
 			.onMessage(DeviceManager.RequestAllTemperatures.class, r -> r.groupId.equals(groupId), this::onAllTemperatures)
+			.onMessage(DeviceManager.ExportGroupReadings.class, r -> r.groupId.equals(groupId), this::onExportGroupReadings)
+			.onMessage(DeviceManager.SubscribeTemperatures.class, r -> r.groupId.equals(groupId), this::onSubscribeTemperatures)
+			.onMessage(DeviceManager.UnsubscribeTemperatures.class, r -> r.groupId.equals(groupId), r -> unsubscribe(r.subscriber))
+			.onMessage(SubscriberTerminated.class, t -> unsubscribe(t.subscriber))
 			.build();
 	}
 
 	private DeviceGroup onTrackDevice(DeviceManager.RequestTrackDevice trackMessage) {
 		if (this.groupId.equals(trackMessage.groupId)) {
+			Passivation passivation = passivating.get(trackMessage.deviceId);
+			if (passivation != null) {
+				passivation.buffered.add(trackMessage);
+				return this;
+			}
+
+			if (trackMessage.groupAckPolicy != null) {
+				changeDefaultAckPolicy(trackMessage.groupAckPolicy);
+			}
+
 			ActorRef<Device.Command> deviceRef = deviceIdToActor.get(trackMessage.deviceId);
-			if (deviceRef == null) {
-				getContext().getLog().info("Creating actor for device {}", trackMessage.deviceId);
-				deviceRef = getContext().spawn(Device.create(trackMessage.groupId, trackMessage.deviceId), "device-" + trackMessage.deviceId);
+			if (deviceRef == null && passivatedDevices.containsKey(trackMessage.deviceId)) {
+				deviceRef = respawn(trackMessage.deviceId);
+				if (trackMessage.ackPolicy != null) {
+					deviceRef.tell(new Device.ChangeAckPolicy(trackMessage.ackPolicy));
+				}
+			} else if (deviceRef == null) {
+				getContext().getLog().debug("Creating actor for device {}", trackMessage.deviceId);
+				Device.AckPolicy ackPolicy = trackMessage.ackPolicy != null ? trackMessage.ackPolicy : defaultAckPolicy;
+				deviceRef = spawnDevice(trackMessage.deviceId, ackPolicy, "device-" + trackMessage.deviceId, new Device.Builder());
 
-				getContext().watchWith(deviceRef, new DeviceTerminated(groupId, trackMessage.deviceId));
+				lastQueryResult = null;
+				if (settings.materializedReadings()) {
+					updateMaterializedReading(trackMessage.deviceId, DeviceManager.TemperatureNotAvailable.INSTANCE);
+				}
+			} else if (trackMessage.ackPolicy != null) {
+				deviceRef.tell(new Device.ChangeAckPolicy(trackMessage.ackPolicy));
 			}
 
+			if (trackMessage.ackPolicy != null) {
+				devicesWithOwnAckPolicy.add(trackMessage.deviceId);
+			}
 
-			deviceIdToActor.put(trackMessage.deviceId, deviceRef);
 			trackMessage.replyTo.tell(new DeviceManager.DeviceRegistered(deviceRef));
 		} else {
 			getContext()
@@ -74,27 +362,612 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
 		return this;
 	}
 
+	// the per-device work of onTrackDevice without its per-device log line and reply
+	private DeviceGroup onBulkTrackDevices(DeviceManager.BulkTrackDevices r) {
+		if (!groupId.equals(r.groupId)) {
+			getContext().getLog().warn("Ignoring BulkTrackDevices request for {}. This actor is responsible for {}.", r.groupId, groupId);
+			r.replyTo.tell(new DeviceManager.DevicesTracked(r.requestId, Collections.emptyMap(),
+					"group " + r.groupId + " is not handled by group " + groupId));
+			return this;
+		}
+
+		for (String deviceId : r.deviceIds) {
+			Passivation passivation = passivating.get(deviceId);
+			// retried as a whole once that device is down, refs in the reply must be live
+			if (passivation != null) {
+				passivation.buffered.add(r);
+				return this;
+			}
+		}
+
+		Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+		int created = 0;
+		long now = System.currentTimeMillis();
+		for (String deviceId : r.deviceIds) {
+			ActorRef<Device.Command> deviceRef = deviceIdToActor.get(deviceId);
+			if (deviceRef == null && passivatedDevices.containsKey(deviceId)) {
+				deviceRef = respawn(deviceId);
+			} else if (deviceRef == null) {
+				Device.Builder builder = new Device.Builder();
+				Double lastReading = r.lastReadings.get(deviceId);
+				if (lastReading != null) {
+					builder.lastReading(lastReading, now);
+				}
+				deviceRef = spawnDevice(deviceId, defaultAckPolicy, "device-" + deviceId, builder);
+				created++;
+
+				if (settings.materializedReadings()) {
+					updateMaterializedReading(deviceId,
+							lastReading != null ? new DeviceManager.Temperature(lastReading) : DeviceManager.TemperatureNotAvailable.INSTANCE);
+				}
+			}
+			devices.put(deviceId, deviceRef);
+		}
+
+		if (created > 0) {
+			lastQueryResult = null;
+		}
+		getContext().getLog().info("Bulk registration {} tracked {} devices, {} of them new", r.requestId, devices.size(), created);
+		r.replyTo.tell(new DeviceManager.DevicesTracked(r.requestId, devices));
+		return this;
+	}
+
+	private ActorRef<Device.Command> spawnDevice(String deviceId, Device.AckPolicy ackPolicy, String name, Device.Builder builder) {
+		// the group's copy of the id, not the one in the message, so all of the device's messages share it
+		int index = deviceIndex.add(deviceId);
+		deviceId = deviceIndex.id(index);
+
+		builder.groupId(groupId)
+				.deviceId(deviceId)
+				.ackPolicy(ackPolicy)
+				.reportTo(settings.materializedReadings() ? getContext().getSelf() : null)
+				.persistent(settings.persistentDevices());
+		if (journal != null) {
+			builder.journal(journal, settings.journal().durability());
+		}
+		if (!settings.passivateIdleDevicesAfter().isZero()) {
+			builder.passivateWhenIdle(settings.passivateIdleDevicesAfter(), getContext().getSelf());
+		}
+
+		ActorRef<Device.Command> deviceRef = getContext().spawn(builder.build(), name, tiers.device());
+		getContext().watchWith(deviceRef, new DeviceTerminated(groupId, deviceId, deviceRef));
+		deviceIdToActor.put(deviceId, deviceRef);
+		setQueryTarget(index, deviceRef);
+		for (Subscription subscription : subscriptions) {
+			if (subscription.matches(deviceId)) {
+				deviceRef.tell(new Device.SubscribeTemperature(subscription.subscriber, subscription.settings, false));
+			}
+		}
+		return deviceRef;
+	}
+
+	private void setQueryTarget(int index, ActorRef<Device.Command> device) {
+		while (queryTargets.size() <= index) {
+			queryTargets.add(null);
+		}
+		queryTargets.set(index, device);
+		queryTargetsView = null;
+		deviceIdsView = null;
+	}
+
+	// brings a passivated device back with its last reading and ack policy
+	private ActorRef<Device.Command> respawn(String deviceId) {
+		PassivatedDevice passivated = passivatedDevices.remove(deviceId);
+		passivatedReadingsView = null;
+		getContext().getLog().debug("Respawning passivated device {}", deviceId);
+
+		Device.Builder builder = new Device.Builder();
+		if (passivated.hasReading) {
+			builder.lastReading(passivated.temperature, passivated.timestamp);
+		}
+		Device.AckPolicy ackPolicy = passivated.ackPolicy != null ? passivated.ackPolicy : defaultAckPolicy;
+		return spawnDevice(deviceId, ackPolicy, "device-" + deviceId + "-" + (++respawns), builder);
+	}
+
+	// policies sent from another node are new instances, compare by value
+	private void changeDefaultAckPolicy(Device.AckPolicy ackPolicy) {
+		if (ackPolicy.equals(defaultAckPolicy)) {
+			return;
+		}
+
+		defaultAckPolicy = ackPolicy;
+		for (Map.Entry<String, ActorRef<Device.Command>> entry : deviceIdToActor.entrySet()) {
+			if (!devicesWithOwnAckPolicy.contains(entry.getKey())) {
+				entry.getValue().tell(new Device.ChangeAckPolicy(ackPolicy));
+			}
+		}
+	}
+
+	private DeviceGroup onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch) {
+		int recorded = 0;
+		List<DeviceManager.TemperatureEntry> failed = new ArrayList<>();
+		long timestamp = System.currentTimeMillis();
+
+		for (DeviceManager.TemperatureEntry entry : batch.entries) {
+			ActorRef<Device.Command> deviceRef = groupId.equals(entry.groupId) ? deviceIdToActor.get(entry.deviceId) : null;
+			Passivation passivation = null;
+			if (deviceRef == null && groupId.equals(entry.groupId)) {
+				passivation = passivating.get(entry.deviceId);
+				if (passivation == null && passivatedDevices.containsKey(entry.deviceId)) {
+					deviceRef = respawn(entry.deviceId);
+				}
+			}
+
+			if (passivation != null) {
+				passivation.buffered.add(new ForwardToDevice(entry.deviceId, new Device.UpdateTemperature(entry.value)));
+			} else if (deviceRef != null) {
+				deviceRef.tell(new Device.UpdateTemperature(entry.value));
+			} else {
+				failed.add(entry);
+				continue;
+			}
+
+			recorded++;
+			if (journal != null) {
+				journal.tell(new ReadingJournal.Append(entry.deviceId, entry.value, timestamp));
+			}
+		}
+
+		if (batchLog.shouldLog()) {
+			batchLog.log("group={} requestId={} recorded={} failed={}", groupId, batch.requestId, recorded, failed.size());
+		}
+		DeviceManager.TemperatureBatchRecorded ack = new DeviceManager.TemperatureBatchRecorded(batch.requestId, recorded, failed);
+		if (recorded > 0 && journal != null && settings.journal().durability() == JournalSettings.Durability.FLUSH_BEFORE_ACK) {
+			// none of the batch is known to be durable then
+			journal.tell(new ReadingJournal.AckAfterFlush<>(batch.replyTo, ack,
+					new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.entries)));
+		} else {
+			batch.replyTo.tell(ack);
+		}
+		return this;
+	}
+
 	private DeviceGroup onDeviceList(DeviceManager.RequestDeviceList request) {
-		request.replyTo.tell(new DeviceManager.ReplyDeviceList(request.requestId, deviceIdToActor.keySet()));
+		if (deviceIdsView == null) {
+			Set<String> ids = new HashSet<>(deviceIdToActor.keySet());
+			ids.addAll(passivatedDevices.keySet());
+			ids.addAll(passivating.keySet());
+			deviceIdsView = Collections.unmodifiableSet(ids);
+		}
+		request.replyTo.tell(new DeviceManager.ReplyDeviceList(request.requestId, deviceIdsView));
 		return this;
 	}
 
 	private DeviceGroup onAllTemperatures(RequestAllTemperatures r) {
-		Map<String, ActorRef<Device.Command>> copyMap = new HashMap<>(this.deviceIdToActor);
+		if (settings.materializedReadings()) {
+			if (materializedView == null) {
+				materializedView = Collections.unmodifiableMap(new HashMap<>(materializedReadings));
+			}
+			r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, materializedView));
+			return this;
+		}
+
+		if (deviceIdToActor.isEmpty() && passivating.isEmpty()) {
+			r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, passivatedReadings()));
+			return this;
+		}
+
+		if (settings.queryCoalescing() && r.options.coalescable()) {
+			return coalesceAllTemperatures(r);
+		}
+
+		Duration timeout = r.options.timeout() != null ? r.options.timeout() : settings.queryTimeout();
+		if (queryAggregator != null && r.options.partialChunkSize() == 0) {
+			aggregate(r.requestId, r.replyTo, timeout, r.options.coverage());
+			return this;
+		}
+
+		getContext().spawnAnonymous(new DeviceGroupQuery.Builder()
+				.devices(queryTargets())
+				.knownReadings(passivatedReadings())
+				.requestId(r.requestId)
+				.requester(r.replyTo)
+				.timeout(timeout)
+				.partialChunkSize(r.options.partialChunkSize())
+				.coverage(r.options.coverage())
+				.build(), tiers.query());
+
+		return this;
+	}
+
+	private void aggregate(long requestId, ActorRef<DeviceManager.RespondAllTemperatures> replyTo, Duration timeout, double coverage) {
+		queryAggregator.tell(new DeviceGroupQueryAggregator.Query(requestId, replyTo, queryTargets(), passivatedReadings(), timeout,
+				coverage));
+	}
+
+	private DeviceGroup coalesceAllTemperatures(RequestAllTemperatures r) {
+		if (lastQueryResult != null && System.nanoTime() - lastQueryResultNanos <= settings.queryResultFreshness().toNanos()) {
+			r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, lastQueryResult));
+			return this;
+		}
+
+		if (waitingForQuery != null) {
+			waitingForQuery.add(r);
+			return this;
+		}
+
+		waitingForQuery = new ArrayList<>();
+		waitingForQuery.add(r);
+		startCoalescedQuery();
+		return this;
+	}
+
+	private void startCoalescedQuery() {
+		if (queryAggregator != null) {
+			aggregate(0L, coalescedResultAdapter, settings.queryTimeout(), 1.0);
+			return;
+		}
 
 		getContext().spawnAnonymous(new DeviceGroupQuery.Builder()
-				.deviceIdToActor(copyMap)
+				.devices(queryTargets())
+				.knownReadings(passivatedReadings())
+				.requestId(0L)
+				.requester(coalescedResultAdapter)
+				.timeout(settings.queryTimeout())
+				.build(), tiers.query());
+	}
+
+	// queries from here on get a DeviceGroupQuery each, the ones the aggregator was running are lost
+	// the aggregator answered the queries it was running before it stopped, only the waiting one is left
+	private DeviceGroup onQueryAggregatorTerminated() {
+		getContext().getLog().error("Query aggregator of group {} stopped, running queries with DeviceGroupQuery from now on", groupId);
+		queryAggregator = null;
+		if (waitingForQuery != null) {
+			startCoalescedQuery();
+		}
+		return this;
+	}
+
+	private DeviceGroup onExportGroupReadings(DeviceManager.ExportGroupReadings r) {
+		// the path comes from the client, only files in the snapshot directory may be written
+		Path directory = settings.snapshotDirectory();
+		if (directory == null) {
+			r.replyTo.tell(StatusReply.error("Group " + groupId + " has no snapshot directory to export to"));
+			return this;
+		}
+		directory = directory.toAbsolutePath().normalize();
+		Path path;
+		try {
+			// without a path the export replaces the file the group restores from
+			path = (r.path == null ? ColumnarReadings.fileFor(directory, groupId) : directory.resolve(r.path)).normalize();
+		} catch (InvalidPathException e) {
+			r.replyTo.tell(StatusReply.error("Invalid export path " + r.path + ": " + e.getMessage()));
+			return this;
+		}
+		if (!path.startsWith(directory) || path.equals(directory)) {
+			r.replyTo.tell(StatusReply.error("Export path " + r.path + " is outside of the snapshot directory"));
+			return this;
+		}
+
+		Map<String, ActorRef<Device.Command>> devices = queriedDevices();
+		ColumnarReadings knownRows = new ColumnarReadings(devices.size() + passivatedDevices.size());
+		for (Map.Entry<String, PassivatedDevice> entry : passivatedDevices.entrySet()) {
+			PassivatedDevice passivated = entry.getValue();
+			knownRows.add(entry.getKey(), passivated.hasReading ? passivated.temperature : Double.NaN, passivated.timestamp);
+		}
+
+		// writing the file blocks, keep it off the dispatcher the devices run on
+		getContext().spawnAnonymous(new DeviceGroupExport.Builder()
+				.deviceIdToActor(devices)
+				.knownRows(knownRows)
 				.requestId(r.requestId)
+				.path(path)
 				.requester(r.replyTo)
-				.timeout(Duration.ofSeconds(3))
-				.build());
+				.timeout(settings.queryTimeout())
+				.build(), DispatcherSelector.blocking());
+
+		return this;
+	}
+
+	// a passivating device still answers unless it stops first, then the query reports it as not available
+	private QueriedDevices queryTargets() {
+		if (queryTargetsView == null) {
+			QueriedDevices.Builder devices = new QueriedDevices.Builder(deviceIndex.ids(), deviceIdToActor.size() + passivating.size());
+			for (int index = 0; index < queryTargets.size(); index++) {
+				ActorRef<Device.Command> device = queryTargets.get(index);
+				if (device != null) {
+					devices.add(index, device);
+				}
+			}
+			queryTargetsView = devices.build();
+		}
+		return queryTargetsView;
+	}
+
+	// the same devices as queryTargets(), by id
+	private Map<String, ActorRef<Device.Command>> queriedDevices() {
+		Map<String, ActorRef<Device.Command>> devices = new HashMap<>(deviceIdToActor);
+		for (Map.Entry<String, Passivation> entry : passivating.entrySet()) {
+			devices.put(entry.getKey(), entry.getValue().device);
+		}
+		return devices;
+	}
+
+	private Map<String, DeviceManager.TemperatureReading> passivatedReadings() {
+		if (passivatedReadingsView == null) {
+			Map<String, DeviceManager.TemperatureReading> readings = new HashMap<>();
+			for (Map.Entry<String, PassivatedDevice> entry : passivatedDevices.entrySet()) {
+				readings.put(entry.getKey(), entry.getValue().reading());
+			}
+			passivatedReadingsView = Collections.unmodifiableMap(readings);
+		}
+		return passivatedReadingsView;
+	}
+
+	// one fan-out answers every requester that joined while it ran, each gets its own requestId back
+	private DeviceGroup onCoalescedResult(WrappedCoalescedResult result) {
+		Map<String, DeviceManager.TemperatureReading> temperatures = result.response.temperatures instanceof TemperatureReadings
+				? result.response.temperatures
+				: Collections.unmodifiableMap(result.response.temperatures);
+		for (RequestAllTemperatures r : waitingForQuery) {
+			r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, temperatures));
+		}
+		waitingForQuery = null;
+
+		if (!settings.queryResultFreshness().isZero()) {
+			lastQueryResult = temperatures;
+			lastQueryResultNanos = System.nanoTime();
+		}
+		return this;
+	}
+
+	private DeviceGroup onDeviceTemperatureChanged(DeviceTemperatureChanged changed) {
+		if (deviceIdToActor.containsKey(changed.deviceId) || passivating.containsKey(changed.deviceId)) {
+			updateMaterializedReading(changed.deviceId, new DeviceManager.Temperature(changed.value));
+		}
+		return this;
+	}
 
+	// replayed after passivation, a passivated device is spawned again for it, one that stopped for good doesn't get it
+	private DeviceGroup onForwardToDevice(ForwardToDevice forward) {
+		ActorRef<Device.Command> deviceRef = deviceIdToActor.get(forward.deviceId);
+		Passivation passivation = passivating.get(forward.deviceId);
+		if (deviceRef != null) {
+			deviceRef.tell(forward.command);
+		} else if (passivation != null) {
+			passivation.buffered.add(forward);
+		} else if (passivatedDevices.containsKey(forward.deviceId)) {
+			respawn(forward.deviceId).tell(forward.command);
+		} else {
+			getContext().getLog().debug("Dropping {} for stopped device {}", forward.command.getClass().getSimpleName(), forward.deviceId);
+		}
 		return this;
 	}
 
+	/**
+	 * A message sent through a ref of a device incarnation that has stopped. Writes fail with an error so the
+	 * client registers again for the current ref, reads are answered from wherever the reading is now.
+	 */
+	private DeviceGroup onDeadDeviceLetter(DeadDeviceLetter letter) {
+		String deviceId = deviceIdOf(letter.deadLetter.recipient());
+		if (deviceId == null) {
+			return this;
+		}
+
+		Object message = letter.deadLetter.message();
+		ActorRef<Device.Command> deviceRef = deviceIdToActor.get(deviceId);
+		if (message instanceof Device.RecordTemperature) {
+			Device.RecordTemperature r = (Device.RecordTemperature) message;
+			r.replyTo.tell(new Device.TemperatureRecorded(r.requestId,
+					"Device " + deviceId + " was passivated, register it again for its current ref"));
+		} else if (message instanceof Device.ReadTemperature && deviceRef != null) {
+			deviceRef.tell((Device.ReadTemperature) message);
+		} else if (message instanceof Device.ReadTemperature && passivatedDevices.containsKey(deviceId)) {
+			Device.ReadTemperature r = (Device.ReadTemperature) message;
+			PassivatedDevice passivated = passivatedDevices.get(deviceId);
+			if (r.primitiveOnly) {
+				r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId, passivated.hasReading, passivated.temperature,
+						passivated.timestamp));
+			} else {
+				Optional<Double> value = passivated.hasReading ? Optional.of(passivated.temperature) : Optional.empty();
+				r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId, value));
+			}
+		} else {
+			getContext().getLog().debug("Dropping {} sent to a stopped incarnation of device {}", message.getClass().getSimpleName(),
+					deviceId);
+		}
+		return this;
+	}
+
+	// devices are our children named device-<id>, or device-<id>-<n> once respawned
+	private String deviceIdOf(akka.actor.ActorRef recipient) {
+		if (!getContext().getSelf().path().equals(recipient.path().parent())) {
+			return null;
+		}
+		String name = recipient.path().name();
+		if (!name.startsWith("device-")) {
+			return null;
+		}
+		String id = name.substring("device-".length());
+		if (deviceIndex.indexOf(id) >= 0) {
+			return id;
+		}
+		int suffix = id.lastIndexOf('-');
+		if (suffix > 0 && deviceIndex.indexOf(id.substring(0, suffix)) >= 0) {
+			return id.substring(0, suffix);
+		}
+		return null;
+	}
+
+	private DeviceGroup onDeviceIdle(DeviceIdle idle) {
+		// a device that was respawned or is already passivating may still report the old incarnation idle
+		if (!idle.device.equals(deviceIdToActor.get(idle.deviceId))) {
+			return this;
+		}
+
+		getContext().getLog().debug("Passivating idle device {}", idle.deviceId);
+		deviceIdToActor.remove(idle.deviceId);
+		// still watched, if it stops without DevicePassivated onTerminated replays what was buffered for it
+		passivating.put(idle.deviceId, new Passivation(idle.device));
+		// anything the group sent before reaches the device ahead of this
+		idle.device.tell(Device.Passivate.INSTANCE);
+		return this;
+	}
+
+	private DeviceGroup onDevicePassivated(DevicePassivated passivated) {
+		Passivation passivation = passivating.remove(passivated.deviceId);
+		if (passivation == null) {
+			return this;
+		}
+		getContext().unwatch(passivation.device);
+		int index = deviceIndex.indexOf(passivated.deviceId);
+		setQueryTarget(index, null);
+		if (queryAggregator != null) {
+			queryAggregator.tell(new DeviceGroupQueryAggregator.DeviceGone(index));
+		}
+
+		Device.AckPolicy ownAckPolicy = devicesWithOwnAckPolicy.contains(passivated.deviceId) ? passivated.ackPolicy : null;
+		passivatedDevices.put(passivated.deviceId,
+				new PassivatedDevice(passivated.hasReading, passivated.temperature, passivated.timestamp, ownAckPolicy));
+		passivatedReadingsView = null;
+
+		// whatever arrived in the meantime brings the device straight back, in the order it came in
+		for (Command buffered : passivation.buffered) {
+			if (buffered instanceof DeviceManager.RequestTrackDevice) {
+				onTrackDevice((DeviceManager.RequestTrackDevice) buffered);
+			} else if (buffered instanceof DeviceManager.BulkTrackDevices) {
+				onBulkTrackDevices((DeviceManager.BulkTrackDevices) buffered);
+			} else {
+				onForwardToDevice((ForwardToDevice) buffered);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Live devices push their current reading when subscribed, passivated ones get it pushed from here and
+	 * push it again once they come back. Devices that are passivating are subscribed when they respawn.
+	 */
+	private DeviceGroup onSubscribeTemperatures(DeviceManager.SubscribeTemperatures r) {
+		Subscription previous = removeSubscription(r.subscriber);
+		if (previous == null) {
+			getContext().watchWith(r.subscriber, new SubscriberTerminated(r.subscriber));
+		} else if (previous.deviceId == null ? r.deviceId != null : !previous.deviceId.equals(r.deviceId)) {
+			tellDevices(previous, new Device.UnsubscribeTemperature(r.subscriber));
+		}
+
+		Subscription subscription = new Subscription(r.deviceId, r.subscriber, r.settings);
+		subscriptions.add(subscription);
+		tellDevices(subscription, new Device.SubscribeTemperature(r.subscriber, r.settings, false));
+		for (Map.Entry<String, PassivatedDevice> entry : passivatedDevices.entrySet()) {
+			PassivatedDevice passivated = entry.getValue();
+			if (passivated.hasReading && subscription.matches(entry.getKey())) {
+				r.subscriber.tell(new Device.TemperatureUpdate(groupId, entry.getKey(), passivated.temperature, passivated.timestamp));
+			}
+		}
+		return this;
+	}
+
+	private DeviceGroup unsubscribe(ActorRef<Device.TemperatureUpdate> subscriber) {
+		Subscription subscription = removeSubscription(subscriber);
+		if (subscription != null) {
+			getContext().unwatch(subscriber);
+			tellDevices(subscription, new Device.UnsubscribeTemperature(subscriber));
+		}
+		return this;
+	}
+
+	private Subscription removeSubscription(ActorRef<Device.TemperatureUpdate> subscriber) {
+		for (int i = 0; i < subscriptions.size(); i++) {
+			if (subscriptions.get(i).subscriber.equals(subscriber)) {
+				return subscriptions.remove(i);
+			}
+		}
+		return null;
+	}
+
+	private void tellDevices(Subscription subscription, Device.Command command) {
+		if (subscription.deviceId != null) {
+			ActorRef<Device.Command> device = deviceIdToActor.get(subscription.deviceId);
+			if (device != null) {
+				device.tell(command);
+			}
+			return;
+		}
+		for (ActorRef<Device.Command> device : deviceIdToActor.values()) {
+			device.tell(command);
+		}
+	}
+
+	// a group that can't journal anymore can't keep its acks' promise, it stops and starts over with a new journal
+	private Behavior<Command> onJournalFailed() {
+		getContext().getLog().error("Reading journal of group {} failed, stopping the group", groupId);
+		return onStop();
+	}
+
+	private Behavior<Command> onJournalTerminated() {
+		getContext().getLog().error("Reading journal of group {} stopped, stopping the group", groupId);
+		return Behaviors.stopped();
+	}
+
+	private Behavior<Command> onStop() {
+		getContext().getLog().info("Stopping device group {}", groupId);
+		for (ActorRef<Device.Command> device : deviceIdToActor.values()) {
+			getContext().stop(device);
+		}
+		return stopping();
+	}
+
+	// waits for the devices to stop, every Append they sent is in the journal's mailbox by then, ahead of Stop
+	private Behavior<Command> stopping() {
+		if (!deviceIdToActor.isEmpty() || !passivating.isEmpty()) {
+			return Behaviors.receive(Command.class)
+				.onMessage(DeviceTerminated.class, terminated -> {
+					Passivation passivation = passivating.get(terminated.deviceId);
+					// nothing buffered for it is replayed now
+					if (passivation != null && passivation.device.equals(terminated.device)) {
+						passivating.remove(terminated.deviceId);
+					} else {
+						onTerminated(terminated);
+					}
+					return stopping();
+				})
+				.onMessage(DevicePassivated.class, passivated -> {
+					passivating.remove(passivated.deviceId);
+					return stopping();
+				})
+				.onMessage(JournalTerminated.class, terminated -> onJournalTerminated())
+				.build();
+		}
+
+		if (journal == null) {
+			return Behaviors.stopped();
+		}
+		journal.tell(ReadingJournal.Stop.INSTANCE);
+		return Behaviors.receive(Command.class)
+			.onMessage(JournalTerminated.class, terminated -> Behaviors.stopped())
+			.build();
+	}
+
+	private void updateMaterializedReading(String deviceId, DeviceManager.TemperatureReading reading) {
+		materializedReadings.put(deviceId, reading);
+		materializedView = null;
+	}
+
 	private DeviceGroup onTerminated(DeviceTerminated device) {
-		getContext().getLog().info("Device actor {} has been terminated", device.deviceId);
+		Passivation passivation = passivating.get(device.deviceId);
+		if (passivation != null && passivation.device.equals(device.device)) {
+			// stopped before it handed over its reading, it's kept as passivated without one
+			getContext().getLog().warn("Device actor {} stopped while passivating", device.deviceId);
+			return onDevicePassivated(new DevicePassivated(device.deviceId, false, Double.NaN, 0L, null));
+		}
+		// an earlier incarnation of a respawned device
+		if (!device.device.equals(deviceIdToActor.get(device.deviceId))) {
+			return this;
+		}
+
+		getContext().getLog().debug("Device actor {} has been terminated", device.deviceId);
 		deviceIdToActor.remove(device.deviceId);
+		devicesWithOwnAckPolicy.remove(device.deviceId);
+		lastQueryResult = null;
+		if (materializedReadings.remove(device.deviceId) != null) {
+			materializedView = null;
+		}
+		int index = deviceIndex.indexOf(device.deviceId);
+		setQueryTarget(index, null);
+		if (queryAggregator != null) {
+			queryAggregator.tell(new DeviceGroupQueryAggregator.DeviceGone(index));
+		}
 		return this;
 	}
 
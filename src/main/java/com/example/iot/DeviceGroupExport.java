@@ -0,0 +1,165 @@
+package com.example.iot;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.pattern.StatusReply;
+
+/**
+ * Collects the reading and timestamp of every device of a group and writes them as ColumnarReadings.
+ * Devices that stop are written without a reading, so the file still lists them. If a device doesn't answer
+ * in time the export fails and leaves the file alone, writing it without the reading would lose it on restore.
+ * Spawned on the blocking dispatcher, writing the file blocks.
+ */
+public class DeviceGroupExport extends AbstractBehavior<DeviceGroupExport.Command> {
+	private final long requestId;
+	private final Path path;
+	private final ActorRef<StatusReply<DeviceManager.GroupReadingsExported>> requester;
+	private final ColumnarReadings rows;
+	private final Set<String> stillWaiting;
+
+	private static enum CollectionTimeout implements Command {
+		INSTANCE
+	}
+
+	interface Command {}
+
+	// factory method
+	public static final class Builder {
+		private Map<String, ActorRef<Device.Command>> deviceIdToActor;
+		private ColumnarReadings knownRows;
+		private long requestId;
+		private Path path;
+		private ActorRef<StatusReply<DeviceManager.GroupReadingsExported>> requester;
+		private Duration timeout;
+
+		public Builder() {}
+
+		public Builder deviceIdToActor(Map<String, ActorRef<Device.Command>> refs) {
+			deviceIdToActor = refs;
+			return this;
+		}
+		// rows of devices without a running actor, e.g. passivated ones
+		public Builder knownRows(ColumnarReadings value) {
+			knownRows = value;
+			return this;
+		}
+		public Builder requestId(long value) {
+			requestId = value;
+			return this;
+		}
+		public Builder path(Path value) {
+			path = value;
+			return this;
+		}
+		public Builder requester(ActorRef<StatusReply<DeviceManager.GroupReadingsExported>> ref) {
+			requester = ref;
+			return this;
+		}
+		public Builder timeout(Duration value) {
+			timeout = value;
+			return this;
+		}
+
+		public Behavior<Command> build() {
+			// a group without devices has nothing to wait for
+			return Behaviors.setup(context -> Behaviors.withTimers(timers -> new DeviceGroupExport(this, context, timers).writeWhenAllCollected()));
+		}
+	}
+
+	private DeviceGroupExport(Builder builder, ActorContext<Command> context, TimerScheduler<Command> timers) {
+		super(context);
+		this.requestId = builder.requestId;
+		this.path = builder.path;
+		this.requester = builder.requester;
+		this.rows = builder.knownRows;
+		this.stillWaiting = new HashSet<>(builder.deviceIdToActor.keySet());
+
+		timers.startSingleTimer(CollectionTimeout.INSTANCE, builder.timeout);
+
+		ActorRef<Device.RespondTemperature> respondTemperatureAdapter = context.messageAdapter(Device.RespondTemperature.class,
+				WrappedRespondTemperature::new);
+
+		for (Map.Entry<String, ActorRef<Device.Command>> entry : builder.deviceIdToActor.entrySet()) {
+			context.watchWith(entry.getValue(), new DeviceTerminated(entry.getKey()));
+			entry.getValue().tell(new Device.ReadTemperature(0L, respondTemperatureAdapter, true));
+		}
+	}
+
+	static class WrappedRespondTemperature implements Command {
+		final Device.RespondTemperature response;
+
+		WrappedRespondTemperature(Device.RespondTemperature response) {
+			this.response = response;
+		}
+	}
+
+	private static class DeviceTerminated implements Command {
+		final String deviceId;
+
+		private DeviceTerminated(String deviceId) {
+			this.deviceId = deviceId;
+		}
+	}
+
+	@Override
+	public Receive<Command> createReceive() {
+		return newReceiveBuilder()
+			.onMessage(WrappedRespondTemperature.class, this::onRespondTemperature)
+			.onMessage(DeviceTerminated.class, this::onDeviceTerminated)
+			.onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+			.build();
+	}
+
+	private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
+		Device.RespondTemperature response = r.response;
+		if (stillWaiting.remove(response.deviceId)) {
+			if (response.hasValue) {
+				rows.add(response.deviceId, response.temperature, response.timestamp);
+			} else {
+				rows.add(response.deviceId, Double.NaN, 0L);
+			}
+		}
+		return writeWhenAllCollected();
+	}
+
+	private Behavior<Command> onDeviceTerminated(DeviceTerminated terminated) {
+		if (stillWaiting.remove(terminated.deviceId)) {
+			rows.add(terminated.deviceId, Double.NaN, 0L);
+		}
+		return writeWhenAllCollected();
+	}
+
+	private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+		getContext().getLog().warn("Not exporting readings to {}, {} devices didn't answer in time", path, stillWaiting.size());
+		requester.tell(StatusReply.error("Exporting readings to " + path + " failed: " + stillWaiting.size()
+				+ " devices didn't answer in time"));
+		return Behaviors.stopped();
+	}
+
+	private Behavior<Command> writeWhenAllCollected() {
+		if (!stillWaiting.isEmpty()) {
+			return this;
+		}
+
+		try {
+			rows.write(path);
+			requester.tell(StatusReply.success(new DeviceManager.GroupReadingsExported(requestId, rows.size())));
+		} catch (IOException | RuntimeException e) {
+			getContext().getLog().warn("Exporting readings to {} failed", path, e);
+			requester.tell(StatusReply.error("Exporting readings to " + path + " failed: " + e.getMessage()));
+		}
+		return Behaviors.stopped();
+	}
+}
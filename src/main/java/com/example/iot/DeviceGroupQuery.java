@@ -1,10 +1,12 @@
 package com.example.iot;
 
 import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
 
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
@@ -17,9 +19,24 @@ import akka.actor.typed.javadsl.TimerScheduler;
 public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command> {
 	private final long requestId;
 	private final ActorRef<DeviceManager.RespondAllTemperatures> requester;
-	private final Set<String> stillWaiting;
-	private Map<String, DeviceManager.TemperatureReading> repliesSoFar;
-
+	private final QueriedDevices devices;
+	// by slot with room for the known readings after them, status 0 while the device hasn't answered
+	private final byte[] statuses;
+	private final double[] values;
+	private int stillWaiting;
+	// devices that aren't queried, sent with the first reply
+	private Map<String, DeviceManager.TemperatureReading> knownReadings;
+	// slots answered since the last partial result, only used when results are streamed
+	private final int[] unsent;
+	private int unsentCount;
+	private final int partialChunkSize;
+	// number of devices that must answer before the query finishes early, see QueryOptions.withCoverage
+	private final int requiredReplies;
+	private final int deviceCount;
+	private final long startNanos = System.nanoTime();
+	private final Histogram completionMicros;
+	private final LongAdder timedOut;
+	private final LongAdder notAvailable;
 
 	private static enum CollectionTimeout implements Command {
 		INSTANCE
@@ -29,15 +46,28 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 
 	// factory method
 	public static final class Builder {
-		private Map<String, ActorRef<Device.Command>> deviceIdToActor;
+		private QueriedDevices devices;
+		private Map<String, DeviceManager.TemperatureReading> knownReadings = new HashMap<>();
 		private long requestId;
 		private ActorRef<DeviceManager.RespondAllTemperatures> requester;
 		private Duration timeout;
+		private int partialChunkSize;
+		private double coverage = 1.0;
 
 		public Builder() {}
 
 		public Builder deviceIdToActor(Map<String, ActorRef<Device.Command>> ref) {
-			deviceIdToActor = ref;
+			devices = QueriedDevices.of(ref);
+			return this;
+		}
+		// the devices by their index in the group, see DeviceIndex
+		Builder devices(QueriedDevices value) {
+			devices = value;
+			return this;
+		}
+		// readings of devices without a running actor, e.g. passivated ones, counted as already answered
+		public Builder knownReadings(Map<String, DeviceManager.TemperatureReading> value) {
+			knownReadings = value;
 			return this;
 		}
 		public Builder requestId(long value) {
@@ -52,9 +82,18 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 			timeout = value;
 			return this;
 		}
+		public Builder partialChunkSize(int value) {
+			partialChunkSize = value;
+			return this;
+		}
+		public Builder coverage(double value) {
+			coverage = value;
+			return this;
+		}
 
 		public Behavior<Command> build() {
-			return Behaviors.setup(context -> Behaviors.withTimers(timers -> new DeviceGroupQuery(this, context, timers)));
+			return MetricsInterceptor.instrument(DeviceGroupQuery.class, Command.class,
+					Behaviors.setup(context -> Behaviors.withTimers(timers -> new DeviceGroupQuery(this, context, timers))));
 		}
 	}
 
@@ -62,19 +101,32 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 		super(context);
 		this.requestId = builder.requestId;
 		this.requester = builder.requester;
-		this.repliesSoFar = new HashMap<>();	
+		this.devices = builder.devices;
+		this.statuses = new byte[devices.size() + builder.knownReadings.size()];
+		this.values = new double[statuses.length];
+		this.stillWaiting = devices.size();
+		this.knownReadings = builder.knownReadings;
+		this.partialChunkSize = builder.partialChunkSize;
+		this.unsent = partialChunkSize > 0 ? new int[devices.size()] : null;
+		this.deviceCount = devices.size() + builder.knownReadings.size();
+		this.requiredReplies = (int) Math.ceil(builder.coverage * deviceCount);
+
+		IotMetrics metrics = IotMetrics.get(context.getSystem());
+		metrics.histogram("query.fanout").recordValue(devices.size());
+		this.completionMicros = metrics.histogram("query.completion-micros");
+		this.timedOut = metrics.counter("query.devices.timed-out");
+		this.notAvailable = metrics.counter("query.devices.not-available");
 
 		timers.startSingleTimer(CollectionTimeout.INSTANCE, builder.timeout);
 
 		ActorRef<Device.RespondTemperature> respondTemperatureAdapter = context.messageAdapter(Device.RespondTemperature.class, 
 				WrappedRespondTemperature::new);
 
-		for (Map.Entry<String, ActorRef<Device.Command>> entry: builder.deviceIdToActor.entrySet()) {
-			context.watchWith(entry.getValue(), new DeviceTerminated(entry.getKey()));
-			entry.getValue().tell(new Device.ReadTemperature(0L, respondTemperatureAdapter));
+		// the slot goes out as requestId, so a reply finds its slot without a lookup by device id
+		for (int slot = 0; slot < devices.size(); slot++) {
+			context.watchWith(devices.device(slot), new DeviceTerminated(slot));
+			devices.device(slot).tell(new Device.ReadTemperature(slot, respondTemperatureAdapter, true));
 		}
-
-		stillWaiting = new HashSet<>(builder.deviceIdToActor.keySet());
 	}
 
 
@@ -88,10 +140,10 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 	}
 
 	private static class DeviceTerminated implements Command {
-    final String deviceId;
+    final int slot;
 
-    private DeviceTerminated(String deviceId) {
-      this.deviceId = deviceId;
+    private DeviceTerminated(int slot) {
+      this.slot = slot;
     }
   }
 
@@ -105,41 +157,80 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 	}
 
  private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
-		DeviceManager.TemperatureReading reading =
-				r.response
-						.value
-						.map(v -> (DeviceManager.TemperatureReading) new DeviceManager.Temperature(v))
-						.orElse(DeviceManager.TemperatureNotAvailable.INSTANCE);
+		long slot = r.response.requestId;
+		if (slot < 0 || slot >= devices.size()) {
+			return this;
+		}
 
-		String deviceId = r.response.deviceId;
-		repliesSoFar.put(deviceId, reading);
-		stillWaiting.remove(deviceId);
+		if (r.response.hasValue) {
+			answer((int) slot, TemperatureReadings.TEMPERATURE, r.response.temperature);
+		} else {
+			answer((int) slot, TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, Double.NaN);
+		}
 
 		return respondWhenAllCollected();
 	}
 
 	private Behavior<Command> onDeviceTerminated(DeviceTerminated terminated) {
-		if (stillWaiting.contains(terminated.deviceId)) {
-			repliesSoFar.put(terminated.deviceId, DeviceManager.DeviceNotAvailable.INSTANCE);
-			stillWaiting.remove(terminated.deviceId);
+		if (statuses[terminated.slot] == 0) {
+			answer(terminated.slot, TemperatureReadings.DEVICE_NOT_AVAILABLE, Double.NaN);
+			notAvailable.increment();
 		}
 		return respondWhenAllCollected();
 	}
 
 	private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
-		for (String deviceId : stillWaiting) {
-			repliesSoFar.put(deviceId, DeviceManager.DeviceTimedOut.INSTANCE);
-		}
-		stillWaiting.clear();
+		timeOutStillWaiting();
 		return respondWhenAllCollected();
 	}
 
+	private void answer(int slot, byte status, double value) {
+		if (statuses[slot] == 0) {
+			stillWaiting--;
+			if (unsent != null) {
+				unsent[unsentCount++] = slot;
+			}
+		}
+		statuses[slot] = status;
+		values[slot] = value;
+	}
+
+	private void timeOutStillWaiting() {
+		timedOut.add(stillWaiting);
+		for (int slot = 0; slot < devices.size() && stillWaiting > 0; slot++) {
+			if (statuses[slot] == 0) {
+				answer(slot, TemperatureReadings.DEVICE_TIMED_OUT, Double.NaN);
+			}
+		}
+	}
+
 	private Behavior<Command> respondWhenAllCollected() {
-		if (stillWaiting.isEmpty()) {
-			requester.tell(new DeviceManager.RespondAllTemperatures(requestId, repliesSoFar));
+		if (stillWaiting > 0 && deviceCount - stillWaiting >= requiredReplies) {
+			timeOutStillWaiting();
+		}
+
+		if (stillWaiting == 0) {
+			requester.tell(new DeviceManager.RespondAllTemperatures(requestId, unsent != null ? unsentReplies() 
+					: new TemperatureReadings(devices, statuses, values, knownReadings), true));
+			completionMicros.recordValue((System.nanoTime() - startNanos) / 1000);
 			return Behaviors.stopped();
 		}
 
+		if (unsent != null && knownReadings.size() + unsentCount >= partialChunkSize) {
+			requester.tell(new DeviceManager.RespondAllTemperatures(requestId, unsentReplies(), false));
+		}
+
 		return this;
 	}
+
+	// replies not yet sent to the requester, taken out of the unsent list
+	private Map<String, DeviceManager.TemperatureReading> unsentReplies() {
+		Map<String, DeviceManager.TemperatureReading> replies = new HashMap<>(knownReadings);
+		for (int i = 0; i < unsentCount; i++) {
+			replies.put(devices.deviceId(unsent[i]), TemperatureReadings.reading(statuses[unsent[i]], values[unsent[i]]));
+		}
+		knownReadings = Collections.emptyMap();
+		unsentCount = 0;
+		return replies;
+	}
 }
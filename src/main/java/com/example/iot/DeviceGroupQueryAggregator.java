@@ -0,0 +1,285 @@
+package com.example.iot;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+/**
+ * Runs all RequestAllTemperatures of one group instead of a DeviceGroupQuery actor per request,
+ * see GroupSettings.withSharedQueryAggregator. Answers the same way DeviceGroupQuery does.
+ * <p>
+ * Every query gets an id, the ReadTemperature sent to the device in slot i carries (id << 24 | i) as requestId,
+ * so a reply finds its query and slot without any lookup by device id, see QueriedDevices. In-flight queries live in an array
+ * indexed by the low bits of their id, and one timer is kept set to the earliest deadline.
+ * Devices aren't watched per query, the group reports stopped and passivated devices with DeviceGone.
+ * Queries too big for the requestId encoding run in a DeviceGroupQuery of their own, and if the aggregator
+ * stops, e.g. after a failure, it answers every query still in flight with what it has.
+ */
+public class DeviceGroupQueryAggregator extends AbstractBehavior<DeviceGroupQueryAggregator.Command> {
+	private static final int INDEX_BITS = 24;
+	static final int MAX_DEVICES = 1 << INDEX_BITS;
+
+	private final TimerScheduler<Command> timers;
+	private final ActorRef<Device.RespondTemperature> respondTemperatureAdapter;
+	private InFlight[] inFlight = new InFlight[16];
+	private long nextQueryId = 1L;
+	// deadline the timer is set for, Long.MAX_VALUE when it isn't running
+	private long timerDeadlineNanos = Long.MAX_VALUE;
+	private final Histogram fanOut;
+	private final Histogram completionMicros;
+	private final LongAdder timedOut;
+	private final LongAdder notAvailable;
+
+	interface Command {}
+
+	static final class Query implements Command {
+		final long requestId;
+		final ActorRef<DeviceManager.RespondAllTemperatures> replyTo;
+		final QueriedDevices devices;
+		// readings of devices without a running actor, counted as already answered
+		final Map<String, DeviceManager.TemperatureReading> knownReadings;
+		final Duration timeout;
+		final double coverage;
+
+		Query(long requestId, ActorRef<DeviceManager.RespondAllTemperatures> replyTo, QueriedDevices devices,
+				Map<String, DeviceManager.TemperatureReading> knownReadings, Duration timeout, double coverage) {
+			this.requestId = requestId;
+			this.replyTo = replyTo;
+			this.devices = devices;
+			this.knownReadings = knownReadings;
+			this.timeout = timeout;
+			this.coverage = coverage;
+		}
+	}
+
+	// the device stopped or passivated, queries still waiting for it report it as not available
+	static final class DeviceGone implements Command {
+		// in the group's DeviceIndex
+		final int index;
+
+		DeviceGone(int index) {
+			this.index = index;
+		}
+	}
+
+	private static final class WrappedRespondTemperature implements Command {
+		final Device.RespondTemperature response;
+
+		WrappedRespondTemperature(Device.RespondTemperature response) {
+			this.response = response;
+		}
+	}
+
+	private static enum DeadlineReached implements Command {
+		INSTANCE
+	}
+
+	private static final class InFlight {
+		final long id;
+		final Query query;
+		final QueriedDevices devices;
+		// by slot with room for the known readings, status 0 while the device hasn't answered
+		final byte[] statuses;
+		final double[] values;
+		final int required;
+		final long startNanos;
+		final long deadlineNanos;
+		int answered;
+
+		InFlight(long id, Query query, int required, long startNanos) {
+			this.id = id;
+			this.query = query;
+			this.devices = query.devices;
+			this.statuses = new byte[devices.size() + query.knownReadings.size()];
+			this.values = new double[statuses.length];
+			this.required = required;
+			this.startNanos = startNanos;
+			this.deadlineNanos = startNanos + query.timeout.toNanos();
+		}
+	}
+
+	// factory method
+	public static Behavior<Command> create() {
+		return MetricsInterceptor.instrument(DeviceGroupQueryAggregator.class, Command.class,
+				Behaviors.setup(context -> Behaviors.withTimers(timers -> new DeviceGroupQueryAggregator(context, timers))));
+	}
+
+	// private constructor
+	private DeviceGroupQueryAggregator(ActorContext<Command> context, TimerScheduler<Command> timers) {
+		super(context);
+		this.timers = timers;
+		this.respondTemperatureAdapter = context.messageAdapter(Device.RespondTemperature.class, WrappedRespondTemperature::new);
+
+		IotMetrics metrics = IotMetrics.get(context.getSystem());
+		this.fanOut = metrics.histogram("query.fanout");
+		this.completionMicros = metrics.histogram("query.completion-micros");
+		this.timedOut = metrics.counter("query.devices.timed-out");
+		this.notAvailable = metrics.counter("query.devices.not-available");
+	}
+
+	@Override
+	public Receive<Command> createReceive() {
+		return newReceiveBuilder()
+			.onMessage(Query.class, this::onQuery)
+			.onMessage(WrappedRespondTemperature.class, this::onRespondTemperature)
+			.onMessage(DeviceGone.class, this::onDeviceGone)
+			.onMessage(DeadlineReached.class, deadline -> onDeadlineReached())
+			.onSignal(PostStop.class, signal -> onPostStop())
+			.build();
+	}
+
+	private Behavior<Command> onQuery(Query query) {
+		// the slot wouldn't fit into the requestId, a query actor of its own doesn't need that
+		if (query.devices.size() >= MAX_DEVICES) {
+			getContext().spawnAnonymous(new DeviceGroupQuery.Builder()
+					.devices(query.devices)
+					.knownReadings(query.knownReadings)
+					.requestId(query.requestId)
+					.requester(query.replyTo)
+					.timeout(query.timeout)
+					.coverage(query.coverage)
+					.build());
+			return this;
+		}
+
+		long now = System.nanoTime();
+		int deviceCount = query.devices.size() + query.knownReadings.size();
+		int required = (int) Math.ceil(query.coverage * deviceCount) - query.knownReadings.size();
+		InFlight q = new InFlight(nextQueryId++, query, Math.min(required, query.devices.size()), now);
+		fanOut.recordValue(q.devices.size());
+
+		if (q.answered >= q.required) {
+			complete(q);
+			return this;
+		}
+
+		add(q);
+		for (int slot = 0; slot < q.devices.size(); slot++) {
+			q.devices.device(slot).tell(new Device.ReadTemperature(q.id << INDEX_BITS | slot, respondTemperatureAdapter, true));
+		}
+
+		if (q.deadlineNanos < timerDeadlineNanos) {
+			timerDeadlineNanos = q.deadlineNanos;
+			timers.startSingleTimer(DeadlineReached.INSTANCE, Duration.ofNanos(q.deadlineNanos - now));
+		}
+		return this;
+	}
+
+	private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
+		Device.RespondTemperature response = r.response;
+		InFlight q = find(response.requestId >>> INDEX_BITS);
+		// answers of queries that already finished
+		if (q == null) {
+			return this;
+		}
+
+		int index = (int) (response.requestId & (MAX_DEVICES - 1));
+		if (q.statuses[index] == 0) {
+			q.statuses[index] = response.hasValue ? TemperatureReadings.TEMPERATURE : TemperatureReadings.TEMPERATURE_NOT_AVAILABLE;
+			q.values[index] = response.temperature;
+			answered(q);
+		}
+		return this;
+	}
+
+	private Behavior<Command> onDeviceGone(DeviceGone gone) {
+		for (InFlight q : inFlight) {
+			if (q == null) {
+				continue;
+			}
+			int slot = q.devices.slotOfIndex(gone.index);
+			if (slot >= 0 && q.statuses[slot] == 0) {
+				q.statuses[slot] = TemperatureReadings.DEVICE_NOT_AVAILABLE;
+				q.values[slot] = Double.NaN;
+				notAvailable.increment();
+				answered(q);
+			}
+		}
+		return this;
+	}
+
+	private Behavior<Command> onDeadlineReached() {
+		long now = System.nanoTime();
+		long nextDeadline = Long.MAX_VALUE;
+		for (InFlight q : inFlight) {
+			if (q == null) {
+				continue;
+			}
+			if (q.deadlineNanos <= now) {
+				complete(q);
+			} else {
+				nextDeadline = Math.min(nextDeadline, q.deadlineNanos);
+			}
+		}
+
+		timerDeadlineNanos = nextDeadline;
+		if (nextDeadline != Long.MAX_VALUE) {
+			timers.startSingleTimer(DeadlineReached.INSTANCE, Duration.ofNanos(nextDeadline - now));
+		}
+		return this;
+	}
+
+	// nobody would answer the requesters otherwise, devices that haven't answered are reported as timed out
+	private Behavior<Command> onPostStop() {
+		for (InFlight q : inFlight) {
+			if (q != null) {
+				complete(q);
+			}
+		}
+		return this;
+	}
+
+	private void answered(InFlight q) {
+		if (++q.answered >= q.required) {
+			complete(q);
+		}
+	}
+
+	// devices that haven't answered yet are reported as timed out
+	private void complete(InFlight q) {
+		timedOut.add(q.devices.size() - q.answered);
+		TemperatureReadings result = new TemperatureReadings(q.devices, q.statuses, q.values, q.query.knownReadings);
+		q.query.replyTo.tell(new DeviceManager.RespondAllTemperatures(q.query.requestId, result, true));
+		completionMicros.recordValue((System.nanoTime() - q.startNanos) / 1000);
+		remove(q);
+	}
+
+	// --[IN-FLIGHT TABLE]-- //
+
+	private InFlight find(long id) {
+		InFlight q = inFlight[(int) (id & (inFlight.length - 1))];
+		return q != null && q.id == id ? q : null;
+	}
+
+	private void add(InFlight q) {
+		// ids are handed out in order, so a slot is only taken if more queries than slots are running
+		while (inFlight[(int) (q.id & (inFlight.length - 1))] != null) {
+			InFlight[] grown = new InFlight[inFlight.length * 2];
+			for (InFlight running : inFlight) {
+				if (running != null) {
+					grown[(int) (running.id & (grown.length - 1))] = running;
+				}
+			}
+			inFlight = grown;
+		}
+		inFlight[(int) (q.id & (inFlight.length - 1))] = q;
+	}
+
+	private void remove(InFlight q) {
+		int slot = (int) (q.id & (inFlight.length - 1));
+		if (inFlight[slot] == q) {
+			inFlight[slot] = null;
+		}
+	}
+}
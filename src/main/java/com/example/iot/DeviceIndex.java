@@ -0,0 +1,81 @@
+package com.example.iot;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of the device ids a group has seen, each gets a dense index 0, 1, 2, ... that never changes.
+ * The group keeps the instance returned by id(index) as its one copy of the id, and queries refer to
+ * devices by index instead of hashing ids, see QueriedDevices.
+ * <p>
+ * Only the owning actor adds to it. The array returned by ids() may be handed to other actors with a
+ * message: entries below size() at that point never change, later ids are only ever appended.
+ */
+final class DeviceIndex {
+	private String[] ids = new String[16];
+	// open addressing on the id's hash, holds index + 1, 0 is an empty slot
+	private int[] table = new int[32];
+	private int size;
+
+	int size() {
+		return size;
+	}
+
+	String id(int index) {
+		return ids[index];
+	}
+
+	// shared, not a copy, see the class comment
+	String[] ids() {
+		return ids;
+	}
+
+	// -1 if the id was never added
+	int indexOf(String id) {
+		int mask = table.length - 1;
+		for (int slot = spread(id.hashCode()) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			if (ids[table[slot] - 1].equals(id)) {
+				return table[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	// the id's index, a new one if it wasn't known yet
+	int add(String id) {
+		int index = indexOf(id);
+		if (index >= 0) {
+			return index;
+		}
+
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size] = id;
+		if ((size + 1) * 2 > table.length) {
+			rehash(table.length * 2);
+		} else {
+			insert(size);
+		}
+		return size++;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		for (int i = 0; i <= size; i++) {
+			insert(i);
+		}
+	}
+
+	private void insert(int index) {
+		int mask = table.length - 1;
+		int slot = spread(ids[index].hashCode()) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index + 1;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
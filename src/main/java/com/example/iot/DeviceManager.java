@@ -1,33 +1,122 @@
 package com.example.iot;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.RecipientRef;
+import akka.pattern.StatusReply;
+import akka.cluster.ddata.GSet;
+import akka.cluster.ddata.GSetKey;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.ddata.typed.javadsl.ReplicatorMessageAdapter;
+import akka.cluster.sharding.typed.ClusterShardingSettings;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
 
 public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
 	private final Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor = new HashMap<>();
+	private final GroupSettings groupSettings;
+	// set when groups are cluster sharding entities instead of children of this manager
+	private final ClusterSharding sharding;
+	// sharded mode only: this node's copy of the cluster-wide registry of groups, what "all groups" means there
+	private final Set<String> knownGroupIds = new HashSet<>();
+	private final ReplicatorMessageAdapter<Command, GSet<String>> groupRegistry;
+	// commands for groups missing from knownGroupIds that have been checked against the registry once already
+	private final Set<Command> rechecked = Collections.newSetFromMap(new IdentityHashMap<>());
+	// pooled mode only: the DeviceManagerPool that routes to this manager and tracks its groups
+	private final ActorRef<Command> pool;
+	private final ActorTiers tiers;
+
+	public interface Command extends CborSerializable {}
 
-	public interface Command {}
+	static final Duration GROUP_REPLY_GRACE = Duration.ofMillis(500);
+
+	// every group that was ever tracked through a sharded manager on any node, sharded groups don't go away
+	static final Key<GSet<String>> GROUP_REGISTRY_KEY = GSetKey.create("device-groups");
 
 	// factory method
 	public static Behavior<Command> create() {
-		return Behaviors.setup(context -> new DeviceManager(context));
+		return create(GroupSettings.DEFAULT);
+	}
+
+	// groupSettings apply to every group this manager creates
+	public static Behavior<Command> create(GroupSettings groupSettings) {
+		return instrumented(Behaviors.setup(context -> new DeviceManager(context, groupSettings, null, null)));
+	}
+
+	/**
+	 * poolSize managers behind one ref, each owning the groups that consistent hashing of the groupId
+	 * assigns to it, so registrations for different groups don't queue up behind each other.
+	 * See DeviceManagerPool.
+	 */
+	public static Behavior<Command> createPooled(int poolSize, GroupSettings groupSettings) {
+		return DeviceManagerPool.create(poolSize, groupSettings);
+	}
+
+	// a manager owned by a DeviceManagerPool, it reports terminated groups back to the pool
+	static Behavior<Command> createPoolMember(GroupSettings groupSettings, ActorRef<Command> pool) {
+		return instrumented(Behaviors.setup(context -> new DeviceManager(context, groupSettings, null, pool)));
+	}
+
+	/**
+	 * A manager whose groups are cluster sharding entities, distributed by groupId over the nodes of the
+	 * cluster. Run one on every node, they all speak the same protocol and reach the same groups.
+	 * Tracking registers the group in a Distributed Data set shared by all nodes. Other requests only go to
+	 * registered groups and answer for unknown ones like the local mode does. Requires the cluster actor provider.
+	 */
+	public static Behavior<Command> createSharded(GroupSettings groupSettings) {
+		return instrumented(Behaviors.setup(context -> {
+			ClusterSharding sharding = ClusterSharding.get(context.getSystem());
+			// a passivated or rebalanced group would lose its devices, so groups stay where they are
+			sharding.init(Entity.of(DeviceGroup.ENTITY_TYPE_KEY, entityContext -> DeviceGroup.create(entityContext.getEntityId(), groupSettings))
+					.withSettings(ClusterShardingSettings.create(context.getSystem()).withNoPassivationStrategy())
+					.withStopMessage(DeviceGroup.Stop.INSTANCE)
+					.withEntityProps(ActorTiers.of(groupSettings, context.getSystem()).group()));
+			return new DeviceManager(context, groupSettings, sharding, null);
+		}));
+	}
+
+	private static Behavior<Command> instrumented(Behavior<Command> behavior) {
+		return MetricsInterceptor.instrument(DeviceManager.class, Command.class, behavior);
 	}
 
 	// private constuctor
-	private DeviceManager(ActorContext<Command> context) {
+	private DeviceManager(ActorContext<Command> context, GroupSettings groupSettings, ClusterSharding sharding, ActorRef<Command> pool) {
 		super(context);
+		this.groupSettings = groupSettings;
+		this.sharding = sharding;
+		this.pool = pool;
+		this.tiers = ActorTiers.of(groupSettings, context.getSystem());
+		if (sharding != null) {
+			this.groupRegistry = new ReplicatorMessageAdapter<>(context, DistributedData.get(context.getSystem()).replicator(),
+					groupSettings.queryTimeout());
+			groupRegistry.subscribe(GROUP_REGISTRY_KEY, GroupRegistryChanged::new);
+		} else {
+			this.groupRegistry = null;
+		}
 		context.getLog().info("Device manager started.");
 	}
 
@@ -37,22 +126,85 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 		public final String groupId;
 		public final String deviceId;
 		public final ActorRef<DeviceRegistered> replyTo;
+		// ack policy for this device, null falls back to the group's default
+		public final Device.AckPolicy ackPolicy;
+		// if set, becomes the default for every device in the group without a policy of its own
+		public final Device.AckPolicy groupAckPolicy;
 
 		public RequestTrackDevice(String groupId, String deviceId, ActorRef<DeviceRegistered> replyTo) {
+			this(groupId, deviceId, replyTo, null, null);
+		}
+
+		public RequestTrackDevice(String groupId, String deviceId, ActorRef<DeviceRegistered> replyTo, Device.AckPolicy ackPolicy) {
+			this(groupId, deviceId, replyTo, ackPolicy, null);
+		}
+
+		@JsonCreator
+		public RequestTrackDevice(String groupId, String deviceId, ActorRef<DeviceRegistered> replyTo, Device.AckPolicy ackPolicy,
+				Device.AckPolicy groupAckPolicy) {
 			this.groupId = groupId;
 			this.deviceId = deviceId;
 			this.replyTo = replyTo;
+			this.ackPolicy = ackPolicy;
+			this.groupAckPolicy = groupAckPolicy;
 		}
 	}	
 
-	public static final class DeviceRegistered {
+	public static final class DeviceRegistered implements CborSerializable {
 		public final ActorRef<Device.Command> device;
 
+		@JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
 		public DeviceRegistered(ActorRef<Device.Command> device) {
 			this.device = device;
 		}
 	}
 
+	/**
+	 * Registers many devices of one group in a single pass, answered by one DevicesTracked. Devices that
+	 * don't exist yet start with their entry in lastReadings, if any, stamped with the time the group tracks
+	 * them. Existing and passivated devices keep the reading the group has for them. Devices get the group's
+	 * default ack policy. A group asked to track devices of another group answers with an error.
+	 */
+	public static final class BulkTrackDevices implements DeviceManager.Command, DeviceGroup.Command {
+		final long requestId;
+		final String groupId;
+		final Collection<String> deviceIds;
+		final Map<String, Double> lastReadings;
+		final ActorRef<DevicesTracked> replyTo;
+
+		public BulkTrackDevices(long requestId, String groupId, Collection<String> deviceIds, ActorRef<DevicesTracked> replyTo) {
+			this(requestId, groupId, deviceIds, Collections.emptyMap(), replyTo);
+		}
+
+		@JsonCreator
+		public BulkTrackDevices(long requestId, String groupId, Collection<String> deviceIds, Map<String, Double> lastReadings,
+				ActorRef<DevicesTracked> replyTo) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.deviceIds = deviceIds;
+			this.lastReadings = lastReadings;
+			this.replyTo = replyTo;
+		}
+	}
+
+	public static final class DevicesTracked implements CborSerializable {
+		final long requestId;
+		public final Map<String, ActorRef<Device.Command>> devices;
+		// null unless the request was rejected, devices is empty then
+		public final String error;
+
+		public DevicesTracked(long requestId, Map<String, ActorRef<Device.Command>> devices) {
+			this(requestId, devices, null);
+		}
+
+		@JsonCreator
+		public DevicesTracked(long requestId, Map<String, ActorRef<Device.Command>> devices, String error) {
+			this.requestId = requestId;
+			this.devices = devices;
+			this.error = error;
+		}
+	}
+
 	public static final class RequestDeviceList implements DeviceManager.Command, DeviceGroup.Command {
 		final long requestId;
 		final String groupId;
@@ -66,7 +218,7 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 		}
 	}	
 
-	public static class ReplyDeviceList {
+	public static class ReplyDeviceList implements CborSerializable {
 		final long requestId;
 		final Set<String> ids;
 
@@ -77,9 +229,39 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
 	}
 
+	private static final class GroupRegistryChanged implements Command {
+		final Replicator.SubscribeResponse<GSet<String>> response;
+
+		GroupRegistryChanged(Replicator.SubscribeResponse<GSet<String>> response) {
+			this.response = response;
+		}
+	}
+
+	private static final class GroupRegistered implements Command {
+		final String groupId;
+		final Replicator.UpdateResponse<GSet<String>> response;
+
+		GroupRegistered(String groupId, Replicator.UpdateResponse<GSet<String>> response) {
+			this.groupId = groupId;
+			this.response = response;
+		}
+	}
+
+	// the registry as a majority of nodes knows it, command is handled again with it
+	private static final class GroupRegistryRead implements Command {
+		final Command command;
+		final Replicator.GetResponse<GSet<String>> response;
+
+		GroupRegistryRead(Command command, Replicator.GetResponse<GSet<String>> response) {
+			this.command = command;
+			this.response = response;
+		}
+	}
+
 	public static final class DeviceGroupTerminated implements Command {
 		public final String groupId;
 
+		@JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
 		public DeviceGroupTerminated(String groupId) {
 			this.groupId = groupId;
 		}
@@ -89,29 +271,206 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 		final long requestId;
 		final String groupId;
 		final ActorRef<RespondAllTemperatures> replyTo;
+		final QueryOptions options;
 
 		public RequestAllTemperatures(long requestId, String groupId, ActorRef<RespondAllTemperatures> replyTo) {
+			this(requestId, groupId, replyTo, QueryOptions.DEFAULT);
+		}
+
+		@JsonCreator
+		public RequestAllTemperatures(long requestId, String groupId, ActorRef<RespondAllTemperatures> replyTo, QueryOptions options) {
 			this.requestId = requestId;
 			this.groupId = groupId;
 			this.replyTo = replyTo;
+			this.options = options;
 		}
 	}
-	public static final class RespondAllTemperatures {
+	// complete is false only for the intermediate chunks of a query with QueryOptions.withPartialResults
+	public static final class RespondAllTemperatures implements CborSerializable {
 		final long requestId;
 		final Map<String, TemperatureReading> temperatures;
+		final boolean complete;
 
 		public RespondAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures) {
+			this(requestId, temperatures, true);
+		}
+
+		@JsonCreator
+		public RespondAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures, boolean complete) {
+			this.requestId = requestId;
+			this.temperatures = temperatures;
+			this.complete = complete;
+		}
+	}
+
+	public static final class TemperatureEntry {
+		public final String groupId;
+		public final String deviceId;
+		public final double value;
+
+		public TemperatureEntry(String groupId, String deviceId, double value) {
+			this.groupId = groupId;
+			this.deviceId = deviceId;
+			this.value = value;
+		}
+
+		@Override
+		public String toString() {
+			return "TemperatureEntry{" + groupId + "/" + deviceId + "=" + value + '}';
+		}
+	}
+
+	// readings from any number of devices and groups, acknowledged once for the whole batch
+	public static final class RecordTemperatureBatch implements DeviceManager.Command, DeviceGroup.Command {
+		final long requestId;
+		final List<TemperatureEntry> entries;
+		final ActorRef<TemperatureBatchRecorded> replyTo;
+
+		public RecordTemperatureBatch(long requestId, List<TemperatureEntry> entries, ActorRef<TemperatureBatchRecorded> replyTo) {
+			this.requestId = requestId;
+			this.entries = entries;
+			this.replyTo = replyTo;
+		}
+	}
+
+	// entries for unknown groups or devices are reported back in failed, entries of groups that didn't ack
+	// in time or stopped first in pending, they may or may not have been recorded. Everything else was recorded.
+	public static final class TemperatureBatchRecorded implements CborSerializable {
+		final long requestId;
+		final int recorded;
+		final List<TemperatureEntry> failed;
+		final List<TemperatureEntry> pending;
+
+		public TemperatureBatchRecorded(long requestId, int recorded, List<TemperatureEntry> failed) {
+			this(requestId, recorded, failed, Collections.emptyList());
+		}
+
+		@JsonCreator
+		public TemperatureBatchRecorded(long requestId, int recorded, List<TemperatureEntry> failed, List<TemperatureEntry> pending) {
+			this.requestId = requestId;
+			this.recorded = recorded;
+			this.failed = failed;
+			this.pending = pending;
+		}
+	}
+
+	// current readings of several groups at once, an empty groupIds set means every group
+	public static final class RequestAllGroupTemperatures implements Command {
+		final long requestId;
+		final Set<String> groupIds;
+		final ActorRef<RespondAllGroupTemperatures> replyTo;
+		// partial results are not streamed across groups, the other options apply to every group
+		final QueryOptions options;
+
+		public RequestAllGroupTemperatures(long requestId, Set<String> groupIds, ActorRef<RespondAllGroupTemperatures> replyTo) {
+			this(requestId, groupIds, replyTo, QueryOptions.DEFAULT);
+		}
+
+		@JsonCreator
+		public RequestAllGroupTemperatures(long requestId, Set<String> groupIds, ActorRef<RespondAllGroupTemperatures> replyTo,
+				QueryOptions options) {
+			this.requestId = requestId;
+			this.groupIds = groupIds;
+			this.replyTo = replyTo;
+			this.options = options;
+		}
+	}
+
+	// groups that are unknown, stopped or didn't answer in time are listed in unavailableGroups
+	public static final class RespondAllGroupTemperatures implements CborSerializable {
+		final long requestId;
+		final Map<String, Map<String, TemperatureReading>> temperatures;
+		final Set<String> unavailableGroups;
+
+		public RespondAllGroupTemperatures(long requestId, Map<String, Map<String, TemperatureReading>> temperatures,
+				Set<String> unavailableGroups) {
 			this.requestId = requestId;
 			this.temperatures = temperatures;
+			this.unavailableGroups = unavailableGroups;
 		}
 	}
 
+	/**
+	 * Writes the current reading of every device in the group to path as ColumnarReadings, which a group
+	 * can be restored from, see GroupSettings.withSnapshotDirectory. path is resolved against the snapshot
+	 * directory on the group's node, paths outside of it and groups without one are answered with an error.
+	 * A null path writes the file the group restores from.
+	 */
+	public static final class ExportGroupReadings implements DeviceManager.Command, DeviceGroup.Command {
+		final long requestId;
+		final String groupId;
+		final String path;
+		final ActorRef<StatusReply<GroupReadingsExported>> replyTo;
+
+		public ExportGroupReadings(long requestId, String groupId, String path, ActorRef<StatusReply<GroupReadingsExported>> replyTo) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.path = path;
+			this.replyTo = replyTo;
+		}
+	}
+
+	public static final class GroupReadingsExported implements CborSerializable {
+		final long requestId;
+		final int deviceCount;
+
+		public GroupReadingsExported(long requestId, int deviceCount) {
+			this.requestId = requestId;
+			this.deviceCount = deviceCount;
+		}
+	}
+
+	/**
+	 * Pushes Device.TemperatureUpdate to subscriber whenever a device of the group records a new reading,
+	 * including devices that register later. A null deviceId subscribes to every device of the group.
+	 * Subscribing again replaces the previous subscription to the group. It lasts until UnsubscribeTemperatures
+	 * or until the subscriber stops, devices that passivate and come back are subscribed again.
+	 */
+	public static final class SubscribeTemperatures implements DeviceManager.Command, DeviceGroup.Command {
+		final String groupId;
+		final String deviceId;
+		final ActorRef<Device.TemperatureUpdate> subscriber;
+		final SubscriptionSettings settings;
+
+		public SubscribeTemperatures(String groupId, String deviceId, ActorRef<Device.TemperatureUpdate> subscriber) {
+			this(groupId, deviceId, subscriber, SubscriptionSettings.DEFAULT);
+		}
+
+		@JsonCreator
+		public SubscribeTemperatures(String groupId, String deviceId, ActorRef<Device.TemperatureUpdate> subscriber,
+				SubscriptionSettings settings) {
+			this.groupId = groupId;
+			this.deviceId = deviceId;
+			this.subscriber = subscriber;
+			this.settings = settings;
+		}
+	}
+
+	public static final class UnsubscribeTemperatures implements DeviceManager.Command, DeviceGroup.Command {
+		final String groupId;
+		final ActorRef<Device.TemperatureUpdate> subscriber;
+
+		@JsonCreator
+		public UnsubscribeTemperatures(String groupId, ActorRef<Device.TemperatureUpdate> subscriber) {
+			this.groupId = groupId;
+			this.subscriber = subscriber;
+		}
+	}
+
+	@JsonTypeInfo(use = JsonTypeInfo.Id.NAME)
+	@JsonSubTypes({
+		@JsonSubTypes.Type(value = Temperature.class, name = "temperature"),
+		@JsonSubTypes.Type(value = TemperatureNotAvailable.class, name = "not-available"),
+		@JsonSubTypes.Type(value = DeviceNotAvailable.class, name = "device-not-available"),
+		@JsonSubTypes.Type(value = DeviceTimedOut.class, name = "timed-out")
+	})
 	public interface TemperatureReading {}
 	
 
 	public static final class Temperature implements TemperatureReading {
 		public final double value;
 
+		@JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
 		public Temperature(double value) {
 			this.value = value;
 		}
@@ -155,8 +514,18 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 	public Receive<Command> createReceive() {
 		return newReceiveBuilder()
 			.onMessage(RequestTrackDevice.class, this::onTrackDevice)
+			.onMessage(BulkTrackDevices.class, this::onBulkTrackDevices)
 			.onMessage(RequestDeviceList.class, this::onDeviceList)
+			.onMessage(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+			.onMessage(RequestAllTemperatures.class, this::onAllTemperatures)
+			.onMessage(RequestAllGroupTemperatures.class, this::onAllGroupTemperatures)
+			.onMessage(ExportGroupReadings.class, this::onExportGroupReadings)
+			.onMessage(SubscribeTemperatures.class, this::onSubscribeTemperatures)
+			.onMessage(UnsubscribeTemperatures.class, this::onUnsubscribeTemperatures)
 			.onMessage(DeviceGroupTerminated.class, this::onDeviceGroupTerminated)
+			.onMessage(GroupRegistryChanged.class, this::onGroupRegistryChanged)
+			.onMessage(GroupRegistered.class, this::onGroupRegistered)
+			.onMessage(GroupRegistryRead.class, this::onGroupRegistryRead)
 			.onSignal(PostStop.class, signal -> onPostStop())
 			.build();
 	}
@@ -164,25 +533,123 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 	// --[HANDLERS]-- //
 
 	private DeviceManager onTrackDevice(RequestTrackDevice trackMessage) {
-		ActorRef<DeviceGroup.Command> groupRef = groupIdToActor.get(trackMessage.groupId);
+		if (sharding != null) {
+			registerShardedGroup(trackMessage.groupId).tell(trackMessage);
+			return this;
+		}
+
+		// forward track message so device is tracked
+		groupOrCreate(trackMessage.groupId).tell(trackMessage);
+
+		return this;
+	}
+
+	private DeviceManager onBulkTrackDevices(BulkTrackDevices r) {
+		if (sharding != null) {
+			registerShardedGroup(r.groupId).tell(r);
+		} else {
+			groupOrCreate(r.groupId).tell(r);
+		}
+		return this;
+	}
+
+	// creates the group like tracking does, so a subscription can come before the group's first device
+	private DeviceManager onSubscribeTemperatures(SubscribeTemperatures r) {
+		if (sharding != null) {
+			registerShardedGroup(r.groupId).tell(r);
+		} else {
+			groupOrCreate(r.groupId).tell(r);
+		}
+		return this;
+	}
+
+	private DeviceManager onUnsubscribeTemperatures(UnsubscribeTemperatures r) {
+		if (awaitingRegistry(Collections.singleton(r.groupId), r)) {
+			return this;
+		}
+		RecipientRef<DeviceGroup.Command> ref = lookupGroup(r.groupId);
+		if (ref != null) {
+			ref.tell(r);
+		}
+		return this;
+	}
+
+	private ActorRef<DeviceGroup.Command> groupOrCreate(String groupId) {
+		ActorRef<DeviceGroup.Command> groupRef = groupIdToActor.get(groupId);
 
 		// if device group isn't already tracked
 		if (groupRef == null) {
-			getContext().getLog().info("Creating device group {}", trackMessage.groupId);
-			groupRef = getContext().spawn(DeviceGroup.create(trackMessage.groupId), "group-" + trackMessage.groupId);
-			getContext().watchWith(groupRef, new DeviceGroupTerminated(trackMessage.groupId));
+			getContext().getLog().info("Creating device group {}", groupId);
+			groupRef = getContext().spawn(DeviceGroup.create(groupId, groupSettings), "group-" + groupId, tiers.group());
+			getContext().watchWith(groupRef, new DeviceGroupTerminated(groupId));
+			groupIdToActor.put(groupId, groupRef);
 		}
+		return groupRef;
+	}
 
-		// forward track message so device is tracked
-		groupRef.tell(trackMessage);
-		
-		groupIdToActor.put(trackMessage.groupId, groupRef);
+	// in sharded mode the groups in the registry, starting an entity for any other id would create that group
+	private RecipientRef<DeviceGroup.Command> lookupGroup(String groupId) {
+		if (sharding != null) {
+			return knownGroupIds.contains(groupId) ? sharding.entityRefFor(DeviceGroup.ENTITY_TYPE_KEY, groupId) : null;
+		}
+		return groupIdToActor.get(groupId);
+	}
+
+	// groups are only created by tracking, which adds them to the registry before anything is sent to them
+	private RecipientRef<DeviceGroup.Command> registerShardedGroup(String groupId) {
+		if (knownGroupIds.add(groupId)) {
+			groupRegistry.askUpdate(
+					replyTo -> new Replicator.Update<>(GROUP_REGISTRY_KEY, GSet.empty(), new Replicator.WriteMajority(groupSettings.queryTimeout()),
+							replyTo, registry -> registry.add(groupId)),
+					response -> new GroupRegistered(groupId, response));
+		}
+		return sharding.entityRefFor(DeviceGroup.ENTITY_TYPE_KEY, groupId);
+	}
+
+	/**
+	 * Sharded mode only: a group missing from this node's copy of the registry may have been tracked through
+	 * another node moments ago. The first time that happens for command, it is held back until a majority read
+	 * of the registry is in, then handled again. Groups still missing then are unknown.
+	 */
+	private boolean awaitingRegistry(Collection<String> groupIds, Command command) {
+		if (sharding == null || rechecked.remove(command) || knownGroupIds.containsAll(groupIds)) {
+			return false;
+		}
+		groupRegistry.askGet(
+				replyTo -> new Replicator.Get<>(GROUP_REGISTRY_KEY, new Replicator.ReadMajority(groupSettings.queryTimeout()), replyTo),
+				response -> new GroupRegistryRead(command, response));
+		return true;
+	}
 
+	private DeviceManager onGroupRegistryChanged(GroupRegistryChanged changed) {
+		if (changed.response instanceof Replicator.Changed) {
+			knownGroupIds.addAll(((Replicator.Changed<GSet<String>>) changed.response).get(GROUP_REGISTRY_KEY).getElements());
+		}
+		return this;
+	}
+
+	// a write that didn't reach a majority is still kept locally and gossiped to the other nodes
+	private DeviceManager onGroupRegistered(GroupRegistered registered) {
+		if (!(registered.response instanceof Replicator.UpdateSuccess)) {
+			getContext().getLog().warn("Registering group {} didn't reach a majority of nodes: {}", registered.groupId, registered.response);
+		}
+		return this;
+	}
+
+	private DeviceManager onGroupRegistryRead(GroupRegistryRead read) {
+		if (read.response instanceof Replicator.GetSuccess) {
+			knownGroupIds.addAll(((Replicator.GetSuccess<GSet<String>>) read.response).get(GROUP_REGISTRY_KEY).getElements());
+		}
+		rechecked.add(read.command);
+		getContext().getSelf().tell(read.command);
 		return this;
 	}
 
 	private DeviceManager onDeviceList(RequestDeviceList r) {
-		ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(r.groupId);
+		if (awaitingRegistry(Collections.singleton(r.groupId), r)) {
+			return this;
+		}
+		RecipientRef<DeviceGroup.Command> ref = lookupGroup(r.groupId);
 
 		// if group doesn't exist, send reply with empty set
 		if (ref == null) {
@@ -195,9 +662,131 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 		return this;
 	}
 
+	private DeviceManager onAllTemperatures(RequestAllTemperatures r) {
+		if (awaitingRegistry(Collections.singleton(r.groupId), r)) {
+			return this;
+		}
+		RecipientRef<DeviceGroup.Command> ref = lookupGroup(r.groupId);
+
+		if (ref == null) {
+			getContext().getLog().warn("Request for temperatures of non-existent device group {}", r.groupId);
+			r.replyTo.tell(new RespondAllTemperatures(r.requestId, Collections.emptyMap()));
+		} else {
+			ref.tell(r);
+		}
+
+		return this;
+	}
+
+	private DeviceManager onExportGroupReadings(ExportGroupReadings r) {
+		if (awaitingRegistry(Collections.singleton(r.groupId), r)) {
+			return this;
+		}
+		RecipientRef<DeviceGroup.Command> ref = lookupGroup(r.groupId);
+
+		if (ref == null) {
+			getContext().getLog().warn("Request to export readings of non-existent device group {}", r.groupId);
+			r.replyTo.tell(StatusReply.error("Unknown device group " + r.groupId));
+		} else {
+			ref.tell(r);
+		}
+
+		return this;
+	}
+
+	private DeviceManager onAllGroupTemperatures(RequestAllGroupTemperatures r) {
+		if (awaitingRegistry(r.groupIds, r)) {
+			return this;
+		}
+		Map<String, RecipientRef<DeviceGroup.Command>> groups = new HashMap<>();
+		Set<String> unknownGroups = new HashSet<>();
+
+		if (r.groupIds.isEmpty()) {
+			for (String groupId : sharding != null ? knownGroupIds : groupIdToActor.keySet()) {
+				groups.put(groupId, lookupGroup(groupId));
+			}
+		} else {
+			for (String groupId : r.groupIds) {
+				RecipientRef<DeviceGroup.Command> ref = lookupGroup(groupId);
+				if (ref == null) {
+					unknownGroups.add(groupId);
+				} else {
+					groups.put(groupId, ref);
+				}
+			}
+		}
+
+		if (groups.isEmpty()) {
+			r.replyTo.tell(new RespondAllGroupTemperatures(r.requestId, Collections.emptyMap(), unknownGroups));
+			return this;
+		}
+
+		Duration groupTimeout = r.options.timeout() != null ? r.options.timeout() : groupSettings.queryTimeout();
+		getContext().spawnAnonymous(new DeviceManagerQuery.Builder()
+				.groupIdToActor(groups)
+				.unavailableGroups(unknownGroups)
+				.requestId(r.requestId)
+				.requester(r.replyTo)
+				.options(r.options.withoutPartialResults())
+				// groups answer with timed-out devices at groupTimeout, give their replies a moment to arrive
+				.timeout(groupTimeout.plus(GROUP_REPLY_GRACE))
+				.build());
+
+		return this;
+	}
+
+	private DeviceManager onRecordTemperatureBatch(RecordTemperatureBatch batch) {
+		if (sharding != null) {
+			Set<String> groupIds = new HashSet<>();
+			for (TemperatureEntry entry : batch.entries) {
+				groupIds.add(entry.groupId);
+			}
+			if (awaitingRegistry(groupIds, batch)) {
+				return this;
+			}
+		}
+
+		Map<String, List<TemperatureEntry>> entriesByGroup = new HashMap<>();
+		List<TemperatureEntry> failed = new ArrayList<>();
+
+		// batches never create groups, readings for groups we don't track are failed right away
+		for (TemperatureEntry entry : batch.entries) {
+			if (lookupGroup(entry.groupId) != null) {
+				entriesByGroup.computeIfAbsent(entry.groupId, id -> new ArrayList<>()).add(entry);
+			} else {
+				failed.add(entry);
+			}
+		}
+
+		if (entriesByGroup.isEmpty()) {
+			batch.replyTo.tell(new TemperatureBatchRecorded(batch.requestId, 0, failed));
+		} else if (entriesByGroup.size() == 1 && failed.isEmpty()) { // whole batch belongs to one group, it can ack directly
+			lookupGroup(entriesByGroup.keySet().iterator().next()).tell(batch);
+		} else {
+			Map<String, RecipientRef<DeviceGroup.Command>> groups = new HashMap<>();
+			for (String groupId : entriesByGroup.keySet()) {
+				groups.put(groupId, lookupGroup(groupId));
+			}
+
+			getContext().spawnAnonymous(new TemperatureBatchAggregator.Builder()
+					.groupIdToActor(groups)
+					.entriesByGroup(entriesByGroup)
+					.failed(failed)
+					.requestId(batch.requestId)
+					.requester(batch.replyTo)
+					.timeout(groupSettings.batchAckTimeout())
+					.build());
+		}
+
+		return this;
+	}
+
 	private DeviceManager onDeviceGroupTerminated(DeviceGroupTerminated r) {
 		getContext().getLog().info("Device group {} terminated", r.groupId);
 		groupIdToActor.remove(r.groupId);
+		if (pool != null) {
+			pool.tell(r);
+		}
 		return this;	
 	}
 
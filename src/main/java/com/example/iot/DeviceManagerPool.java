@@ -0,0 +1,174 @@
+package com.example.iot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Terminated;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.routing.ConsistentHash;
+
+/**
+ * Fronts several DeviceManagers that split the groups between them. Each group is owned by the
+ * manager that consistent hashing of its groupId picks, so every message for that group lands there,
+ * while spawning and tracking of different groups runs on different managers in parallel.
+ * Batches and cross-group queries are split by owner and merged again like in a single manager.
+ */
+public class DeviceManagerPool extends AbstractBehavior<DeviceManager.Command> {
+	private static final int VIRTUAL_NODES_FACTOR = 10;
+
+	private final ConsistentHash<ActorRef<DeviceManager.Command>> owners;
+	private final GroupSettings groupSettings;
+	// groups registered through the pool that haven't terminated, what "all groups" means here
+	private final Set<String> groupIds = new HashSet<>();
+
+	// factory method
+	public static Behavior<DeviceManager.Command> create(int poolSize, GroupSettings groupSettings) {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("poolSize must be at least 1, was " + poolSize);
+		}
+		return MetricsInterceptor.instrument(DeviceManagerPool.class, DeviceManager.Command.class,
+				Behaviors.setup(context -> new DeviceManagerPool(context, poolSize, groupSettings)));
+	}
+
+	// private constructor
+	private DeviceManagerPool(ActorContext<DeviceManager.Command> context, int poolSize, GroupSettings groupSettings) {
+		super(context);
+		this.groupSettings = groupSettings;
+
+		ActorTiers tiers = ActorTiers.of(groupSettings, context.getSystem());
+		List<ActorRef<DeviceManager.Command>> managers = new ArrayList<>();
+		for (int i = 0; i < poolSize; i++) {
+			ActorRef<DeviceManager.Command> manager = context.spawn(DeviceManager.createPoolMember(groupSettings, context.getSelf()),
+					"manager-" + i, tiers.manager());
+			context.watch(manager);
+			managers.add(manager);
+		}
+		this.owners = ConsistentHash.create(managers, VIRTUAL_NODES_FACTOR);
+		context.getLog().info("Device manager pool started with {} managers.", poolSize);
+	}
+
+	@Override
+	public Receive<DeviceManager.Command> createReceive() {
+		return newReceiveBuilder()
+			.onMessage(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+			.onMessage(DeviceManager.BulkTrackDevices.class, this::onBulkTrackDevices)
+			.onMessage(DeviceManager.RequestDeviceList.class, r -> forward(r.groupId, r))
+			.onMessage(DeviceManager.RequestAllTemperatures.class, r -> forward(r.groupId, r))
+			.onMessage(DeviceManager.ExportGroupReadings.class, r -> forward(r.groupId, r))
+			.onMessage(DeviceManager.SubscribeTemperatures.class, this::onSubscribeTemperatures)
+			.onMessage(DeviceManager.UnsubscribeTemperatures.class, r -> forward(r.groupId, r))
+			.onMessage(DeviceManager.RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+			.onMessage(DeviceManager.RequestAllGroupTemperatures.class, this::onAllGroupTemperatures)
+			.onMessage(DeviceManager.DeviceGroupTerminated.class, this::onDeviceGroupTerminated)
+			.onSignal(Terminated.class, this::onManagerTerminated)
+			.build();
+	}
+
+	// --[HANDLERS]-- //
+
+	private ActorRef<DeviceManager.Command> ownerOf(String groupId) {
+		return owners.nodeFor(groupId);
+	}
+
+	private DeviceManagerPool forward(String groupId, DeviceManager.Command message) {
+		ownerOf(groupId).tell(message);
+		return this;
+	}
+
+	private DeviceManagerPool onTrackDevice(DeviceManager.RequestTrackDevice trackMessage) {
+		groupIds.add(trackMessage.groupId);
+		return forward(trackMessage.groupId, trackMessage);
+	}
+
+	private DeviceManagerPool onBulkTrackDevices(DeviceManager.BulkTrackDevices r) {
+		groupIds.add(r.groupId);
+		return forward(r.groupId, r);
+	}
+
+	private DeviceManagerPool onSubscribeTemperatures(DeviceManager.SubscribeTemperatures r) {
+		groupIds.add(r.groupId);
+		return forward(r.groupId, r);
+	}
+
+	// sent by the owning manager after it noticed the group stop
+	private DeviceManagerPool onDeviceGroupTerminated(DeviceManager.DeviceGroupTerminated r) {
+		groupIds.remove(r.groupId);
+		return this;
+	}
+
+	private DeviceManagerPool onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch) {
+		// sub-batches are keyed by manager name, the managers fail entries of groups they don't track
+		Map<String, ActorRef<DeviceManager.Command>> managers = new HashMap<>();
+		Map<String, List<DeviceManager.TemperatureEntry>> entriesByManager = new HashMap<>();
+		for (DeviceManager.TemperatureEntry entry : batch.entries) {
+			ActorRef<DeviceManager.Command> owner = ownerOf(entry.groupId);
+			String name = owner.path().name();
+			managers.put(name, owner);
+			entriesByManager.computeIfAbsent(name, n -> new ArrayList<>()).add(entry);
+		}
+
+		if (managers.isEmpty()) {
+			batch.replyTo.tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, Collections.emptyList()));
+		} else if (managers.size() == 1) {
+			managers.values().iterator().next().tell(batch);
+		} else {
+			getContext().spawnAnonymous(new TemperatureBatchAggregator.Builder()
+					.groupIdToActor(managers)
+					.entriesByGroup(entriesByManager)
+					.requestId(batch.requestId)
+					.requester(batch.replyTo)
+					// managers give up on their groups at batchAckTimeout, give their replies a moment to arrive
+					.timeout(groupSettings.batchAckTimeout().plus(DeviceManager.GROUP_REPLY_GRACE))
+					.build());
+		}
+
+		return this;
+	}
+
+	private DeviceManagerPool onAllGroupTemperatures(DeviceManager.RequestAllGroupTemperatures r) {
+		// each group is asked through its owner, which forwards the request to the group
+		Map<String, ActorRef<DeviceManager.Command>> groups = new HashMap<>();
+		Set<String> unknownGroups = new HashSet<>();
+		for (String groupId : r.groupIds.isEmpty() ? groupIds : r.groupIds) {
+			if (groupIds.contains(groupId)) {
+				groups.put(groupId, ownerOf(groupId));
+			} else {
+				unknownGroups.add(groupId);
+			}
+		}
+
+		if (groups.isEmpty()) {
+			r.replyTo.tell(new DeviceManager.RespondAllGroupTemperatures(r.requestId, Collections.emptyMap(), unknownGroups));
+			return this;
+		}
+
+		Duration groupTimeout = r.options.timeout() != null ? r.options.timeout() : groupSettings.queryTimeout();
+		getContext().spawnAnonymous(new DeviceManagerQuery.Builder()
+				.groupIdToActor(groups)
+				.unavailableGroups(unknownGroups)
+				.requestId(r.requestId)
+				.requester(r.replyTo)
+				.options(r.options.withoutPartialResults())
+				.timeout(groupTimeout.plus(DeviceManager.GROUP_REPLY_GRACE))
+				.build());
+
+		return this;
+	}
+
+	// the hash ring is fixed, without one of its managers a share of the groups would be unreachable
+	private Behavior<DeviceManager.Command> onManagerTerminated(Terminated terminated) {
+		getContext().getLog().error("Pooled device manager {} stopped, stopping the pool", terminated.getRef().path().name());
+		return Behaviors.stopped();
+	}
+}
@@ -0,0 +1,171 @@
+package com.example.iot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.RecipientRef;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+/**
+ * Asks every selected DeviceGroup for its temperatures in parallel and merges the answers
+ * into one RespondAllGroupTemperatures, the cross-group counterpart of DeviceGroupQuery.
+ * A DeviceManagerPool passes the manager owning each group instead of the group itself.
+ */
+public class DeviceManagerQuery extends AbstractBehavior<DeviceManagerQuery.Command> {
+	private final long requestId;
+	private final ActorRef<DeviceManager.RespondAllGroupTemperatures> requester;
+	// per-group request id -> group id, request ids are the position of the group in this query
+	private final Map<Long, String> stillWaiting = new HashMap<>();
+	private final Map<String, Map<String, DeviceManager.TemperatureReading>> repliesSoFar = new HashMap<>();
+	private final Set<String> unavailableGroups;
+	// group request ids asked through each watched ref, a pooled manager answers for several groups
+	private final Map<ActorRef<?>, List<Long>> groupRequestIdsByRef = new HashMap<>();
+
+	private static enum CollectionTimeout implements Command {
+		INSTANCE
+	}
+
+	interface Command {}
+
+	// factory method
+	public static final class Builder {
+		private Map<String, ? extends RecipientRef<? super DeviceManager.RequestAllTemperatures>> groupIdToActor;
+		private Set<String> unavailableGroups = new HashSet<>();
+		private long requestId;
+		private ActorRef<DeviceManager.RespondAllGroupTemperatures> requester;
+		private QueryOptions options = QueryOptions.DEFAULT;
+		private Duration timeout;
+
+		public Builder() {}
+
+		public Builder groupIdToActor(Map<String, ? extends RecipientRef<? super DeviceManager.RequestAllTemperatures>> refs) {
+			groupIdToActor = refs;
+			return this;
+		}
+		public Builder unavailableGroups(Set<String> value) {
+			unavailableGroups = value;
+			return this;
+		}
+		public Builder requestId(long value) {
+			requestId = value;
+			return this;
+		}
+		public Builder requester(ActorRef<DeviceManager.RespondAllGroupTemperatures> ref) {
+			requester = ref;
+			return this;
+		}
+		public Builder options(QueryOptions value) {
+			options = value;
+			return this;
+		}
+		public Builder timeout(Duration value) {
+			timeout = value;
+			return this;
+		}
+
+		public Behavior<Command> build() {
+			return Behaviors.setup(context -> Behaviors.withTimers(timers -> new DeviceManagerQuery(this, context, timers)));
+		}
+	}
+
+	private DeviceManagerQuery(Builder builder, ActorContext<Command> context, TimerScheduler<Command> timers) {
+		super(context);
+		this.requestId = builder.requestId;
+		this.requester = builder.requester;
+		this.unavailableGroups = new HashSet<>(builder.unavailableGroups);
+
+		timers.startSingleTimer(CollectionTimeout.INSTANCE, builder.timeout);
+
+		ActorRef<DeviceManager.RespondAllTemperatures> respondAllTemperaturesAdapter = context.messageAdapter(
+				DeviceManager.RespondAllTemperatures.class, WrappedRespondAllTemperatures::new);
+
+		long groupRequestId = 0L;
+		for (Map.Entry<String, ? extends RecipientRef<? super DeviceManager.RequestAllTemperatures>> entry : builder.groupIdToActor.entrySet()) {
+			// sharded groups can't be watched, for them the timeout is the only way to notice a loss
+			if (entry.getValue() instanceof ActorRef) {
+				ActorRef<?> ref = (ActorRef<?>) entry.getValue();
+				List<Long> groupRequestIds = groupRequestIdsByRef.get(ref);
+				// a ref can only be watched with one message
+				if (groupRequestIds == null) {
+					groupRequestIds = new ArrayList<>();
+					groupRequestIdsByRef.put(ref, groupRequestIds);
+					context.watchWith(ref, new GroupTerminated(ref));
+				}
+				groupRequestIds.add(groupRequestId);
+			}
+			entry.getValue().tell(new DeviceManager.RequestAllTemperatures(groupRequestId, entry.getKey(), respondAllTemperaturesAdapter,
+					builder.options));
+			stillWaiting.put(groupRequestId, entry.getKey());
+			groupRequestId++;
+		}
+	}
+
+	static class WrappedRespondAllTemperatures implements Command {
+		final DeviceManager.RespondAllTemperatures response;
+
+		WrappedRespondAllTemperatures(DeviceManager.RespondAllTemperatures response) {
+			this.response = response;
+		}
+	}
+
+	private static class GroupTerminated implements Command {
+		final ActorRef<?> ref;
+
+		private GroupTerminated(ActorRef<?> ref) {
+			this.ref = ref;
+		}
+	}
+
+	@Override
+	public Receive<Command> createReceive() {
+		return newReceiveBuilder()
+			.onMessage(WrappedRespondAllTemperatures.class, this::onRespondAllTemperatures)
+			.onMessage(GroupTerminated.class, this::onGroupTerminated)
+			.onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+			.build();
+	}
+
+	private Behavior<Command> onRespondAllTemperatures(WrappedRespondAllTemperatures r) {
+		String groupId = stillWaiting.remove(r.response.requestId);
+		if (groupId != null) {
+			repliesSoFar.put(groupId, r.response.temperatures);
+		}
+		return respondWhenAllCollected();
+	}
+
+	private Behavior<Command> onGroupTerminated(GroupTerminated terminated) {
+		for (Long groupRequestId : groupRequestIdsByRef.get(terminated.ref)) {
+			String groupId = stillWaiting.remove(groupRequestId);
+			if (groupId != null) {
+				unavailableGroups.add(groupId);
+			}
+		}
+		return respondWhenAllCollected();
+	}
+
+	private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+		unavailableGroups.addAll(stillWaiting.values());
+		stillWaiting.clear();
+		return respondWhenAllCollected();
+	}
+
+	private Behavior<Command> respondWhenAllCollected() {
+		if (stillWaiting.isEmpty()) {
+			requester.tell(new DeviceManager.RespondAllGroupTemperatures(requestId, repliesSoFar, unavailableGroups));
+			return Behaviors.stopped();
+		}
+
+		return this;
+	}
+}
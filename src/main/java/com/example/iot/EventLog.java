@@ -0,0 +1,130 @@
+package com.example.iot;
+
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+
+/**
+ * One kind of hot-path log line, written as "event=name key=value ..." to an actor's logger.
+ * Call sites guard with shouldLog() so nothing is boxed or formatted unless the line is written:
+ * <pre>
+ * if (recorded.shouldLog()) {
+ *     recorded.log("value={} requestId={}", r.value, r.requestId);
+ * }
+ * </pre>
+ * The level comes from the logger, i.e. the actor class, see logback.xml. On top of that a line can be
+ * sampled (one in every n) and rate limited (at most one per interval). Lines that were held back are
+ * counted and reported as suppressed=n on the next line written, so dropping them is never silent.
+ * <p>
+ * Not thread safe, each actor keeps its own instances.
+ */
+final class EventLog {
+	private final Logger log;
+	private final Level level;
+	private final String prefix;
+	private final int sampleEvery;
+	private final long minIntervalNanos;
+	private long sampleCount;
+	private long lastWrittenNanos;
+	private long suppressed;
+	// set by shouldLog for the log call that follows it
+	private boolean pending;
+
+	private EventLog(Logger log, Level level, String event, int sampleEvery, Duration minInterval) {
+		this.log = log;
+		this.level = level;
+		this.prefix = "event=" + event + " ";
+		this.sampleEvery = sampleEvery;
+		this.minIntervalNanos = minInterval.toNanos();
+	}
+
+	// factory method
+	static EventLog create(Logger log, Level level, String event) {
+		return new EventLog(log, level, event, 1, Duration.ZERO);
+	}
+
+	/**
+	 * sampleEvery: write one in this many lines, 1 writes all of them.
+	 * minInterval: at most one line per interval, ZERO doesn't limit.
+	 */
+	static EventLog create(Logger log, Level level, String event, int sampleEvery, Duration minInterval) {
+		if (sampleEvery < 1) {
+			throw new IllegalArgumentException("sampleEvery must be at least 1, was " + sampleEvery);
+		}
+		return new EventLog(log, level, event, sampleEvery, minInterval);
+	}
+
+	boolean shouldLog() {
+		if (!enabled()) {
+			return false;
+		}
+
+		if (sampleEvery > 1 && sampleCount++ % sampleEvery != 0) {
+			suppressed++;
+			return false;
+		}
+		if (minIntervalNanos > 0) {
+			long now = System.nanoTime();
+			if (lastWrittenNanos != 0 && now - lastWrittenNanos < minIntervalNanos) {
+				suppressed++;
+				return false;
+			}
+			lastWrittenNanos = now;
+		}
+
+		pending = true;
+		return true;
+	}
+
+	void log(String fields, Object value) {
+		if (take()) {
+			write(fields, value);
+		}
+	}
+
+	void log(String fields, Object value1, Object value2) {
+		if (take()) {
+			write(fields, value1, value2);
+		}
+	}
+
+	void log(String fields, Object... values) {
+		if (take()) {
+			write(fields, values);
+		}
+	}
+
+	// a log call without shouldLog right before it is dropped, its arguments are already built though
+	private boolean take() {
+		boolean take = pending;
+		pending = false;
+		return take;
+	}
+
+	private boolean enabled() {
+		switch (level) {
+			case ERROR: return log.isErrorEnabled();
+			case WARN: return log.isWarnEnabled();
+			case INFO: return log.isInfoEnabled();
+			case DEBUG: return log.isDebugEnabled();
+			default: return log.isTraceEnabled();
+		}
+	}
+
+	private void write(String fields, Object... values) {
+		String format = prefix + fields;
+		if (suppressed > 0) {
+			format += " suppressed=" + suppressed;
+			suppressed = 0;
+		}
+
+		switch (level) {
+			case ERROR: log.error(format, values); break;
+			case WARN: log.warn(format, values); break;
+			case INFO: log.info(format, values); break;
+			case DEBUG: log.debug(format, values); break;
+			default: log.trace(format, values);
+		}
+	}
+}
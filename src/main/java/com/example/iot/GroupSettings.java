@@ -0,0 +1,178 @@
+package com.example.iot;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Tuning for a DeviceGroup and the devices it spawns. Instances are immutable,
+ * the with* methods return a changed copy.
+ */
+public final class GroupSettings {
+	public static final GroupSettings DEFAULT = new GroupSettings();
+
+	private boolean materializedReadings;
+	private Duration queryTimeout = Duration.ofSeconds(3);
+	private boolean queryCoalescing;
+	private Duration queryResultFreshness = Duration.ZERO;
+	private Duration passivateIdleDevicesAfter = Duration.ZERO;
+	private boolean persistentDevices;
+	private JournalSettings journal;
+	private Path snapshotDirectory;
+	private ActorTiers tiers;
+	private boolean sharedQueryAggregator;
+
+	private GroupSettings() {}
+
+	private GroupSettings copy() {
+		GroupSettings copy = new GroupSettings();
+		copy.materializedReadings = materializedReadings;
+		copy.queryTimeout = queryTimeout;
+		copy.queryCoalescing = queryCoalescing;
+		copy.queryResultFreshness = queryResultFreshness;
+		copy.passivateIdleDevicesAfter = passivateIdleDevicesAfter;
+		copy.persistentDevices = persistentDevices;
+		copy.journal = journal;
+		copy.snapshotDirectory = snapshotDirectory;
+		copy.tiers = tiers;
+		copy.sharedQueryAggregator = sharedQueryAggregator;
+		return copy;
+	}
+
+	/**
+	 * Devices push every change of their reading to the group, which answers RequestAllTemperatures
+	 * from that snapshot instead of querying each device.
+	 */
+	public GroupSettings withMaterializedReadings(boolean value) {
+		GroupSettings copy = copy();
+		copy.materializedReadings = value;
+		return copy;
+	}
+
+	// how long RequestAllTemperatures waits for devices unless the request sets its own timeout,
+	// and how long a batch spanning several groups waits for their acks, see batchAckTimeout
+	public GroupSettings withQueryTimeout(Duration value) {
+		GroupSettings copy = copy();
+		copy.queryTimeout = value;
+		return copy;
+	}
+
+	/**
+	 * RequestAllTemperatures with default QueryOptions that arrive while such a query is running
+	 * are answered from that query instead of starting another fan-out. Their answers then reflect the
+	 * devices as of that earlier query, not as of their own request. Off by default.
+	 */
+	public GroupSettings withQueryCoalescing(boolean value) {
+		GroupSettings copy = copy();
+		copy.queryCoalescing = value;
+		return copy;
+	}
+
+	// how long a coalesced query result may be reused for later requests, ZERO disables reuse
+	public GroupSettings withQueryResultFreshness(Duration value) {
+		GroupSettings copy = copy();
+		copy.queryResultFreshness = value;
+		return copy;
+	}
+
+	/**
+	 * Devices that receive no message for this long are stopped, the group keeps their last reading and
+	 * spawns them again on the next registration or batch entry for them. Refs handed out before are stale
+	 * after that: RecordTemperature sent to one is answered with an error, so the client registers again for
+	 * the current ref, and ReadTemperature is still answered. ZERO keeps devices forever.
+	 */
+	public GroupSettings withPassivateIdleDevicesAfter(Duration value) {
+		GroupSettings copy = copy();
+		copy.passivateIdleDevicesAfter = value;
+		return copy;
+	}
+
+	/**
+	 * Devices journal their readings and get them back when spawned again, after a restart or passivation.
+	 * Needs a journal and snapshot store, application.conf sets up local ones.
+	 */
+	public GroupSettings withPersistentDevices(boolean value) {
+		GroupSettings copy = copy();
+		copy.persistentDevices = value;
+		return copy;
+	}
+
+	// readings written to the group are journaled by a ReadingJournal, null turns journaling off
+	public GroupSettings withJournal(JournalSettings value) {
+		GroupSettings copy = copy();
+		copy.journal = value;
+		return copy;
+	}
+
+	/**
+	 * A group starting up restores its devices from ColumnarReadings.fileFor(directory, groupId) if that
+	 * file exists, e.g. one written by ExportGroupReadings. Restored devices are kept as passivated until
+	 * they're registered or get a reading. null turns restoring off.
+	 */
+	public GroupSettings withSnapshotDirectory(Path value) {
+		GroupSettings copy = copy();
+		copy.snapshotDirectory = value;
+		return copy;
+	}
+
+	// dispatchers and mailboxes for groups and what they spawn, null takes them from iot.tiers in the config
+	public GroupSettings withTiers(ActorTiers value) {
+		GroupSettings copy = copy();
+		copy.tiers = value;
+		return copy;
+	}
+
+	/**
+	 * RequestAllTemperatures fan out through one DeviceGroupQueryAggregator per group instead of spawning
+	 * a DeviceGroupQuery for each request. Requests for partial results still get their own query.
+	 */
+	public GroupSettings withSharedQueryAggregator(boolean value) {
+		GroupSettings copy = copy();
+		copy.sharedQueryAggregator = value;
+		return copy;
+	}
+
+	public boolean materializedReadings() {
+		return materializedReadings;
+	}
+
+	public Duration queryTimeout() {
+		return queryTimeout;
+	}
+
+	// a journaled group acks a batch once its journal flushed it, which can take up to maxBatchDelay
+	public Duration batchAckTimeout() {
+		return journal == null ? queryTimeout : queryTimeout.plus(journal.maxBatchDelay());
+	}
+
+	public boolean queryCoalescing() {
+		return queryCoalescing;
+	}
+
+	public Duration queryResultFreshness() {
+		return queryResultFreshness;
+	}
+
+	public Duration passivateIdleDevicesAfter() {
+		return passivateIdleDevicesAfter;
+	}
+
+	public boolean persistentDevices() {
+		return persistentDevices;
+	}
+
+	public JournalSettings journal() {
+		return journal;
+	}
+
+	public Path snapshotDirectory() {
+		return snapshotDirectory;
+	}
+
+	public ActorTiers tiers() {
+		return tiers;
+	}
+
+	public boolean sharedQueryAggregator() {
+		return sharedQueryAggregator;
+	}
+}
@@ -0,0 +1,149 @@
+package com.example.iot;
+
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.actor.typed.javadsl.Adapter;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import scala.Option;
+
+/**
+ * A mailbox that keeps mailbox.&lt;tier&gt;.depth in IotMetrics, the number of messages queued in all
+ * mailboxes of that tier. Configured per tier under iot.mailboxes, see reference.conf:
+ * <ul>
+ * <li>tier: name used in the metrics</li>
+ * <li>capacity: messages beyond this many go to dead letters and count as mailbox.&lt;tier&gt;.dropped,
+ * 0 is unbounded. Senders never block.</li>
+ * <li>deprioritized: message classes handled once nothing else is queued, in the order they came.
+ * Everything else keeps its order too.</li>
+ * <li>deprioritized-every: while other messages keep coming, a waiting deprioritized message is still
+ * handled after this many of them, so it can't starve. 0 waits until nothing else is queued.</li>
+ * </ul>
+ * No tier uses it by default, see iot.tiers.
+ */
+public final class InstrumentedMailbox implements MailboxType, ProducesMessageQueue<InstrumentedMailbox.InstrumentedQueue> {
+	private final String tier;
+	private final int capacity;
+	private final Set<Class<?>> deprioritized = new HashSet<>();
+	private final int deprioritizedEvery;
+
+	// instantiated by Akka through reflection
+	public InstrumentedMailbox(ActorSystem.Settings settings, Config config) throws ClassNotFoundException {
+		this.tier = config.getString("tier");
+		this.capacity = config.hasPath("capacity") ? config.getInt("capacity") : 0;
+		this.deprioritizedEvery = config.hasPath("deprioritized-every") ? config.getInt("deprioritized-every") : 0;
+		if (config.hasPath("deprioritized")) {
+			for (String className : config.getStringList("deprioritized")) {
+				deprioritized.add(Class.forName(className));
+			}
+		}
+	}
+
+	@Override
+	public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+		if (!system.isDefined()) {
+			return new InstrumentedQueue(new LongAdder(), new LongAdder(), null, capacity, deprioritized, deprioritizedEvery);
+		}
+		IotMetrics metrics = IotMetrics.get(Adapter.toTyped(system.get()));
+		return new InstrumentedQueue(metrics.counter("mailbox." + tier + ".depth"), metrics.counter("mailbox." + tier + ".dropped"),
+				system.get().deadLetters(), capacity, deprioritized, deprioritizedEvery);
+	}
+
+	static final class InstrumentedQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+		private final Queue<Envelope> queue = new ConcurrentLinkedQueue<>();
+		private final Queue<Envelope> deprioritizedQueue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final LongAdder depth;
+		private final LongAdder dropped;
+		private final ActorRef deadLetters;
+		private final int capacity;
+		private final Set<Class<?>> deprioritized;
+		private final int deprioritizedEvery;
+		// dequeued ahead of a waiting deprioritized message, only touched by the owner's dequeue
+		private int passedOver;
+
+		InstrumentedQueue(LongAdder depth, LongAdder dropped, ActorRef deadLetters, int capacity, Set<Class<?>> deprioritized,
+				int deprioritizedEvery) {
+			this.depth = depth;
+			this.dropped = dropped;
+			this.deadLetters = deadLetters;
+			this.capacity = capacity;
+			this.deprioritized = deprioritized;
+			this.deprioritizedEvery = deprioritizedEvery;
+		}
+
+		@Override
+		public void enqueue(ActorRef receiver, Envelope handle) {
+			if (size.incrementAndGet() > capacity && capacity > 0) {
+				size.decrementAndGet();
+				dropped.increment();
+				if (deadLetters != null) {
+					deadLetters.tell(new DeadLetter(handle.message(), handle.sender(), receiver), handle.sender());
+				}
+				return;
+			}
+
+			if (!deprioritized.isEmpty() && deprioritized.contains(handle.message().getClass())) {
+				deprioritizedQueue.offer(handle);
+			} else {
+				queue.offer(handle);
+			}
+			depth.increment();
+		}
+
+		@Override
+		public Envelope dequeue() {
+			Envelope envelope = null;
+			if (deprioritizedEvery > 0 && passedOver >= deprioritizedEvery) {
+				envelope = deprioritizedQueue.poll();
+				passedOver = 0;
+			}
+			if (envelope == null) {
+				envelope = queue.poll();
+				if (envelope != null && deprioritizedEvery > 0 && !deprioritizedQueue.isEmpty()) {
+					passedOver++;
+				}
+			}
+			if (envelope == null) {
+				envelope = deprioritizedQueue.poll();
+				passedOver = 0;
+			}
+			if (envelope != null) {
+				size.decrementAndGet();
+				depth.decrement();
+			}
+			return envelope;
+		}
+
+		@Override
+		public int numberOfMessages() {
+			return size.get();
+		}
+
+		@Override
+		public boolean hasMessages() {
+			return !queue.isEmpty() || !deprioritizedQueue.isEmpty();
+		}
+
+		@Override
+		public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+			Envelope envelope;
+			while ((envelope = dequeue()) != null) {
+				deadLetters.enqueue(owner, envelope);
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.example.iot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+
+/**
+ * Counters, gauges and latency histograms of the IoT actors of one actor system. Everything is safe to
+ * update from any actor, counters and gauges are LongAdders and histograms are concurrent HdrHistograms.
+ * <p>
+ * Names are dotted, e.g. messages.Device.RecordTemperature, actors.Device.live, mailbox.device.depth,
+ * query.fanout and query.completion-micros. Histograms show up as name.count, name.p50, name.p99 and name.max.
+ * Read them with snapshot(), through JMX as com.example.iot:type=IotMetrics,system=&lt;name&gt;, or as
+ * "name value" lines over HTTP when iot.metrics.http.enabled is on, see reference.conf.
+ */
+public final class IotMetrics implements Extension {
+	private static final Logger log = LoggerFactory.getLogger(IotMetrics.class);
+
+	private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+	// message class -> counter, one map per actor class so the hot path looks up by class, not by name
+	private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<Class<?>, LongAdder>> messageCounters = new ConcurrentHashMap<>();
+	private final HttpServer httpServer;
+
+	public static final class Id extends ExtensionId<IotMetrics> {
+		@Override
+		public IotMetrics createExtension(ActorSystem<?> system) {
+			return new IotMetrics(system);
+		}
+	}
+
+	public static final Id ID = new Id();
+
+	public static IotMetrics get(ActorSystem<?> system) {
+		return ID.apply(system);
+	}
+
+	// private constructor
+	private IotMetrics(ActorSystem<?> system) {
+		Config config = system.settings().config().getConfig("iot.metrics");
+		if (config.getBoolean("jmx.enabled")) {
+			registerMBean(system);
+		}
+		httpServer = config.getBoolean("http.enabled") ? startHttpServer(system, config.getString("http.interface"), config.getInt("http.port"))
+				: null;
+	}
+
+	// counters only go up, a gauge is a counter that is also decremented
+	public LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		return counter != null ? counter : counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	// values in whatever unit the name says, e.g. query.completion-micros
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		return histogram != null ? histogram : histograms.computeIfAbsent(name, n -> new ConcurrentHistogram(2));
+	}
+
+	// counts messages handled by actors of actorClass, see MetricsInterceptor
+	void messageHandled(Class<?> actorClass, Object message) {
+		ConcurrentHashMap<Class<?>, LongAdder> byMessage = messageCounters.get(actorClass);
+		if (byMessage == null) {
+			byMessage = messageCounters.computeIfAbsent(actorClass, c -> new ConcurrentHashMap<>());
+		}
+		LongAdder counter = byMessage.get(message.getClass());
+		if (counter == null) {
+			counter = byMessage.computeIfAbsent(message.getClass(),
+					c -> counter("messages." + actorClass.getSimpleName() + "." + c.getSimpleName()));
+		}
+		counter.increment();
+	}
+
+	// current value of every metric, sorted by name
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> snapshot = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().sum());
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			String name = entry.getKey();
+			snapshot.put(name + ".count", histogram.getTotalCount());
+			snapshot.put(name + ".p50", histogram.getValueAtPercentile(50));
+			snapshot.put(name + ".p90", histogram.getValueAtPercentile(90));
+			snapshot.put(name + ".p99", histogram.getValueAtPercentile(99));
+			snapshot.put(name + ".max", histogram.getMaxValue());
+		}
+		return snapshot;
+	}
+
+	// one "name value" line per metric
+	public String render() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+			text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	// where the text endpoint listens, null unless it's enabled
+	public InetSocketAddress httpAddress() {
+		return httpServer == null ? null : httpServer.getAddress();
+	}
+
+	private void registerMBean(ActorSystem<?> system) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName("com.example.iot:type=IotMetrics,system=" + ObjectName.quote(system.name()));
+			if (server.isRegistered(name)) {
+				log.warn("IotMetrics of another actor system named {} are already registered, skipping JMX", system.name());
+				return;
+			}
+			server.registerMBean(new MetricsMBean(), name);
+			system.getWhenTerminated().thenRun(() -> {
+				try {
+					server.unregisterMBean(name);
+				} catch (JMException e) {
+					log.debug("Unregistering {} failed", name, e);
+				}
+			});
+		} catch (JMException e) {
+			log.warn("Registering IotMetrics with JMX failed", e);
+		}
+	}
+
+	private HttpServer startHttpServer(ActorSystem<?> system, String host, int port) {
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.start();
+			system.getWhenTerminated().thenRun(() -> server.stop(0));
+			log.info("IotMetrics served on http://{}:{}/metrics", host, server.getAddress().getPort());
+			return server;
+		} catch (IOException e) {
+			log.warn("Starting the IotMetrics endpoint on {}:{} failed", host, port, e);
+			return null;
+		}
+	}
+
+	// read-only view of snapshot(), the attributes are whatever metrics exist when it's asked
+	private final class MetricsMBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Long> snapshot = snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				if (snapshot.containsKey(attribute)) {
+					list.add(new Attribute(attribute, snapshot.get(attribute)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			SortedMap<String, Long> snapshot = snapshot();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+			int i = 0;
+			for (String name : snapshot.keySet()) {
+				attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+			}
+			return new MBeanInfo(IotMetrics.class.getName(), "Metrics of the IoT actors", attributes, null, null, null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("IotMetrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("IotMetrics have no operations");
+		}
+	}
+}
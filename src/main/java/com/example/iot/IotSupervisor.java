@@ -20,6 +20,7 @@ public class IotSupervisor extends AbstractBehavior<Void> {
 	// Private construtor that's invoked in the factory method above.
 	private IotSupervisor(ActorContext<Void> context) {
 		super(context);
+		context.spawn(DeviceManager.create(), "device-manager", ActorTiers.fromConfig(context.getSystem().settings().config()).manager());
 		context.getLog().info("IoT application started");
 	}
 
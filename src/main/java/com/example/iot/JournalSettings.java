@@ -0,0 +1,89 @@
+package com.example.iot;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Where and how a group's ReadingJournal writes readings. Instances are immutable,
+ * the with* methods return a changed copy.
+ */
+public final class JournalSettings {
+	public enum Durability {
+		// writes are acked as soon as the device has them, the next flush makes them durable
+		WRITE_BEHIND,
+		// acks wait for the flush that forced the reading to disk
+		FLUSH_BEFORE_ACK
+	}
+
+	private Path directory;
+	private int maxBatchSize = 1000;
+	private Duration maxBatchDelay = Duration.ofMillis(5);
+	private int segmentSize = 64 * 1024 * 1024;
+	private Durability durability = Durability.FLUSH_BEFORE_ACK;
+
+	private JournalSettings() {}
+
+	// segment files go to directory, named after the group
+	public static JournalSettings create(Path directory) {
+		JournalSettings settings = new JournalSettings();
+		settings.directory = directory;
+		return settings;
+	}
+
+	private JournalSettings copy() {
+		JournalSettings copy = new JournalSettings();
+		copy.directory = directory;
+		copy.maxBatchSize = maxBatchSize;
+		copy.maxBatchDelay = maxBatchDelay;
+		copy.segmentSize = segmentSize;
+		copy.durability = durability;
+		return copy;
+	}
+
+	/**
+	 * A flush happens once maxSize readings are waiting or maxDelay after the first of them arrived,
+	 * whichever comes first. Every flush is one fsync of the current segment.
+	 */
+	public JournalSettings withBatching(int maxSize, Duration maxDelay) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive, was " + maxSize);
+		}
+		JournalSettings copy = copy();
+		copy.maxBatchSize = maxSize;
+		copy.maxBatchDelay = maxDelay;
+		return copy;
+	}
+
+	// bytes mapped per segment file, a new segment is started when a reading doesn't fit anymore
+	public JournalSettings withSegmentSize(int bytes) {
+		JournalSettings copy = copy();
+		copy.segmentSize = bytes;
+		return copy;
+	}
+
+	public JournalSettings withDurability(Durability value) {
+		JournalSettings copy = copy();
+		copy.durability = value;
+		return copy;
+	}
+
+	public Path directory() {
+		return directory;
+	}
+
+	public int maxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public Duration maxBatchDelay() {
+		return maxBatchDelay;
+	}
+
+	public int segmentSize() {
+		return segmentSize;
+	}
+
+	public Durability durability() {
+		return durability;
+	}
+}
@@ -0,0 +1,56 @@
+package com.example.iot;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.BehaviorInterceptor;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.Signal;
+import akka.actor.typed.TypedActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+
+/**
+ * Counts the messages an actor handles by type and keeps actors.&lt;class&gt;.live up to date,
+ * see IotMetrics. Wraps the factories of the IoT actors.
+ */
+final class MetricsInterceptor<T> extends BehaviorInterceptor<T, T> {
+	private final IotMetrics metrics;
+	private final Class<?> actorClass;
+	private final LongAdder live;
+
+	static <T> Behavior<T> instrument(Class<?> actorClass, Class<T> messageClass, Behavior<T> behavior) {
+		return Behaviors.setup(context -> {
+			IotMetrics metrics = IotMetrics.get(context.getSystem());
+			return Behaviors.intercept(() -> new MetricsInterceptor<>(messageClass, metrics, actorClass), behavior);
+		});
+	}
+
+	// private constructor
+	private MetricsInterceptor(Class<T> messageClass, IotMetrics metrics, Class<?> actorClass) {
+		super(messageClass);
+		this.metrics = metrics;
+		this.actorClass = actorClass;
+		this.live = metrics.counter("actors." + actorClass.getSimpleName() + ".live");
+	}
+
+	@Override
+	public Behavior<T> aroundStart(TypedActorContext<T> ctx, PreStartTarget<T> target) {
+		live.increment();
+		return target.start(ctx);
+	}
+
+	@Override
+	public Behavior<T> aroundReceive(TypedActorContext<T> ctx, T msg, ReceiveTarget<T> target) {
+		metrics.messageHandled(actorClass, msg);
+		return target.apply(ctx, msg);
+	}
+
+	// an actor that stops itself still gets PostStop through here, it's the behavior it stopped from
+	@Override
+	public Behavior<T> aroundSignal(TypedActorContext<T> ctx, Signal signal, SignalTarget<T> target) {
+		if (signal instanceof PostStop) {
+			live.decrement();
+		}
+		return target.apply(ctx, signal);
+	}
+}
@@ -0,0 +1,264 @@
+package com.example.iot;
+
+import java.util.Optional;
+
+import org.slf4j.event.Level;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.RecoveryCompleted;
+import akka.persistence.typed.javadsl.CommandHandler;
+import akka.persistence.typed.javadsl.Effect;
+import akka.persistence.typed.javadsl.EffectBuilder;
+import akka.persistence.typed.javadsl.EventHandler;
+import akka.persistence.typed.javadsl.EventSourcedBehavior;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import akka.persistence.typed.javadsl.SignalHandler;
+
+/**
+ * A Device that journals every reading, so a restarted device comes back with its last one.
+ * It speaks the Device protocol, a reply to RecordTemperature means the reading is stored.
+ * Recovery starts from the latest snapshot, the events before it are deleted when it is taken.
+ * A device with nothing to recover starts from Device.Builder.lastReading, if set, and after recovery
+ * the group is told the device's reading. Readings are also appended to Device.Builder.journal, if set.
+ * The window for ReadTemperatureStats is kept in memory only and starts empty after a restart.
+ */
+public class PersistentDevice extends EventSourcedBehavior<Device.Command, PersistentDevice.Event, PersistentDevice.State> {
+	public static final int SNAPSHOT_EVERY = 100;
+
+	private final ActorContext<Device.Command> context;
+	private final String groupId;
+	private final String deviceId;
+	private final ActorRef<DeviceGroup.Command> reportTo;
+	private final ActorRef<DeviceGroup.Command> passivateVia;
+	// the group's journal, null if readings aren't journaled there
+	private final ActorRef<ReadingJournal.Command> journal;
+	private final boolean ackAfterFlush;
+	private final State seed;
+	private final int readingBufferCapacity;
+	private ReadingBuffer recentReadings;
+	private double[] statsScratch;
+	private Device.AckPolicy ackPolicy;
+	private int writesSinceAck;
+	private final EventLog recordedLog;
+	private final TemperatureSubscriptions subscriptions;
+
+	public interface Event extends CborSerializable {}
+
+	public static final class TemperatureChanged implements Event {
+		final double value;
+		// epoch millis, part of the event so replays restore the same timestamp
+		final long timestamp;
+
+		public TemperatureChanged(double value, long timestamp) {
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// also the snapshot, the last reading is all a device needs to come back warm
+	public static final class State implements CborSerializable {
+		static final State EMPTY = new State(false, Double.NaN, 0L);
+
+		final boolean hasReading;
+		final double temperature;
+		final long timestamp;
+
+		public State(boolean hasReading, double temperature, long timestamp) {
+			this.hasReading = hasReading;
+			this.temperature = temperature;
+			this.timestamp = timestamp;
+		}
+	}
+
+	public static PersistenceId persistenceId(String groupId, String deviceId) {
+		return PersistenceId.of("Device", groupId + ":" + deviceId);
+	}
+
+	// factory method, use Device.Builder.persistent(true)
+	static Behavior<Device.Command> create(Device.Builder builder) {
+		return Behaviors.setup(context -> Behaviors.withTimers(timers -> {
+			if (builder.passivateVia != null) {
+				context.setReceiveTimeout(builder.idleTimeout, Device.IdleTimeout.INSTANCE);
+			}
+			return new PersistentDevice(builder, context, timers);
+		}));
+	}
+
+	// private constructor
+	private PersistentDevice(Device.Builder builder, ActorContext<Device.Command> context, TimerScheduler<Device.Command> timers) {
+		super(persistenceId(builder.groupId, builder.deviceId));
+		this.context = context;
+		this.groupId = builder.groupId;
+		this.deviceId = builder.deviceId;
+		this.reportTo = builder.reportTo;
+		this.passivateVia = builder.passivateVia;
+		this.journal = builder.journal;
+		this.ackAfterFlush = builder.journal != null && builder.ackAfterFlush;
+		this.seed = builder.hasReading ? new State(true, builder.lastTemperature, builder.lastTimestamp) : State.EMPTY;
+		this.readingBufferCapacity = builder.readingBufferCapacity;
+		this.ackPolicy = builder.ackPolicy;
+		this.recordedLog = EventLog.create(context.getLog(), Level.DEBUG, "temperature-recorded", Device.RECORDED_LOG_SAMPLE_EVERY,
+				Device.RECORDED_LOG_MIN_INTERVAL);
+		this.subscriptions = new TemperatureSubscriptions(groupId, deviceId, timers);
+	}
+
+	// replaced by whatever recovery finds, so the seed only counts for devices without events or snapshot
+	@Override
+	public State emptyState() {
+		return seed;
+	}
+
+	@Override
+	public RetentionCriteria retentionCriteria() {
+		return RetentionCriteria.snapshotEvery(SNAPSHOT_EVERY, 1).withDeleteEventsOnSnapshot();
+	}
+
+	@Override
+	public CommandHandler<Device.Command, Event, State> commandHandler() {
+		return newCommandHandlerBuilder()
+			.forAnyState()
+			.onCommand(Device.ReadTemperature.class, this::onReadTemperature)
+			.onCommand(Device.RecordTemperature.class, this::onRecordTemperature)
+			.onCommand(Device.UpdateTemperature.class, (state, u) -> persistReading(state, u.value))
+			.onCommand(Device.ChangeAckPolicy.class, this::onChangeAckPolicy)
+			.onCommand(Device.ReadTemperatureStats.class, this::onReadTemperatureStats)
+			.onCommand(Device.SubscribeTemperature.class, this::onSubscribeTemperature)
+			.onCommand(Device.UnsubscribeTemperature.class, (state, u) -> onUnsubscribe(u.subscriber))
+			.onCommand(Device.SubscriberTerminated.class, (state, t) -> onUnsubscribe(t.subscriber))
+			.onCommand(Device.FlushSubscription.class, (state, f) -> {
+				subscriptions.flush(f.subscriber);
+				return Effect().none();
+			})
+			.onCommand(Device.IdleTimeout.class, this::onIdleTimeout)
+			.onCommand(Device.Passivate.class, this::onPassivate)
+			.build();
+	}
+
+	@Override
+	public EventHandler<State, Event> eventHandler() {
+		return newEventHandlerBuilder()
+			.forAnyState()
+			.onEvent(TemperatureChanged.class, (state, changed) -> new State(true, changed.value, changed.timestamp))
+			.build();
+	}
+
+	@Override
+	public SignalHandler<State> signalHandler() {
+		return newSignalHandlerBuilder()
+			.onSignal(RecoveryCompleted.instance(), this::onRecoveryCompleted)
+			.build();
+	}
+
+	// the group spawned us not knowing what the journal holds, materialized readings need the recovered one
+	private void onRecoveryCompleted(State state) {
+		context.getLog().info("Device actor {}-{} recovered", groupId, deviceId);
+		if (state.hasReading && reportTo != null) {
+			reportTo.tell(new DeviceGroup.DeviceTemperatureChanged(deviceId, state.temperature));
+		}
+	}
+
+	// --[HANDLERS]-- //
+
+	private Effect<Event, State> onRecordTemperature(State state, Device.RecordTemperature r) {
+		if (recordedLog.shouldLog()) {
+			recordedLog.log("group={} device={} value={} requestId={}", groupId, deviceId, r.value, r.requestId);
+		}
+		boolean ack = shouldAck(r);
+		return persistReading(state, r.value).thenRun(newState -> {
+			if (journal != null) {
+				journal.tell(new ReadingJournal.Append(deviceId, newState.temperature, newState.timestamp));
+			}
+			if (ack) {
+				Device.TemperatureRecorded recorded = new Device.TemperatureRecorded(r.requestId);
+				if (ackAfterFlush) {
+					journal.tell(new ReadingJournal.AckAfterFlush<>(r.replyTo, recorded,
+							new Device.TemperatureRecorded(r.requestId, "Reading of device " + deviceId + " could not be journaled")));
+				} else {
+					r.replyTo.tell(recorded);
+				}
+			}
+		});
+	}
+
+	private boolean shouldAck(Device.RecordTemperature r) {
+		if (ackPolicy.every > 0 && ++writesSinceAck >= ackPolicy.every) {
+			writesSinceAck = 0;
+			return true;
+		}
+		return r.ackRequested && ackPolicy.onRequest;
+	}
+
+	private EffectBuilder<Event, State> persistReading(State state, double value) {
+		boolean changed = !state.hasReading || Double.compare(state.temperature, value) != 0;
+		return Effect().persist(new TemperatureChanged(value, System.currentTimeMillis())).thenRun(newState -> {
+			if (changed && reportTo != null) {
+				reportTo.tell(new DeviceGroup.DeviceTemperatureChanged(deviceId, value));
+			}
+			if (changed) {
+				subscriptions.changed(value, newState.timestamp);
+			}
+			if (readingBufferCapacity > 0) {
+				if (recentReadings == null) {
+					recentReadings = new ReadingBuffer(readingBufferCapacity);
+				}
+				recentReadings.add(newState.temperature, newState.timestamp);
+			}
+		});
+	}
+
+	private Effect<Event, State> onChangeAckPolicy(State state, Device.ChangeAckPolicy c) {
+		ackPolicy = c.ackPolicy;
+		writesSinceAck = 0;
+		return Effect().none();
+	}
+
+	private Effect<Event, State> onReadTemperature(State state, Device.ReadTemperature r) {
+		if (r.primitiveOnly) {
+			r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId, state.hasReading, state.temperature, state.timestamp));
+		} else {
+			Optional<Double> value = state.hasReading ? Optional.of(state.temperature) : Optional.empty();
+			r.replyTo.tell(new Device.RespondTemperature(r.requestId, deviceId, value));
+		}
+		return Effect().none();
+	}
+
+	private Effect<Event, State> onReadTemperatureStats(State state, Device.ReadTemperatureStats r) {
+		if (recentReadings != null && statsScratch == null) {
+			statsScratch = new double[recentReadings.capacity()];
+		}
+		r.replyTo.tell(Device.windowStats(r, deviceId, recentReadings, statsScratch));
+		return Effect().none();
+	}
+
+	private Effect<Event, State> onSubscribeTemperature(State state, Device.SubscribeTemperature s) {
+		if (subscriptions.subscribe(s.subscriber, s.settings, state.hasReading, state.temperature, state.timestamp) && s.watchSubscriber) {
+			context.watchWith(s.subscriber, new Device.SubscriberTerminated(s.subscriber));
+		}
+		return Effect().none();
+	}
+
+	private Effect<Event, State> onUnsubscribe(ActorRef<Device.TemperatureUpdate> subscriber) {
+		if (subscriptions.unsubscribe(subscriber)) {
+			context.unwatch(subscriber);
+		}
+		return Effect().none();
+	}
+
+	private Effect<Event, State> onIdleTimeout(State state, Device.IdleTimeout timeout) {
+		passivateVia.tell(new DeviceGroup.DeviceIdle(deviceId, context.getSelf()));
+		return Effect().none();
+	}
+
+	// the journal already holds the reading, the group's copy only serves queries while the device is away
+	private Effect<Event, State> onPassivate(State state, Device.Passivate passivate) {
+		if (passivateVia != null) {
+			passivateVia.tell(new DeviceGroup.DevicePassivated(deviceId, state.hasReading, state.temperature, state.timestamp, ackPolicy));
+		}
+		return Effect().stop();
+	}
+}
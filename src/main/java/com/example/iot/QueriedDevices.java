@@ -0,0 +1,121 @@
+package com.example.iot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import akka.actor.typed.ActorRef;
+
+/**
+ * The devices a query fans out to, numbered by slot 0 .. size()-1. Ids are indices into the group's
+ * DeviceIndex, so building one copies no strings, and queries keep their results in arrays by slot.
+ * Ids are looked up only when the result is handed to the requester. Immutable.
+ * <p>
+ * slotOf finds the slot of an id for TemperatureReadings.get through an open addressing table of ints,
+ * the ids are the group's own instances, so their hash is cached and equals is usually a reference check.
+ * Replies to a query don't need it, they carry their slot in the requestId.
+ * Slots are in ascending index order, so slotOfIndex is a binary search.
+ */
+final class QueriedDevices {
+	private final String[] dictionary;
+	private final int[] indexes;
+	private final List<ActorRef<Device.Command>> devices;
+	// slot + 1 by the hash of the id, 0 is empty
+	private final int[] slots;
+
+	private QueriedDevices(String[] dictionary, int[] indexes, List<ActorRef<Device.Command>> devices) {
+		this.dictionary = dictionary;
+		this.indexes = indexes;
+		this.devices = devices;
+		this.slots = new int[Integer.highestOneBit(Math.max(indexes.length, 1) * 2) * 2];
+		int mask = slots.length - 1;
+		for (int slot = 0; slot < indexes.length; slot++) {
+			int i = spread(dictionary[indexes[slot]].hashCode()) & mask;
+			while (slots[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = slot + 1;
+		}
+	}
+
+	// for queries started outside a group, the ids get a dictionary of their own
+	static QueriedDevices of(Map<String, ActorRef<Device.Command>> deviceIdToActor) {
+		String[] dictionary = new String[deviceIdToActor.size()];
+		Builder builder = new Builder(dictionary, dictionary.length);
+		for (Map.Entry<String, ActorRef<Device.Command>> entry : deviceIdToActor.entrySet()) {
+			dictionary[builder.size] = entry.getKey();
+			builder.add(builder.size, entry.getValue());
+		}
+		return builder.build();
+	}
+
+	int size() {
+		return indexes.length;
+	}
+
+	// the device's index in the group's DeviceIndex
+	int index(int slot) {
+		return indexes[slot];
+	}
+
+	String deviceId(int slot) {
+		return dictionary[indexes[slot]];
+	}
+
+	ActorRef<Device.Command> device(int slot) {
+		return devices.get(slot);
+	}
+
+	// -1 if the device isn't queried
+	int slotOf(String deviceId) {
+		int mask = slots.length - 1;
+		for (int i = spread(deviceId.hashCode()) & mask; slots[i] != 0; i = (i + 1) & mask) {
+			if (deviceId.equals(dictionary[indexes[slots[i] - 1]])) {
+				return slots[i] - 1;
+			}
+		}
+		return -1;
+	}
+
+	// -1 if the device with this index in the group's DeviceIndex isn't queried
+	int slotOfIndex(int index) {
+		int slot = Arrays.binarySearch(indexes, index);
+		return slot >= 0 ? slot : -1;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	static final class Builder {
+		private final String[] dictionary;
+		private int[] indexes;
+		private final List<ActorRef<Device.Command>> devices;
+		private int size;
+
+		// dictionary is DeviceIndex.ids() of the group
+		Builder(String[] dictionary, int expectedSize) {
+			this.dictionary = dictionary;
+			this.indexes = new int[expectedSize];
+			this.devices = new ArrayList<>(expectedSize);
+		}
+
+		// in ascending index order
+		Builder add(int index, ActorRef<Device.Command> device) {
+			if (size > 0 && index <= indexes[size - 1]) {
+				throw new IllegalArgumentException("Device index " + index + " added after " + indexes[size - 1]);
+			}
+			if (size == indexes.length) {
+				indexes = Arrays.copyOf(indexes, Math.max(size * 2, 4));
+			}
+			indexes[size++] = index;
+			devices.add(device);
+			return this;
+		}
+
+		QueriedDevices build() {
+			return new QueriedDevices(dictionary, size == indexes.length ? indexes : Arrays.copyOf(indexes, size), devices);
+		}
+	}
+}
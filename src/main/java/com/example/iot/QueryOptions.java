@@ -0,0 +1,87 @@
+package com.example.iot;
+
+import java.time.Duration;
+
+/**
+ * Per-request tuning for RequestAllTemperatures. Instances are immutable,
+ * the with* methods return a changed copy.
+ */
+public final class QueryOptions {
+	public static final QueryOptions DEFAULT = new QueryOptions();
+
+	private Duration timeout;
+	private int partialChunkSize;
+	private double coverage = 1.0;
+
+	private QueryOptions() {}
+
+	private QueryOptions copy() {
+		QueryOptions copy = new QueryOptions();
+		copy.timeout = timeout;
+		copy.partialChunkSize = partialChunkSize;
+		copy.coverage = coverage;
+		return copy;
+	}
+
+	// how long to wait for devices, overrides GroupSettings.queryTimeout
+	public QueryOptions withTimeout(Duration value) {
+		QueryOptions copy = copy();
+		copy.timeout = value;
+		return copy;
+	}
+
+	/**
+	 * Stream the result: every chunkSize device replies go out as a RespondAllTemperatures with
+	 * complete = false, followed by a final one with complete = true holding whatever is left.
+	 */
+	public QueryOptions withPartialResults(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive, was " + chunkSize);
+		}
+		QueryOptions copy = copy();
+		copy.partialChunkSize = chunkSize;
+		return copy;
+	}
+
+	/**
+	 * Finish the query once this fraction of the devices has answered, the devices still
+	 * outstanding are reported as DeviceTimedOut as if the timeout had passed.
+	 */
+	public QueryOptions withCoverage(double fraction) {
+		if (fraction <= 0.0 || fraction > 1.0) {
+			throw new IllegalArgumentException("fraction must be in (0, 1], was " + fraction);
+		}
+		QueryOptions copy = copy();
+		copy.coverage = fraction;
+		return copy;
+	}
+
+	// null when the group default applies
+	public Duration timeout() {
+		return timeout;
+	}
+
+	// 0 when the result is sent in one piece
+	public int partialChunkSize() {
+		return partialChunkSize;
+	}
+
+	public double coverage() {
+		return coverage;
+	}
+
+	// cross-group queries merge whole group results, so groups must not stream
+	QueryOptions withoutPartialResults() {
+		if (partialChunkSize == 0) {
+			return this;
+		}
+		QueryOptions copy = copy();
+		copy.partialChunkSize = 0;
+		return copy;
+	}
+
+	// only requests that want the plain, complete result with the group's timeout can share a query
+	boolean coalescable() {
+		return timeout == null && partialChunkSize == 0 && coverage == 1.0;
+	}
+}
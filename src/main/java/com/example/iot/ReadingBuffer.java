@@ -0,0 +1,48 @@
+package com.example.iot;
+
+/**
+ * Fixed-size ring of the most recent timestamped readings, kept in two primitive arrays
+ * so a write is two array stores and never allocates.
+ */
+final class ReadingBuffer {
+	private final double[] values;
+	private final long[] timestamps;
+	private int next;
+	private int size;
+
+	ReadingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+		}
+		this.values = new double[capacity];
+		this.timestamps = new long[capacity];
+	}
+
+	void add(double value, long timestamp) {
+		values[next] = value;
+		timestamps[next] = timestamp;
+		next = (next + 1) % values.length;
+		if (size < values.length) {
+			size++;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return values.length;
+	}
+
+	// copies the values of readings taken at or after since into into, returns how many were copied
+	int valuesSince(long since, double[] into) {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (timestamps[i] >= since) {
+				into[count++] = values[i];
+			}
+		}
+		return count;
+	}
+}
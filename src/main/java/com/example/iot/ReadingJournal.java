@@ -0,0 +1,184 @@
+package com.example.iot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+/**
+ * Write-behind journal of one group's readings. Appends go straight into the current memory-mapped
+ * segment, a flush forces the segment to disk once per batch and releases the acks that waited for it.
+ * Runs on the blocking dispatcher since a flush is an fsync.
+ * <p>
+ * Stop is handled after the Appends sent before it, so they are flushed too. Once a write or flush fails,
+ * every ack that waits or arrives later gets its failure instead, Appends are dropped and the group is told with
+ * DeviceGroup.JournalFailed, it stops and sends Stop.
+ */
+public class ReadingJournal extends AbstractBehavior<ReadingJournal.Command> {
+	private final JournalSettings settings;
+	private final TimerScheduler<Command> timers;
+	private final ReadingSegmentWriter writer;
+	// appended since the last flush
+	private int unflushed;
+	private final List<AckAfterFlush<?>> waitingAcks = new ArrayList<>();
+	private final ActorRef<DeviceGroup.Command> group;
+	// set once a write failed, nothing is acked from then on
+	private boolean failed;
+
+	interface Command {}
+
+	static final class Append implements Command {
+		final String deviceId;
+		final double value;
+		final long timestamp;
+
+		Append(String deviceId, double value, long timestamp) {
+			this.deviceId = deviceId;
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// sends ack to replyTo once every Append received before it is on disk, or failure if that can't happen anymore
+	static final class AckAfterFlush<T> implements Command {
+		final ActorRef<T> replyTo;
+		final T ack;
+		final T failure;
+
+		AckAfterFlush(ActorRef<T> replyTo, T ack, T failure) {
+			this.replyTo = replyTo;
+			this.ack = ack;
+			this.failure = failure;
+		}
+
+		void send() {
+			replyTo.tell(ack);
+		}
+
+		void fail() {
+			replyTo.tell(failure);
+		}
+	}
+
+	// flushes and stops, sent by the group once none of its devices can append anymore
+	static enum Stop implements Command {
+		INSTANCE
+	}
+
+	private static enum FlushTimeout implements Command {
+		INSTANCE
+	}
+
+	// factory method
+	public static Behavior<Command> create(String groupId, JournalSettings settings, ActorRef<DeviceGroup.Command> group) {
+		return Behaviors.setup(context -> Behaviors.withTimers(timers -> new ReadingJournal(context, timers, groupId, settings, group)));
+	}
+
+	// private constructor
+	private ReadingJournal(ActorContext<Command> context, TimerScheduler<Command> timers, String groupId, JournalSettings settings,
+			ActorRef<DeviceGroup.Command> group) throws IOException {
+		super(context);
+		this.settings = settings;
+		this.timers = timers;
+		this.group = group;
+		this.writer = new ReadingSegmentWriter(settings.directory(), ReadingSegmentWriter.prefixFor(groupId), settings.segmentSize());
+		context.getLog().info("Reading journal for group {} started in {}", groupId, settings.directory());
+	}
+
+	@Override
+	public Receive<Command> createReceive() {
+		return newReceiveBuilder()
+			.onMessage(Append.class, this::onAppend)
+			.onMessage(AckAfterFlush.class, this::onAckAfterFlush)
+			.onMessage(FlushTimeout.class, timeout -> flush())
+			.onMessage(Stop.class, stop -> onStop())
+			.onSignal(PostStop.class, signal -> onPostStop())
+			.build();
+	}
+
+	private Behavior<Command> onAppend(Append append) {
+		if (failed) {
+			return this;
+		}
+		try {
+			writer.append(append.deviceId, append.value, append.timestamp);
+		} catch (IOException | RuntimeException e) {
+			getContext().getLog().error("Journaling a reading of device {} failed", append.deviceId, e);
+			return fail();
+		}
+
+		if (++unflushed >= settings.maxBatchSize()) {
+			return flush();
+		}
+		if (unflushed == 1) {
+			timers.startSingleTimer(FlushTimeout.INSTANCE, settings.maxBatchDelay());
+		}
+		return this;
+	}
+
+	private Behavior<Command> onAckAfterFlush(AckAfterFlush<?> ack) {
+		if (failed) {
+			ack.fail();
+		} else if (unflushed == 0) {
+			ack.send();
+		} else {
+			waitingAcks.add(ack);
+		}
+		return this;
+	}
+
+	private Behavior<Command> flush() {
+		timers.cancel(FlushTimeout.INSTANCE);
+		if (unflushed > 0 && !failed) {
+			try {
+				writer.force();
+			} catch (RuntimeException e) {
+				getContext().getLog().error("Flushing the reading journal failed", e);
+				return fail();
+			}
+			unflushed = 0;
+		}
+		for (AckAfterFlush<?> ack : waitingAcks) {
+			ack.send();
+		}
+		waitingAcks.clear();
+		return this;
+	}
+
+	private Behavior<Command> fail() {
+		if (!failed) {
+			failed = true;
+			timers.cancel(FlushTimeout.INSTANCE);
+			group.tell(DeviceGroup.JournalFailed.INSTANCE);
+		}
+		for (AckAfterFlush<?> ack : waitingAcks) {
+			ack.fail();
+		}
+		waitingAcks.clear();
+		return this;
+	}
+
+	private Behavior<Command> onStop() {
+		flush();
+		return Behaviors.stopped();
+	}
+
+	// also when the group stopped without Stop, whatever is still in the mailbox is lost then
+	private ReadingJournal onPostStop() {
+		flush();
+		try {
+			writer.close();
+		} catch (IOException | RuntimeException e) {
+			getContext().getLog().error("Closing the reading journal failed", e);
+		}
+		return this;
+	}
+}
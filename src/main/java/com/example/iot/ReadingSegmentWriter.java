@@ -0,0 +1,222 @@
+package com.example.iot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Appends readings to memory-mapped segment files named prefix-NNNNNNNNNN.seg. A record is the
+ * int size of the payload, the int CRC32C of the payload, then the payload: the UTF-8 device id, the double
+ * value and the long timestamp. Segments are zero-filled when mapped, so a size of 0 marks the end of the
+ * written part. Reading stops at the first record that doesn't fit or fails its CRC, e.g. one torn by a crash.
+ * A new writer continues the last segment after its last valid record, so restarts don't leave mostly
+ * empty segments behind.
+ * Not thread-safe, ReadingJournal is its only user.
+ */
+final class ReadingSegmentWriter implements Closeable {
+	private static final int VALUE_AND_TIMESTAMP = Double.BYTES + Long.BYTES;
+	private static final int RECORD_HEADER = Integer.BYTES + Integer.BYTES;
+
+	private final Path directory;
+	private final String prefix;
+	private final int segmentSize;
+	// encoded ids, a group has a fixed set of devices that write over and over
+	private final Map<String, byte[]> encodedIds = new HashMap<>();
+	private final CRC32C crc = new CRC32C();
+	private long segmentIndex;
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+
+	// prefix must be safe to use in a file name and a glob, see prefixFor
+	ReadingSegmentWriter(Path directory, String prefix, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+		List<Path> existing = segments(directory, prefix);
+		if (existing.isEmpty()) {
+			openSegment();
+			return;
+		}
+
+		Path last = existing.get(existing.size() - 1);
+		segmentIndex = indexOf(last, prefix);
+		// a segment written with another segment size is left alone
+		if (Files.size(last) != segmentSize) {
+			segmentIndex++;
+			openSegment();
+			return;
+		}
+		channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		int end = endOfRecords(segment, crc);
+		// not a single valid record, e.g. one written without CRCs, is left alone instead of overwritten
+		if (end == 0 && segment.getInt(0) != 0) {
+			channel.close();
+			segmentIndex++;
+			openSegment();
+			return;
+		}
+		segment.position(end);
+		// what follows an invalid record must not turn valid again once a new record ends where an old one did
+		if (segment.remaining() >= Integer.BYTES && segment.getInt(end) != 0) {
+			while (segment.hasRemaining()) {
+				segment.put((byte) 0);
+			}
+			segment.position(end);
+		}
+	}
+
+	/**
+	 * groupId as a file name prefix. Letters, digits, '.', '_' and '-' are kept, anything else becomes
+	 * %XX per UTF-8 byte, so a group id can neither leave the directory nor act as a glob pattern.
+	 */
+	static String prefixFor(String groupId) {
+		StringBuilder prefix = new StringBuilder(groupId.length());
+		for (byte b : groupId.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-') {
+				prefix.append(c);
+			} else {
+				prefix.append(String.format("%%%02X", b & 0xff));
+			}
+		}
+		return prefix.toString();
+	}
+
+	void append(String deviceId, double value, long timestamp) throws IOException {
+		byte[] id = encodedIds.computeIfAbsent(deviceId, d -> d.getBytes(StandardCharsets.UTF_8));
+		int size = id.length + VALUE_AND_TIMESTAMP;
+		if (RECORD_HEADER + size > segmentSize) {
+			throw new IllegalArgumentException("Reading of device " + deviceId + " doesn't fit in a segment of " + segmentSize + " bytes");
+		}
+		if (segment.remaining() < RECORD_HEADER + size) {
+			rollSegment();
+		}
+		int start = segment.position();
+		segment.putInt(size).putInt(0).put(id).putDouble(value).putLong(timestamp);
+		segment.putInt(start + Integer.BYTES, checksum(segment, start + RECORD_HEADER, size, crc));
+	}
+
+	// forces everything appended so far to disk
+	void force() {
+		segment.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		segment.force();
+		channel.close();
+	}
+
+	private void rollSegment() throws IOException {
+		segment.force();
+		channel.close();
+		segmentIndex++;
+		openSegment();
+	}
+
+	private void openSegment() throws IOException {
+		Path path = directory.resolve(String.format("%s-%010d.seg", prefix, segmentIndex));
+		channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	}
+
+	// --[READING]-- //
+
+	interface ReadingVisitor {
+		void reading(String deviceId, double value, long timestamp);
+	}
+
+	// the segments of prefix in directory, oldest first
+	static List<Path> segments(Path directory, String prefix) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		if (!Files.isDirectory(directory)) {
+			return segments;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*.seg")) {
+			for (Path path : stream) {
+				if (indexOf(path, prefix) >= 0) {
+					segments.add(path);
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	// visits the valid records up to the first one that isn't
+	static void read(Path segment, ReadingVisitor visitor) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32C crc = new CRC32C();
+			int position = 0;
+			for (int end = recordEnd(buffer, position, crc); end > 0; end = recordEnd(buffer, position, crc)) {
+				byte[] id = new byte[end - position - RECORD_HEADER - VALUE_AND_TIMESTAMP];
+				buffer.position(position + RECORD_HEADER);
+				buffer.get(id);
+				visitor.reading(new String(id, StandardCharsets.UTF_8), buffer.getDouble(), buffer.getLong());
+				position = end;
+			}
+		}
+	}
+
+	// position after the last valid record, where appending continues
+	private static int endOfRecords(ByteBuffer buffer, CRC32C crc) {
+		int position = 0;
+		for (int end = recordEnd(buffer, position, crc); end > 0; end = recordEnd(buffer, position, crc)) {
+			position = end;
+		}
+		return position;
+	}
+
+	// the end of the record at position, -1 at the end of the records or if the record doesn't fit or fails its CRC
+	private static int recordEnd(ByteBuffer buffer, int position, CRC32C crc) {
+		if (buffer.limit() - position < RECORD_HEADER) {
+			return -1;
+		}
+		int size = buffer.getInt(position);
+		if (size < VALUE_AND_TIMESTAMP || size > buffer.limit() - position - RECORD_HEADER) {
+			return -1;
+		}
+		if (checksum(buffer, position + RECORD_HEADER, size, crc) != buffer.getInt(position + Integer.BYTES)) {
+			return -1;
+		}
+		return position + RECORD_HEADER + size;
+	}
+
+	private static int checksum(ByteBuffer buffer, int position, int length, CRC32C crc) {
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(position + length).position(position);
+		crc.reset();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	// -1 if the file name isn't prefix-NNNNNNNNNN.seg
+	private static long indexOf(Path segment, String prefix) {
+		String name = segment.getFileName().toString();
+		String index = name.substring(prefix.length() + 1, name.length() - ".seg".length());
+		if (index.length() != 10) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(index);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.example.iot;
+
+import java.time.Duration;
+
+/**
+ * When a subscription pushes a device's reading, see Device.SubscribeTemperature and
+ * DeviceManager.SubscribeTemperatures. Instances are immutable, the with* methods return a changed copy.
+ * <p>
+ * The default pushes a change right away and conflates what follows within 100 ms, so a device that
+ * changes faster than that can't build up a backlog at a slow subscriber. withMinInterval(ZERO) pushes every change.
+ */
+public final class SubscriptionSettings {
+	public static final SubscriptionSettings DEFAULT = new SubscriptionSettings();
+
+	private double deadband;
+	private Duration minInterval = Duration.ofMillis(100);
+
+	private SubscriptionSettings() {}
+
+	private SubscriptionSettings copy() {
+		SubscriptionSettings copy = new SubscriptionSettings();
+		copy.deadband = deadband;
+		copy.minInterval = minInterval;
+		return copy;
+	}
+
+	// readings within this distance of the last pushed one aren't pushed, 0 pushes every change
+	public SubscriptionSettings withDeadband(double value) {
+		if (value < 0.0 || Double.isNaN(value)) {
+			throw new IllegalArgumentException("deadband must not be negative, was " + value);
+		}
+		SubscriptionSettings copy = copy();
+		copy.deadband = value;
+		return copy;
+	}
+
+	/**
+	 * At most one push per interval. Changes in between are conflated, only the latest one is pushed
+	 * once the interval is over, so a subscriber never gets more than one update per interval and device.
+	 * ZERO doesn't limit.
+	 */
+	public SubscriptionSettings withMinInterval(Duration value) {
+		if (value.isNegative()) {
+			throw new IllegalArgumentException("minInterval must not be negative, was " + value);
+		}
+		SubscriptionSettings copy = copy();
+		copy.minInterval = value;
+		return copy;
+	}
+
+	public double deadband() {
+		return deadband;
+	}
+
+	public Duration minInterval() {
+		return minInterval;
+	}
+}
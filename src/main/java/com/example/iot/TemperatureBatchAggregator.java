@@ -0,0 +1,166 @@
+package com.example.iot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.RecipientRef;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+/**
+ * Splits a RecordTemperatureBatch that spans several groups into one sub-batch per group
+ * and merges the group acks into a single TemperatureBatchRecorded for the requester.
+ * A DeviceManagerPool uses it the same way with one sub-batch per pooled manager.
+ * Entries of groups that don't ack in time or stop first are reported as pending, not failed,
+ * their readings may well have been recorded.
+ */
+public class TemperatureBatchAggregator extends AbstractBehavior<TemperatureBatchAggregator.Command> {
+	private final long requestId;
+	private final ActorRef<DeviceManager.TemperatureBatchRecorded> requester;
+	// sub-batch request id -> group id, request ids are the position of the group in this batch
+	private final Map<Long, String> stillWaiting = new HashMap<>();
+	private final Map<String, List<DeviceManager.TemperatureEntry>> entriesByGroup;
+	private final List<DeviceManager.TemperatureEntry> failed;
+	private final List<DeviceManager.TemperatureEntry> pending = new ArrayList<>();
+	private int recorded;
+
+	private static enum CollectionTimeout implements Command {
+		INSTANCE
+	}
+
+	interface Command {}
+
+	// factory method
+	public static final class Builder {
+		private Map<String, ? extends RecipientRef<? super DeviceManager.RecordTemperatureBatch>> groupIdToActor;
+		private Map<String, List<DeviceManager.TemperatureEntry>> entriesByGroup;
+		private List<DeviceManager.TemperatureEntry> failed = new ArrayList<>();
+		private long requestId;
+		private ActorRef<DeviceManager.TemperatureBatchRecorded> requester;
+		private Duration timeout;
+
+		public Builder() {}
+
+		public Builder groupIdToActor(Map<String, ? extends RecipientRef<? super DeviceManager.RecordTemperatureBatch>> refs) {
+			groupIdToActor = refs;
+			return this;
+		}
+		public Builder entriesByGroup(Map<String, List<DeviceManager.TemperatureEntry>> value) {
+			entriesByGroup = value;
+			return this;
+		}
+		public Builder failed(List<DeviceManager.TemperatureEntry> value) {
+			failed = value;
+			return this;
+		}
+		public Builder requestId(long value) {
+			requestId = value;
+			return this;
+		}
+		public Builder requester(ActorRef<DeviceManager.TemperatureBatchRecorded> ref) {
+			requester = ref;
+			return this;
+		}
+		public Builder timeout(Duration value) {
+			timeout = value;
+			return this;
+		}
+
+		public Behavior<Command> build() {
+			return Behaviors.setup(context -> Behaviors.withTimers(timers -> new TemperatureBatchAggregator(this, context, timers)));
+		}
+	}
+
+	private TemperatureBatchAggregator(Builder builder, ActorContext<Command> context, TimerScheduler<Command> timers) {
+		super(context);
+		this.requestId = builder.requestId;
+		this.requester = builder.requester;
+		this.entriesByGroup = builder.entriesByGroup;
+		this.failed = new ArrayList<>(builder.failed);
+
+		timers.startSingleTimer(CollectionTimeout.INSTANCE, builder.timeout);
+
+		ActorRef<DeviceManager.TemperatureBatchRecorded> batchRecordedAdapter = context.messageAdapter(DeviceManager.TemperatureBatchRecorded.class,
+				WrappedBatchRecorded::new);
+
+		long subRequestId = 0L;
+		for (Map.Entry<String, List<DeviceManager.TemperatureEntry>> entry : entriesByGroup.entrySet()) {
+			RecipientRef<? super DeviceManager.RecordTemperatureBatch> groupRef = builder.groupIdToActor.get(entry.getKey());
+			// sharded groups can't be watched, for them the timeout is the only way to notice a loss
+			if (groupRef instanceof ActorRef) {
+				context.watchWith((ActorRef<?>) groupRef, new GroupTerminated(subRequestId));
+			}
+			groupRef.tell(new DeviceManager.RecordTemperatureBatch(subRequestId, entry.getValue(), batchRecordedAdapter));
+			stillWaiting.put(subRequestId, entry.getKey());
+			subRequestId++;
+		}
+	}
+
+	static class WrappedBatchRecorded implements Command {
+		final DeviceManager.TemperatureBatchRecorded response;
+
+		WrappedBatchRecorded(DeviceManager.TemperatureBatchRecorded response) {
+			this.response = response;
+		}
+	}
+
+	private static class GroupTerminated implements Command {
+		final long subRequestId;
+
+		private GroupTerminated(long subRequestId) {
+			this.subRequestId = subRequestId;
+		}
+	}
+
+	@Override
+	public Receive<Command> createReceive() {
+		return newReceiveBuilder()
+			.onMessage(WrappedBatchRecorded.class, this::onBatchRecorded)
+			.onMessage(GroupTerminated.class, this::onGroupTerminated)
+			.onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+			.build();
+	}
+
+	private Behavior<Command> onBatchRecorded(WrappedBatchRecorded r) {
+		if (stillWaiting.remove(r.response.requestId) != null) {
+			recorded += r.response.recorded;
+			failed.addAll(r.response.failed);
+			pending.addAll(r.response.pending);
+		}
+		return respondWhenAllCollected();
+	}
+
+	// a group that stopped before acking may or may not have applied its readings
+	private Behavior<Command> onGroupTerminated(GroupTerminated terminated) {
+		String groupId = stillWaiting.remove(terminated.subRequestId);
+		if (groupId != null) {
+			pending.addAll(entriesByGroup.get(groupId));
+		}
+		return respondWhenAllCollected();
+	}
+
+	private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+		for (String groupId : stillWaiting.values()) {
+			pending.addAll(entriesByGroup.get(groupId));
+		}
+		stillWaiting.clear();
+		return respondWhenAllCollected();
+	}
+
+	private Behavior<Command> respondWhenAllCollected() {
+		if (stillWaiting.isEmpty()) {
+			requester.tell(new DeviceManager.TemperatureBatchRecorded(requestId, recorded, failed, pending));
+			return Behaviors.stopped();
+		}
+
+		return this;
+	}
+}
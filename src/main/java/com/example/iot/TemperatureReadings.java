@@ -0,0 +1,145 @@
+package com.example.iot;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Result of a group query as rows of a status code and a value, what RespondAllTemperatures carries
+ * for complete query results. Reading rows directly allocates nothing:
+ * <pre>
+ * for (int row = 0; row &lt; readings.size(); row++) {
+ *     if (readings.status(row) == TemperatureReadings.TEMPERATURE) {
+ *         use(readings.deviceId(row), readings.value(row));
+ *     }
+ * }
+ * </pre>
+ * The Map methods are there for existing callers, get and iterating build a TemperatureReading per call.
+ * Immutable.
+ */
+public final class TemperatureReadings extends AbstractMap<String, DeviceManager.TemperatureReading> {
+	public static final byte TEMPERATURE = 1;
+	public static final byte TEMPERATURE_NOT_AVAILABLE = 2;
+	public static final byte DEVICE_NOT_AVAILABLE = 3;
+	public static final byte DEVICE_TIMED_OUT = 4;
+
+	// rows 0 .. devices.size()-1 are the queried devices by slot, the known readings follow
+	private final QueriedDevices devices;
+	private final Map<String, DeviceManager.TemperatureReading> known;
+	private final String[] knownIds;
+	private final byte[] statuses;
+	private final double[] values;
+
+	/**
+	 * statuses and values are by slot of devices and owned by the result from here on, with room for
+	 * the known readings after them. A status of 0 means the device didn't answer and becomes DEVICE_TIMED_OUT.
+	 */
+	TemperatureReadings(QueriedDevices devices, byte[] statuses, double[] values, Map<String, DeviceManager.TemperatureReading> known) {
+		this.devices = devices;
+		this.known = known;
+		this.statuses = statuses;
+		this.values = values;
+		for (int slot = 0; slot < devices.size(); slot++) {
+			if (statuses[slot] == 0) {
+				statuses[slot] = DEVICE_TIMED_OUT;
+			}
+		}
+
+		this.knownIds = new String[known.size()];
+		int row = devices.size();
+		for (Map.Entry<String, DeviceManager.TemperatureReading> entry : known.entrySet()) {
+			knownIds[row - devices.size()] = entry.getKey();
+			statuses[row] = statusOf(entry.getValue());
+			values[row] = entry.getValue() instanceof DeviceManager.Temperature ? ((DeviceManager.Temperature) entry.getValue()).value
+					: Double.NaN;
+			row++;
+		}
+	}
+
+	@Override
+	public int size() {
+		return devices.size() + knownIds.length;
+	}
+
+	public String deviceId(int row) {
+		return row < devices.size() ? devices.deviceId(row) : knownIds[row - devices.size()];
+	}
+
+	// one of the constants above
+	public byte status(int row) {
+		return statuses[row];
+	}
+
+	// NaN unless the status is TEMPERATURE
+	public double value(int row) {
+		return values[row];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && (devices.slotOf((String) key) >= 0 || known.containsKey(key));
+	}
+
+	@Override
+	public DeviceManager.TemperatureReading get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int slot = devices.slotOf((String) key);
+		return slot >= 0 ? reading(statuses[slot], values[slot]) : known.get(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String, DeviceManager.TemperatureReading>> entrySet() {
+		return new AbstractSet<Map.Entry<String, DeviceManager.TemperatureReading>>() {
+			@Override
+			public int size() {
+				return TemperatureReadings.this.size();
+			}
+
+			@Override
+			public Iterator<Map.Entry<String, DeviceManager.TemperatureReading>> iterator() {
+				return new Iterator<Map.Entry<String, DeviceManager.TemperatureReading>>() {
+					private int row;
+
+					@Override
+					public boolean hasNext() {
+						return row < TemperatureReadings.this.size();
+					}
+
+					@Override
+					public Map.Entry<String, DeviceManager.TemperatureReading> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						int current = row++;
+						return new SimpleImmutableEntry<>(deviceId(current), reading(statuses[current], values[current]));
+					}
+				};
+			}
+		};
+	}
+
+	static byte statusOf(DeviceManager.TemperatureReading reading) {
+		if (reading instanceof DeviceManager.Temperature) {
+			return TEMPERATURE;
+		} else if (reading == DeviceManager.TemperatureNotAvailable.INSTANCE) {
+			return TEMPERATURE_NOT_AVAILABLE;
+		} else if (reading == DeviceManager.DeviceNotAvailable.INSTANCE) {
+			return DEVICE_NOT_AVAILABLE;
+		}
+		return DEVICE_TIMED_OUT;
+	}
+
+	static DeviceManager.TemperatureReading reading(byte status, double value) {
+		switch (status) {
+			case TEMPERATURE: return new DeviceManager.Temperature(value);
+			case TEMPERATURE_NOT_AVAILABLE: return DeviceManager.TemperatureNotAvailable.INSTANCE;
+			case DEVICE_NOT_AVAILABLE: return DeviceManager.DeviceNotAvailable.INSTANCE;
+			default: return DeviceManager.DeviceTimedOut.INSTANCE;
+		}
+	}
+}
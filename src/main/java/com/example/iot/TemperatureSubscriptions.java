@@ -0,0 +1,137 @@
+package com.example.iot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+/**
+ * The subscribers of one device and what each of them has been sent, shared by Device and PersistentDevice.
+ * A change goes out right away unless it's inside the subscriber's deadband or its interval isn't over yet.
+ * In that case it's held as the subscriber's pending value, each later change replaces it, and a timer
+ * keyed by the subscriber sends it once the interval is over. A subscriber has at most one update waiting.
+ * <p>
+ * Not thread safe, each device keeps its own instance.
+ */
+final class TemperatureSubscriptions {
+	private final String groupId;
+	private final String deviceId;
+	private final TimerScheduler<Device.Command> timers;
+	private final List<Subscription> subscriptions = new ArrayList<>(1);
+
+	private static final class Subscription {
+		final ActorRef<Device.TemperatureUpdate> subscriber;
+		SubscriptionSettings settings;
+		boolean sentAny;
+		double lastSent;
+		long lastSentNanos;
+		boolean pending;
+		double pendingValue;
+		long pendingTimestamp;
+
+		Subscription(ActorRef<Device.TemperatureUpdate> subscriber, SubscriptionSettings settings) {
+			this.subscriber = subscriber;
+			this.settings = settings;
+		}
+	}
+
+	TemperatureSubscriptions(String groupId, String deviceId, TimerScheduler<Device.Command> timers) {
+		this.groupId = groupId;
+		this.deviceId = deviceId;
+		this.timers = timers;
+	}
+
+	boolean isEmpty() {
+		return subscriptions.isEmpty();
+	}
+
+	/**
+	 * Subscribing again only changes the settings. The current reading, if there is one, is pushed right
+	 * away. Returns false if the subscriber was already subscribed.
+	 */
+	boolean subscribe(ActorRef<Device.TemperatureUpdate> subscriber, SubscriptionSettings settings, boolean hasReading, double value,
+			long timestamp) {
+		Subscription subscription = find(subscriber);
+		if (subscription != null) {
+			subscription.settings = settings;
+			return false;
+		}
+
+		subscription = new Subscription(subscriber, settings);
+		subscriptions.add(subscription);
+		if (hasReading) {
+			send(subscription, value, timestamp, System.nanoTime());
+		}
+		return true;
+	}
+
+	// false if it wasn't subscribed
+	boolean unsubscribe(ActorRef<Device.TemperatureUpdate> subscriber) {
+		Subscription subscription = find(subscriber);
+		if (subscription == null) {
+			return false;
+		}
+		subscriptions.remove(subscription);
+		timers.cancel(subscriber);
+		return true;
+	}
+
+	void changed(double value, long timestamp) {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		for (Subscription subscription : subscriptions) {
+			if (subscription.sentAny && withinDeadband(subscription, value)) {
+				// the subscriber's view is still close enough, anything held back is outdated now
+				subscription.pending = false;
+				continue;
+			}
+
+			long wait = subscription.sentAny ? subscription.settings.minInterval().toNanos() - (now - subscription.lastSentNanos) : 0;
+			if (wait <= 0) {
+				send(subscription, value, timestamp, now);
+			} else {
+				subscription.pending = true;
+				subscription.pendingValue = value;
+				subscription.pendingTimestamp = timestamp;
+				if (!timers.isTimerActive(subscription.subscriber)) {
+					timers.startSingleTimer(subscription.subscriber, new Device.FlushSubscription(subscription.subscriber),
+							Duration.ofNanos(wait));
+				}
+			}
+		}
+	}
+
+	// the subscriber's interval is over, sends what it held back
+	void flush(ActorRef<Device.TemperatureUpdate> subscriber) {
+		Subscription subscription = find(subscriber);
+		if (subscription != null && subscription.pending) {
+			send(subscription, subscription.pendingValue, subscription.pendingTimestamp, System.nanoTime());
+		}
+	}
+
+	private static boolean withinDeadband(Subscription subscription, double value) {
+		return Double.compare(value, subscription.lastSent) == 0 || Math.abs(value - subscription.lastSent) < subscription.settings.deadband();
+	}
+
+	private void send(Subscription subscription, double value, long timestamp, long now) {
+		subscription.subscriber.tell(new Device.TemperatureUpdate(groupId, deviceId, value, timestamp));
+		subscription.sentAny = true;
+		subscription.lastSent = value;
+		subscription.lastSentNanos = now;
+		subscription.pending = false;
+	}
+
+	private Subscription find(ActorRef<Device.TemperatureUpdate> subscriber) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.subscriber.equals(subscriber)) {
+				return subscription;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,48 @@
+package com.example.iot;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import com.typesafe.config.Config;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+
+/**
+ * Runs a dispatcher's actors on a virtual thread per task, for executor = "com.example.iot.VirtualThreadExecutor",
+ * see iot.dispatchers.virtual in reference.conf. A blocking call only parks its virtual thread, so actors
+ * that block on disk like ReadingJournal and DeviceGroupExport can share it instead of a separate pool.
+ * <p>
+ * Needs a JDK 21 runtime. The build still targets 17, so the executor is looked up when the dispatcher starts.
+ */
+public final class VirtualThreadExecutor extends ExecutorServiceConfigurator {
+
+	// instantiated by Akka through reflection
+	public VirtualThreadExecutor(Config config, DispatcherPrerequisites prerequisites) {
+		super(config, prerequisites);
+	}
+
+	@Override
+	public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+		MethodHandle newExecutor;
+		try {
+			newExecutor = MethodHandles.publicLookup().findStatic(java.util.concurrent.Executors.class, "newVirtualThreadPerTaskExecutor",
+					MethodType.methodType(ExecutorService.class));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Dispatcher " + id + " needs virtual threads, which this JDK ("
+					+ System.getProperty("java.version") + ") doesn't have, use JDK 21 or later", e);
+		}
+
+		return () -> {
+			try {
+				return (ExecutorService) newExecutor.invokeExact();
+			} catch (Throwable e) {
+				throw new IllegalStateException("Creating the virtual thread executor of " + id + " failed", e);
+			}
+		};
+	}
+}
@@ -0,0 +1,191 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.pattern.StatusReply;
+
+public class ColumnarReadingsTest {
+
+	@ClassRule public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+	@Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteAndReadBack() throws IOException {
+		ColumnarReadings readings = new ColumnarReadings(1);
+		readings.add("device1", 21.5, 1000L);
+		readings.add("device2", Double.NaN, 0L);
+		readings.add("device3", -4.0, 3000L);
+		Path file = folder.getRoot().toPath().resolve("group.readings");
+		readings.write(file);
+
+		ColumnarReadings read = ColumnarReadings.read(file);
+		assertEquals(3, read.size());
+		assertEquals("device1", read.deviceId(0));
+		assertEquals(21.5, read.value(0), 0.0);
+		assertEquals(1000L, read.timestamp(0));
+		assertFalse(read.hasValue(1));
+		assertEquals("device3", read.deviceId(2));
+		assertEquals(3000L, read.timestamp(2));
+	}
+
+	@Test
+	public void testCorruptFilesFailWithAnIOException() throws IOException {
+		ColumnarReadings readings = new ColumnarReadings(2);
+		readings.add("device1", 21.5, 1000L);
+		readings.add("device2", 22.5, 2000L);
+		Path file = folder.getRoot().toPath().resolve("group.readings");
+		readings.write(file);
+		byte[] bytes = Files.readAllBytes(file);
+
+		// truncated in the values
+		assertCorrupt(file, Arrays.copyOf(bytes, bytes.length - 1));
+		// a row count far beyond the file
+		assertCorrupt(file, withInt(bytes, 6, Integer.MAX_VALUE));
+		assertCorrupt(file, withInt(bytes, 6, -1));
+		// an id length beyond the file
+		byte[] longId = bytes.clone();
+		longId[10] = 0x7f;
+		assertCorrupt(file, longId);
+		// the same device twice
+		byte[] duplicate = bytes.clone();
+		duplicate[12 + "device1".length() + 2 + "device".length()] = '1';
+		assertCorrupt(file, duplicate);
+
+		// a group doesn't restore from a corrupt file
+		Files.write(ColumnarReadings.fileFor(folder.getRoot().toPath(), "corrupt"), withInt(bytes, 6, Integer.MAX_VALUE));
+		ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("corrupt",
+				GroupSettings.DEFAULT.withSnapshotDirectory(folder.getRoot().toPath())));
+		TestProbe<DeviceManager.ReplyDeviceList> listProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+		group.tell(new DeviceManager.RequestDeviceList(1L, "corrupt", listProbe.getRef()));
+		assertTrue(listProbe.receiveMessage().ids.isEmpty());
+	}
+
+	private static void assertCorrupt(Path file, byte[] content) throws IOException {
+		Files.write(file, content);
+		try {
+			ColumnarReadings.read(file);
+			fail("read " + file);
+		} catch (IOException expected) {
+			// the file is rejected
+		}
+	}
+
+	private static byte[] withInt(byte[] bytes, int offset, int value) {
+		byte[] changed = bytes.clone();
+		ByteBuffer.wrap(changed).putInt(offset, value);
+		return changed;
+	}
+
+	@Test
+	public void testExportedGroupIsRestoredAtStartup() {
+		Path directory = folder.getRoot().toPath();
+		ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create(GroupSettings.DEFAULT.withSnapshotDirectory(directory)));
+
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		manager.tell(new DeviceManager.RequestTrackDevice("export", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		manager.tell(new DeviceManager.RequestTrackDevice("export", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<DeviceManager.TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(DeviceManager.TemperatureBatchRecorded.class);
+		manager.tell(new DeviceManager.RecordTemperatureBatch(1L,
+				Arrays.asList(new DeviceManager.TemperatureEntry("export", "device1", 12.5)), batchProbe.getRef()));
+		batchProbe.receiveMessage();
+
+		TestProbe<StatusReply<DeviceManager.GroupReadingsExported>> exportProbe = testKit.createTestProbe();
+		manager.tell(new DeviceManager.ExportGroupReadings(2L, "export", null, exportProbe.getRef()));
+		StatusReply<DeviceManager.GroupReadingsExported> exported = exportProbe.receiveMessage();
+		assertTrue(exported.isSuccess());
+		assertEquals(2, exported.getValue().deviceCount);
+
+		manager.tell(new DeviceManager.ExportGroupReadings(3L, "unknown", null, exportProbe.getRef()));
+		assertTrue(exportProbe.receiveMessage().isError());
+
+		ActorRef<DeviceGroup.Command> restored = testKit.spawn(DeviceGroup.create("export", GroupSettings.DEFAULT.withSnapshotDirectory(directory)));
+
+		TestProbe<DeviceManager.ReplyDeviceList> listProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+		restored.tell(new DeviceManager.RequestDeviceList(4L, "export", listProbe.getRef()));
+		assertEquals(new HashSet<>(Arrays.asList("device1", "device2")), listProbe.receiveMessage().ids);
+
+		TestProbe<DeviceManager.RespondAllTemperatures> allProbe = testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+		restored.tell(new DeviceManager.RequestAllTemperatures(5L, "export", allProbe.getRef()));
+		DeviceManager.RespondAllTemperatures response = allProbe.receiveMessage();
+		assertEquals(new DeviceManager.Temperature(12.5), response.temperatures.get("device1"));
+		assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, response.temperatures.get("device2"));
+
+		// registering a restored device spawns it with its reading
+		restored.tell(new DeviceManager.RequestTrackDevice("export", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		device1.tell(new Device.ReadTemperature(6L, readProbe.getRef()));
+		assertEquals(12.5, readProbe.receiveMessage().value.get(), 0.0);
+	}
+
+	@Test
+	public void testExportFailsIfADeviceDoesNotAnswer() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("slow.readings");
+		ColumnarReadings previous = new ColumnarReadings(1);
+		previous.add("device1", 21.5, 1000L);
+		previous.write(file);
+
+		TestProbe<Device.Command> device = testKit.createTestProbe(Device.Command.class);
+		TestProbe<StatusReply<DeviceManager.GroupReadingsExported>> exportProbe = testKit.createTestProbe();
+		testKit.spawn(new DeviceGroupExport.Builder()
+				.deviceIdToActor(Collections.singletonMap("device1", device.getRef()))
+				.knownRows(new ColumnarReadings(1))
+				.requestId(1L)
+				.path(file)
+				.requester(exportProbe.getRef())
+				.timeout(Duration.ofMillis(200))
+				.build());
+		device.expectMessageClass(Device.ReadTemperature.class);
+
+		assertTrue(exportProbe.receiveMessage(Duration.ofSeconds(1)).isError());
+		// the previous export is still there to restore from
+		assertEquals(21.5, ColumnarReadings.read(file).value(0), 0.0);
+	}
+
+	@Test
+	public void testExportIsConfinedToTheSnapshotDirectory() throws IOException {
+		Path directory = folder.newFolder("snapshots").toPath();
+		ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("confined", GroupSettings.DEFAULT.withSnapshotDirectory(directory)));
+		TestProbe<StatusReply<DeviceManager.GroupReadingsExported>> exportProbe = testKit.createTestProbe();
+
+		group.tell(new DeviceManager.ExportGroupReadings(1L, "confined", "../outside.readings", exportProbe.getRef()));
+		assertTrue(exportProbe.receiveMessage().isError());
+		group.tell(new DeviceManager.ExportGroupReadings(2L, "confined", folder.getRoot().toPath().resolve("outside.readings").toString(),
+				exportProbe.getRef()));
+		assertTrue(exportProbe.receiveMessage().isError());
+		assertFalse(Files.exists(folder.getRoot().toPath().resolve("outside.readings")));
+		assertEquals(directory.resolve("..%2Foutside.readings"), ColumnarReadings.fileFor(directory, "../outside"));
+
+		// a group without devices writes right away instead of waiting for the timeout
+		group.tell(new DeviceManager.ExportGroupReadings(3L, "confined", "copy.readings", exportProbe.getRef()));
+		StatusReply<DeviceManager.GroupReadingsExported> exported = exportProbe.receiveMessage(Duration.ofSeconds(1));
+		assertTrue(exported.isSuccess());
+		assertEquals(0, exported.getValue().deviceCount);
+		assertEquals(0, ColumnarReadings.read(directory.resolve("copy.readings")).size());
+
+		ActorRef<DeviceGroup.Command> unconfigured = testKit.spawn(DeviceGroup.create("unconfigured"));
+		unconfigured.tell(new DeviceManager.ExportGroupReadings(4L, "unconfigured", "copy.readings", exportProbe.getRef()));
+		assertTrue(exportProbe.receiveMessage().isError());
+	}
+}
@@ -1,11 +1,17 @@
 package com.example.iot;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import org.junit.ClassRule;
 import org.junit.Test;
@@ -43,16 +49,17 @@ public class DeviceGroupQueryTest {
 							.timeout(Duration.ofSeconds(3))
 							.build());
 
-		device1.expectMessageClass(Device.ReadTemperature.class);
-		device2.expectMessageClass(Device.ReadTemperature.class);
+		// the requestId of each read tells the query which device answers
+		long read1 = device1.expectMessageClass(Device.ReadTemperature.class).requestId;
+		long read2 = device2.expectMessageClass(Device.ReadTemperature.class).requestId;
 
 		queryActor.tell(
 				new DeviceGroupQuery.WrappedRespondTemperature(
-						new Device.RespondTemperature(0L, "device1", Optional.of(1.0))));
+						new Device.RespondTemperature(read1, "device1", Optional.of(1.0))));
 
 		queryActor.tell(
 				new DeviceGroupQuery.WrappedRespondTemperature(
-						new Device.RespondTemperature(0L, "device2", Optional.of(2.0))));
+						new Device.RespondTemperature(read2, "device2", Optional.of(2.0))));
 
 		RespondAllTemperatures response = requester.receiveMessage();
 		assertEquals(1L, response.requestId);
@@ -86,16 +93,18 @@ public class DeviceGroupQueryTest {
 							.timeout(Duration.ofSeconds(3))
 							.build());
 
-		assertEquals(0L, device1.expectMessageClass(Device.ReadTemperature.class).requestId);
-		assertEquals(0L, device2.expectMessageClass(Device.ReadTemperature.class).requestId);
+		long read1 = device1.expectMessageClass(Device.ReadTemperature.class).requestId;
+		long read2 = device2.expectMessageClass(Device.ReadTemperature.class).requestId;
+		// the slot of each device
+		assertEquals(new HashSet<>(Arrays.asList(0L, 1L)), new HashSet<>(Arrays.asList(read1, read2)));
 
 		queryActor.tell(
 				new DeviceGroupQuery.WrappedRespondTemperature(
-						new Device.RespondTemperature(0L, "device1", Optional.empty())));
+						new Device.RespondTemperature(read1, "device1", Optional.empty())));
 
 		queryActor.tell(
 				new DeviceGroupQuery.WrappedRespondTemperature(
-						new Device.RespondTemperature(0L, "device2", Optional.of(2.0))));
+						new Device.RespondTemperature(read2, "device2", Optional.of(2.0))));
 
 		RespondAllTemperatures response = requester.receiveMessage();
 		assertEquals(1L, response.requestId);
@@ -144,4 +153,372 @@ public class DeviceGroupQueryTest {
 
 		assertEquals(expectedTemperatures, response.temperatures);
 	}
+
+	@Test
+	public void testAnswerFromMaterializedReadingsWithoutQueryingDevices() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor =
+				testKit.spawn(DeviceGroup.create("group", GroupSettings.DEFAULT.withMaterializedReadings(true)));
+
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device;
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<Device.TemperatureRecorded> recordProbe =
+				testKit.createTestProbe(Device.TemperatureRecorded.class);
+		deviceActor1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		TestProbe<RespondAllTemperatures> allTempProbe =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(0L, "group", allTempProbe.getRef()));
+		RespondAllTemperatures response = allTempProbe.receiveMessage();
+
+		Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+		expectedTemperatures.put("device1", new Temperature(1.0));
+		expectedTemperatures.put("device2", TemperatureNotAvailable.INSTANCE);
+		assertEquals(expectedTemperatures, response.temperatures);
+
+		// the reading pushed by the device shows up in the next answer
+		deviceActor1.tell(new Device.RecordTemperature(1L, 3.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+		assertEquals(new Temperature(3.0), allTempProbe.receiveMessage().temperatures.get("device1"));
+	}
+
+	@Test
+	public void testStreamPartialResultsAsDevicesReply() {
+		TestProbe<RespondAllTemperatures> requester =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+		TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+		TestProbe<Device.Command> device3 = testKit.createTestProbe(Device.Command.class);
+
+		Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+		deviceIdToActor.put("device1", device1.getRef());
+		deviceIdToActor.put("device2", device2.getRef());
+		deviceIdToActor.put("device3", device3.getRef());
+
+		ActorRef<DeviceGroupQuery.Command> queryActor =
+				testKit.spawn(
+						new DeviceGroupQuery.Builder()
+							.deviceIdToActor(deviceIdToActor)
+							.requestId(1L)
+							.requester(requester.getRef())
+							.timeout(Duration.ofSeconds(3))
+							.partialChunkSize(2)
+							.build());
+		long read1 = device1.expectMessageClass(Device.ReadTemperature.class).requestId;
+		long read2 = device2.expectMessageClass(Device.ReadTemperature.class).requestId;
+		long read3 = device3.expectMessageClass(Device.ReadTemperature.class).requestId;
+
+		queryActor.tell(
+				new DeviceGroupQuery.WrappedRespondTemperature(
+						new Device.RespondTemperature(read1, "device1", Optional.of(1.0))));
+		requester.expectNoMessage();
+
+		queryActor.tell(
+				new DeviceGroupQuery.WrappedRespondTemperature(
+						new Device.RespondTemperature(read2, "device2", Optional.of(2.0))));
+		RespondAllTemperatures chunk = requester.receiveMessage();
+		assertFalse(chunk.complete);
+		Map<String, TemperatureReading> expectedChunk = new HashMap<>();
+		expectedChunk.put("device1", new Temperature(1.0));
+		expectedChunk.put("device2", new Temperature(2.0));
+		assertEquals(expectedChunk, chunk.temperatures);
+
+		queryActor.tell(
+				new DeviceGroupQuery.WrappedRespondTemperature(
+						new Device.RespondTemperature(read3, "device3", Optional.empty())));
+		RespondAllTemperatures last = requester.receiveMessage();
+		assertTrue(last.complete);
+		assertEquals(1L, last.requestId);
+		assertEquals(Collections.singletonMap("device3", TemperatureNotAvailable.INSTANCE), last.temperatures);
+	}
+
+	@Test
+	public void testRespondOnceCoverageIsReached() {
+		TestProbe<RespondAllTemperatures> requester =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+		TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+
+		Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+		deviceIdToActor.put("device1", device1.getRef());
+		deviceIdToActor.put("device2", device2.getRef());
+
+		ActorRef<DeviceGroupQuery.Command> queryActor =
+				testKit.spawn(
+						new DeviceGroupQuery.Builder()
+							.deviceIdToActor(deviceIdToActor)
+							.requestId(1L)
+							.requester(requester.getRef())
+							.timeout(Duration.ofSeconds(3))
+							.coverage(0.5)
+							.build());
+		long read1 = device1.expectMessageClass(Device.ReadTemperature.class).requestId;
+
+		queryActor.tell(
+				new DeviceGroupQuery.WrappedRespondTemperature(
+						new Device.RespondTemperature(read1, "device1", Optional.of(1.0))));
+
+		RespondAllTemperatures response = requester.receiveMessage(Duration.ofSeconds(1));
+		assertTrue(response.complete);
+		Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+		expectedTemperatures.put("device1", new Temperature(1.0));
+		expectedTemperatures.put("device2", DeviceManager.DeviceTimedOut.INSTANCE);
+		assertEquals(expectedTemperatures, response.temperatures);
+	}
+
+	@Test
+	public void testGroupAcceptsPerRequestQueryOptions() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor =
+				testKit.spawn(DeviceGroup.create("group", GroupSettings.DEFAULT.withQueryTimeout(Duration.ofMinutes(1))));
+
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<RespondAllTemperatures> allTempProbe =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(0L, "group", allTempProbe.getRef(),
+				QueryOptions.DEFAULT.withTimeout(Duration.ofMillis(500))));
+		RespondAllTemperatures response = allTempProbe.receiveMessage(Duration.ofSeconds(1));
+		assertEquals(Collections.singletonMap("device1", TemperatureNotAvailable.INSTANCE), response.temperatures);
+	}
+
+	@Test
+	public void testConcurrentRequestsShareOneQuery() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device;
+		TestProbe<Device.TemperatureRecorded> recordProbe =
+				testKit.createTestProbe(Device.TemperatureRecorded.class);
+		deviceActor1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		TestProbe<RespondAllTemperatures> allTempProbe1 =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<RespondAllTemperatures> allTempProbe2 =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(1L, "group", allTempProbe1.getRef()));
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(2L, "group", allTempProbe2.getRef()));
+
+		RespondAllTemperatures response1 = allTempProbe1.receiveMessage();
+		RespondAllTemperatures response2 = allTempProbe2.receiveMessage();
+		assertEquals(1L, response1.requestId);
+		assertEquals(2L, response2.requestId);
+		assertEquals(Collections.singletonMap("device1", new Temperature(1.0)), response1.temperatures);
+		assertEquals(response1.temperatures, response2.temperatures);
+	}
+
+	@Test
+	public void testReuseQueryResultWithinFreshnessWindow() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group",
+				GroupSettings.DEFAULT.withQueryCoalescing(true).withQueryResultFreshness(Duration.ofMinutes(1))));
+
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device;
+		TestProbe<Device.TemperatureRecorded> recordProbe =
+				testKit.createTestProbe(Device.TemperatureRecorded.class);
+		deviceActor1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		TestProbe<RespondAllTemperatures> allTempProbe =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+		assertEquals(new Temperature(1.0), allTempProbe.receiveMessage().temperatures.get("device1"));
+
+		// the new reading is not seen while the cached result is fresh
+		deviceActor1.tell(new Device.RecordTemperature(1L, 2.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(2L, "group", allTempProbe.getRef()));
+		RespondAllTemperatures cached = allTempProbe.receiveMessage();
+		assertEquals(2L, cached.requestId);
+		assertEquals(new Temperature(1.0), cached.temperatures.get("device1"));
+
+		// requests with their own options always query the devices
+		groupActor.tell(new DeviceManager.RequestAllTemperatures(3L, "group", allTempProbe.getRef(),
+				QueryOptions.DEFAULT.withTimeout(Duration.ofSeconds(3))));
+		assertEquals(new Temperature(2.0), allTempProbe.receiveMessage().temperatures.get("device1"));
+	}
+
+	@Test
+	public void testAggregatorCorrelatesInterleavedQueries() {
+		TestProbe<RespondAllTemperatures> requester =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+		TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+		ActorRef<DeviceGroupQueryAggregator.Command> aggregator = testKit.spawn(DeviceGroupQueryAggregator.create());
+		QueriedDevices devices = new QueriedDevices.Builder(new String[] {"device1", "device2"}, 2)
+				.add(0, device1.getRef())
+				.add(1, device2.getRef())
+				.build();
+
+		aggregator.tell(new DeviceGroupQueryAggregator.Query(1L, requester.getRef(), devices, Collections.emptyMap(),
+				Duration.ofSeconds(3), 1.0));
+		aggregator.tell(new DeviceGroupQueryAggregator.Query(2L, requester.getRef(), devices,
+				Collections.singletonMap("device3", TemperatureNotAvailable.INSTANCE), Duration.ofMillis(300), 1.0));
+
+		Device.ReadTemperature first1 = device1.expectMessageClass(Device.ReadTemperature.class);
+		Device.ReadTemperature second1 = device1.expectMessageClass(Device.ReadTemperature.class);
+		device2.expectMessageClass(Device.ReadTemperature.class);
+		device2.expectMessageClass(Device.ReadTemperature.class);
+		assertFalse(first1.requestId == second1.requestId);
+
+		// the second query times out on device2, the first one gets it as not available
+		second1.replyTo.tell(new Device.RespondTemperature(second1.requestId, "device1", Optional.of(2.0)));
+		RespondAllTemperatures second = requester.receiveMessage(Duration.ofSeconds(1));
+		assertEquals(2L, second.requestId);
+		Map<String, TemperatureReading> expectedSecond = new HashMap<>();
+		expectedSecond.put("device1", new Temperature(2.0));
+		expectedSecond.put("device2", DeviceManager.DeviceTimedOut.INSTANCE);
+		expectedSecond.put("device3", TemperatureNotAvailable.INSTANCE);
+		assertEquals(expectedSecond, second.temperatures);
+
+		first1.replyTo.tell(new Device.RespondTemperature(first1.requestId, "device1", Optional.of(1.0)));
+		aggregator.tell(new DeviceGroupQueryAggregator.DeviceGone(1));
+		RespondAllTemperatures first = requester.receiveMessage();
+		assertEquals(1L, first.requestId);
+		assertTrue(first.complete);
+		Map<String, TemperatureReading> expectedFirst = new HashMap<>();
+		expectedFirst.put("device1", new Temperature(1.0));
+		expectedFirst.put("device2", DeviceManager.DeviceNotAvailable.INSTANCE);
+		assertEquals(expectedFirst, first.temperatures);
+	}
+
+	@Test
+	public void testGroupWithSharedQueryAggregator() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group",
+				GroupSettings.DEFAULT.withSharedQueryAggregator(true).withQueryCoalescing(false)));
+
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device;
+		groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		TestProbe<Device.TemperatureRecorded> recordProbe =
+				testKit.createTestProbe(Device.TemperatureRecorded.class);
+		deviceActor1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		TestProbe<RespondAllTemperatures> allTempProbe =
+				testKit.createTestProbe(RespondAllTemperatures.class);
+		for (long requestId = 1L; requestId <= 3L; requestId++) {
+			groupActor.tell(new DeviceManager.RequestAllTemperatures(requestId, "group", allTempProbe.getRef()));
+		}
+
+		Map<String, TemperatureReading> expected = new HashMap<>();
+		expected.put("device1", new Temperature(1.0));
+		expected.put("device2", TemperatureNotAvailable.INSTANCE);
+		RespondAllTemperatures response = null;
+		for (long requestId = 1L; requestId <= 3L; requestId++) {
+			response = allTempProbe.receiveMessage();
+			assertEquals(requestId, response.requestId);
+			assertEquals(expected, response.temperatures);
+		}
+
+		// the same result row by row, without building a reading per device
+		TemperatureReadings readings = (TemperatureReadings) response.temperatures;
+		for (int row = 0; row < readings.size(); row++) {
+			if (readings.deviceId(row).equals("device1")) {
+				assertEquals(TemperatureReadings.TEMPERATURE, readings.status(row));
+				assertEquals(1.0, readings.value(row), 0.0);
+			} else {
+				assertEquals(TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, readings.status(row));
+			}
+		}
+	}
+
+	@Test
+	public void testSharedQueryAggregatorWithMoreQueriesThanSlots() {
+		TestProbe<RespondAllTemperatures> requester = testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<Device.Command> device = testKit.createTestProbe(Device.Command.class);
+		QueriedDevices devices = QueriedDevices.of(Collections.singletonMap("device1", device.getRef()));
+		ActorRef<DeviceGroupQueryAggregator.Command> aggregator = testKit.spawn(DeviceGroupQueryAggregator.create());
+
+		Device.ReadTemperature[] reads = new Device.ReadTemperature[20];
+		for (int i = 0; i < 16; i++) {
+			aggregator.tell(new DeviceGroupQueryAggregator.Query(i, requester.getRef(), devices, Collections.emptyMap(),
+					Duration.ofSeconds(10), 1.0));
+			reads[i] = device.expectMessageClass(Device.ReadTemperature.class);
+		}
+
+		// the second query finishes while the first is still running, leaving a free slot in the table
+		reads[1].replyTo.tell(new Device.RespondTemperature(reads[1].requestId, "device1", true, 2.0, 0L));
+		assertEquals(1L, requester.receiveMessage().requestId);
+
+		// the next ones need a bigger table
+		for (int i = 16; i < 20; i++) {
+			aggregator.tell(new DeviceGroupQueryAggregator.Query(i, requester.getRef(), devices, Collections.emptyMap(),
+					Duration.ofSeconds(10), 1.0));
+			reads[i] = device.expectMessageClass(Device.ReadTemperature.class);
+		}
+
+		Set<Long> answered = new HashSet<>();
+		for (int i = 0; i < 20; i++) {
+			if (i != 1) {
+				reads[i].replyTo.tell(new Device.RespondTemperature(reads[i].requestId, "device1", true, i, 0L));
+			}
+		}
+		for (int i = 0; i < 19; i++) {
+			RespondAllTemperatures response = requester.receiveMessage();
+			assertEquals(new Temperature(response.requestId), response.temperatures.get("device1"));
+			answered.add(response.requestId);
+		}
+		assertEquals(19, answered.size());
+	}
+
+	@Test
+	public void testAggregatorAnswersRunningQueriesWhenItFails() {
+		TestProbe<RespondAllTemperatures> requester = testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<Device.Command> device = testKit.createTestProbe(Device.Command.class);
+		QueriedDevices devices = QueriedDevices.of(Collections.singletonMap("device1", device.getRef()));
+		ActorRef<DeviceGroupQueryAggregator.Command> aggregator = testKit.spawn(DeviceGroupQueryAggregator.create());
+
+		aggregator.tell(new DeviceGroupQueryAggregator.Query(1L, requester.getRef(), devices, Collections.emptyMap(),
+				Duration.ofSeconds(30), 1.0));
+		device.expectMessageClass(Device.ReadTemperature.class);
+
+		// a broken query fails the aggregator, the running one is still answered
+		aggregator.tell(new DeviceGroupQueryAggregator.Query(2L, requester.getRef(), null, Collections.emptyMap(),
+				Duration.ofSeconds(30), 1.0));
+		RespondAllTemperatures response = requester.receiveMessage(Duration.ofSeconds(3));
+		assertEquals(1L, response.requestId);
+		assertEquals(Collections.singletonMap("device1", DeviceManager.DeviceTimedOut.INSTANCE), response.temperatures);
+	}
+
+	@Test
+	public void testAggregatorOnlyMarksTheSlotOfAGoneDevice() {
+		TestProbe<RespondAllTemperatures> requester = testKit.createTestProbe(RespondAllTemperatures.class);
+		TestProbe<Device.Command> device = testKit.createTestProbe(Device.Command.class);
+		String[] ids = {"device1", "device2", "device3"};
+		QueriedDevices first = new QueriedDevices.Builder(ids, 2).add(0, device.getRef()).add(2, device.getRef()).build();
+		QueriedDevices second = new QueriedDevices.Builder(ids, 1).add(1, device.getRef()).build();
+		assertEquals(1, first.slotOfIndex(2));
+		assertEquals(-1, first.slotOfIndex(1));
+		ActorRef<DeviceGroupQueryAggregator.Command> aggregator = testKit.spawn(DeviceGroupQueryAggregator.create());
+
+		aggregator.tell(new DeviceGroupQueryAggregator.Query(1L, requester.getRef(), first, Collections.emptyMap(),
+				Duration.ofSeconds(30), 1.0));
+		aggregator.tell(new DeviceGroupQueryAggregator.Query(2L, requester.getRef(), second, Collections.emptyMap(),
+				Duration.ofSeconds(30), 1.0));
+		Device.ReadTemperature read1 = device.expectMessageClass(Device.ReadTemperature.class);
+		device.expectMessageClass(Device.ReadTemperature.class);
+		device.expectMessageClass(Device.ReadTemperature.class);
+
+		aggregator.tell(new DeviceGroupQueryAggregator.DeviceGone(2));
+		read1.replyTo.tell(new Device.RespondTemperature(read1.requestId, "device1", true, 1.0, 0L));
+		RespondAllTemperatures response = requester.receiveMessage();
+		assertEquals(1L, response.requestId);
+		Map<String, TemperatureReading> expected = new HashMap<>();
+		expected.put("device1", new Temperature(1.0));
+		expected.put("device3", DeviceManager.DeviceNotAvailable.INSTANCE);
+		assertEquals(expected, response.temperatures);
+		requester.expectNoMessage(Duration.ofMillis(200));
+	}
 }
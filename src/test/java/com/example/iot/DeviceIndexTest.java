@@ -0,0 +1,28 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DeviceIndexTest {
+
+	@Test
+	public void testIndicesAreDenseAndStableAcrossGrowth() {
+		DeviceIndex index = new DeviceIndex();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, index.add("device" + i));
+		}
+		assertEquals(1000, index.size());
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, index.indexOf("device" + i));
+			assertEquals(i, index.add("device" + i));
+		}
+		assertEquals(-1, index.indexOf("unknown"));
+
+		// the first instance added is the one kept
+		String id = new String("device7");
+		assertNotSame(id, index.id(7));
+		assertSame(index.id(7), index.id(index.add(id)));
+	}
+}
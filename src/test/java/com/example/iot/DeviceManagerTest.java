@@ -2,7 +2,16 @@ package com.example.iot;
 
 import static org.junit.Assert.*;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -10,7 +19,9 @@ import static com.example.iot.DeviceManager.*;
 
 import org.junit.ClassRule;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
@@ -20,6 +31,8 @@ public class DeviceManagerTest {
 
 	@ClassRule public static final TestKitJunitResource testKit = new TestKitJunitResource();
 
+	@Rule public final TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void testReplyToRegistrationRequests() {
 		TestProbe<DeviceRegistered> probe = testKit.createTestProbe(DeviceRegistered.class);
@@ -90,6 +103,30 @@ public class DeviceManagerTest {
 
 
 
+	@Test
+	public void testDeviceListIsASnapshot() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+		TestProbe<ReplyDeviceList> deviceListProbe = testKit.createTestProbe(ReplyDeviceList.class);
+
+		groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		groupActor.tell(new RequestDeviceList(0L, "group", deviceListProbe.getRef()));
+		ReplyDeviceList first = deviceListProbe.receiveMessage();
+		groupActor.tell(new RequestDeviceList(1L, "group", deviceListProbe.getRef()));
+		ReplyDeviceList unchanged = deviceListProbe.receiveMessage();
+
+		groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		groupActor.tell(new RequestDeviceList(2L, "group", deviceListProbe.getRef()));
+		ReplyDeviceList second = deviceListProbe.receiveMessage();
+
+		// replies share one immutable set until the membership changes, earlier replies never see the change
+		assertSame(first.ids, unchanged.ids);
+		assertEquals(Collections.singleton("device1"), first.ids);
+		assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), second.ids);
+	}
+
 	@Test
 	public void testListActiveDevicesAfterOneShutsDown() {
 		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
@@ -125,4 +162,402 @@ public class DeviceManagerTest {
 				});
 	}
 
+	@Test
+	public void testRecordTemperatureBatchAcrossGroups() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+		managerActor.tell(new RequestTrackDevice("group1", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		managerActor.tell(new RequestTrackDevice("group1", "device2", registeredProbe.getRef()));
+		ActorRef<Device.Command> device2 = registeredProbe.receiveMessage().device;
+		managerActor.tell(new RequestTrackDevice("group2", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device3 = registeredProbe.receiveMessage().device;
+
+		TemperatureEntry unknownDevice = new TemperatureEntry("group2", "device2", 4.0);
+		TemperatureEntry unknownGroup = new TemperatureEntry("group3", "device1", 5.0);
+		List<TemperatureEntry> entries = Arrays.asList(
+				new TemperatureEntry("group1", "device1", 1.0),
+				new TemperatureEntry("group1", "device2", 2.0),
+				new TemperatureEntry("group2", "device1", 3.0),
+				unknownDevice,
+				unknownGroup);
+
+		TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+		managerActor.tell(new RecordTemperatureBatch(42L, entries, batchProbe.getRef()));
+		TemperatureBatchRecorded ack = batchProbe.receiveMessage();
+		batchProbe.expectNoMessage();
+
+		assertEquals(42L, ack.requestId);
+		assertEquals(3, ack.recorded);
+		assertEquals(Stream.of(unknownDevice, unknownGroup).collect(Collectors.toSet()), new HashSet<>(ack.failed));
+
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		device1.tell(new Device.ReadTemperature(0L, readProbe.getRef()));
+		assertEquals(Optional.of(1.0), readProbe.receiveMessage().value);
+		device2.tell(new Device.ReadTemperature(1L, readProbe.getRef()));
+		assertEquals(Optional.of(2.0), readProbe.receiveMessage().value);
+		device3.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+		assertEquals(Optional.of(3.0), readProbe.receiveMessage().value);
+	}
+
+	@Test
+	public void testGroupSubscriptionCoversDevicesRegisteredLater() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		TestProbe<Device.TemperatureUpdate> subscriber = testKit.createTestProbe(Device.TemperatureUpdate.class);
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+		managerActor.tell(new DeviceManager.SubscribeTemperatures("group", null, subscriber.getRef()));
+		managerActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		managerActor.tell(new RequestTrackDevice("other", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> otherDevice = registeredProbe.receiveMessage().device;
+
+		device1.tell(new Device.UpdateTemperature(1.0));
+		otherDevice.tell(new Device.UpdateTemperature(2.0));
+		Device.TemperatureUpdate update = subscriber.receiveMessage();
+		assertEquals("group", update.groupId);
+		assertEquals("device1", update.deviceId);
+		assertEquals(1.0, update.value, 0.0);
+		subscriber.expectNoMessage(Duration.ofMillis(100));
+
+		managerActor.tell(new DeviceManager.UnsubscribeTemperatures("group", subscriber.getRef()));
+		// once the group answers this it has passed the unsubscribe on to the device
+		managerActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		device1.tell(new Device.UpdateTemperature(3.0));
+		subscriber.expectNoMessage(Duration.ofMillis(100));
+	}
+
+	@Test
+	public void testBatchAcrossGroupsWaitsForTheJournalFlush() {
+		Path directory = folder.getRoot().toPath();
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create(GroupSettings.DEFAULT
+				.withQueryTimeout(Duration.ofMillis(300))
+				.withJournal(JournalSettings.create(directory).withBatching(10, Duration.ofSeconds(1)))));
+
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		managerActor.tell(new RequestTrackDevice("journaled1", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		managerActor.tell(new RequestTrackDevice("journaled2", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		// neither journal batch fills up, the groups ack at the flush timer, well after the query timeout
+		TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+		managerActor.tell(new RecordTemperatureBatch(1L, Arrays.asList(
+				new TemperatureEntry("journaled1", "device1", 1.0),
+				new TemperatureEntry("journaled2", "device1", 2.0)), batchProbe.getRef()));
+
+		TemperatureBatchRecorded ack = batchProbe.receiveMessage(Duration.ofSeconds(3));
+		assertEquals(2, ack.recorded);
+		assertTrue(ack.failed.isEmpty());
+		assertTrue(ack.pending.isEmpty());
+	}
+
+	@Test
+	public void testBatchReportsGroupsThatDidNotAckAsPending() {
+		TestProbe<DeviceGroup.Command> slowGroup = testKit.createTestProbe(DeviceGroup.Command.class);
+		TestProbe<DeviceGroup.Command> stoppingGroup = testKit.createTestProbe(DeviceGroup.Command.class);
+		Map<String, ActorRef<DeviceGroup.Command>> groups = new HashMap<>();
+		groups.put("slow", slowGroup.getRef());
+		groups.put("stopping", stoppingGroup.getRef());
+		TemperatureEntry slow = new TemperatureEntry("slow", "device1", 1.0);
+		TemperatureEntry stopping = new TemperatureEntry("stopping", "device1", 2.0);
+		Map<String, List<TemperatureEntry>> entriesByGroup = new HashMap<>();
+		entriesByGroup.put("slow", Collections.singletonList(slow));
+		entriesByGroup.put("stopping", Collections.singletonList(stopping));
+
+		TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+		testKit.spawn(new TemperatureBatchAggregator.Builder()
+				.groupIdToActor(groups)
+				.entriesByGroup(entriesByGroup)
+				.requestId(1L)
+				.requester(batchProbe.getRef())
+				.timeout(Duration.ofMillis(300))
+				.build());
+		slowGroup.expectMessageClass(RecordTemperatureBatch.class);
+		stoppingGroup.expectMessageClass(RecordTemperatureBatch.class);
+		stoppingGroup.stop();
+
+		TemperatureBatchRecorded ack = batchProbe.receiveMessage(Duration.ofSeconds(1));
+		assertEquals(0, ack.recorded);
+		assertTrue(ack.failed.isEmpty());
+		assertEquals(new HashSet<>(Arrays.asList(slow, stopping)), new HashSet<>(ack.pending));
+	}
+
+	@Test
+	public void testRecordTemperatureBatchOnGroup() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+
+		groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+
+		TemperatureEntry otherGroup = new TemperatureEntry("other", "device1", 2.0);
+		TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+		groupActor.tell(new RecordTemperatureBatch(7L,
+				Arrays.asList(new TemperatureEntry("group", "device1", 1.0), otherGroup), batchProbe.getRef()));
+
+		TemperatureBatchRecorded ack = batchProbe.receiveMessage();
+		assertEquals(7L, ack.requestId);
+		assertEquals(1, ack.recorded);
+		assertEquals(Collections.singletonList(otherGroup), ack.failed);
+
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		device1.tell(new Device.ReadTemperature(0L, readProbe.getRef()));
+		assertEquals(Optional.of(1.0), readProbe.receiveMessage().value);
+	}
+
+	@Test
+	public void testAckPoliciesChosenAtRegistration() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+		managerActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef(), null, Device.AckPolicy.NEVER));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		managerActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef(), Device.AckPolicy.ALWAYS));
+		ActorRef<Device.Command> device2 = registeredProbe.receiveMessage().device;
+
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		device1.tell(new Device.RecordTemperature(1L, 20.0, recordProbe.getRef()));
+		device2.tell(new Device.RecordTemperature(2L, 20.0, recordProbe.getRef()));
+		assertEquals(2L, recordProbe.receiveMessage().requestId);
+		recordProbe.expectNoMessage();
+
+		// changing the group default reaches devices that follow it, but not device2 with its own policy
+		managerActor.tell(new RequestTrackDevice("group", "device3", registeredProbe.getRef(), null, Device.AckPolicy.ON_REQUEST));
+		registeredProbe.receiveMessage();
+		device1.tell(new Device.RecordTemperature(3L, 20.0, recordProbe.getRef(), true));
+		assertEquals(3L, recordProbe.receiveMessage().requestId);
+		device2.tell(new Device.RecordTemperature(4L, 20.0, recordProbe.getRef()));
+		assertEquals(4L, recordProbe.receiveMessage().requestId);
+	}
+
+	@Test
+	public void testRouteAllTemperaturesThroughManager() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+		managerActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+		managerActor.tell(new RequestAllTemperatures(0L, "group", allTempProbe.getRef()));
+		RespondAllTemperatures response = allTempProbe.receiveMessage();
+		assertEquals(0L, response.requestId);
+		assertEquals(Collections.singletonMap("device1", TemperatureNotAvailable.INSTANCE), response.temperatures);
+
+		managerActor.tell(new RequestAllTemperatures(1L, "bad name", allTempProbe.getRef()));
+		RespondAllTemperatures badResponse = allTempProbe.receiveMessage();
+		assertEquals(1L, badResponse.requestId);
+		assertEquals(Collections.emptyMap(), badResponse.temperatures);
+	}
+
+	@Test
+	public void testCollectTemperaturesAcrossGroups() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+		managerActor.tell(new RequestTrackDevice("group1", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		managerActor.tell(new RequestTrackDevice("group2", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		device1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		TestProbe<RespondAllGroupTemperatures> allGroupsProbe = testKit.createTestProbe(RespondAllGroupTemperatures.class);
+		managerActor.tell(new RequestAllGroupTemperatures(0L, Collections.emptySet(), allGroupsProbe.getRef()));
+		RespondAllGroupTemperatures all = allGroupsProbe.receiveMessage();
+		assertEquals(0L, all.requestId);
+		Map<String, Map<String, TemperatureReading>> expected = new HashMap<>();
+		expected.put("group1", Collections.singletonMap("device1", new Temperature(1.0)));
+		expected.put("group2", Collections.singletonMap("device1", TemperatureNotAvailable.INSTANCE));
+		assertEquals(expected, all.temperatures);
+		assertEquals(Collections.emptySet(), all.unavailableGroups);
+
+		managerActor.tell(new RequestAllGroupTemperatures(1L,
+				Stream.of("group2", "group3").collect(Collectors.toSet()), allGroupsProbe.getRef()));
+		RespondAllGroupTemperatures selected = allGroupsProbe.receiveMessage();
+		assertEquals(Collections.singleton("group2"), selected.temperatures.keySet());
+		assertEquals(Collections.singleton("group3"), selected.unavailableGroups);
+	}
+
+	@Test
+	public void testPooledManagerSpreadsGroupsAndMergesReplies() {
+		final int GROUP_COUNT = 20;
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.createPooled(4, GroupSettings.DEFAULT));
+
+		List<TemperatureEntry> entries = new ArrayList<>();
+		for (int i = 0; i < GROUP_COUNT; i++) {
+			managerActor.tell(new RequestTrackDevice("group" + i, "device1", registeredProbe.getRef()));
+			registeredProbe.receiveMessage();
+			entries.add(new TemperatureEntry("group" + i, "device1", i));
+		}
+		// registering again reaches the group that already owns the device
+		managerActor.tell(new RequestTrackDevice("group0", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<ReplyDeviceList> deviceListProbe = testKit.createTestProbe(ReplyDeviceList.class);
+		managerActor.tell(new RequestDeviceList(0L, "group0", deviceListProbe.getRef()));
+		assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), deviceListProbe.receiveMessage().ids);
+
+		TemperatureEntry unknownGroup = new TemperatureEntry("groupX", "device1", 5.0);
+		entries.add(unknownGroup);
+		TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+		managerActor.tell(new RecordTemperatureBatch(42L, entries, batchProbe.getRef()));
+		TemperatureBatchRecorded ack = batchProbe.receiveMessage();
+		assertEquals(42L, ack.requestId);
+		assertEquals(GROUP_COUNT, ack.recorded);
+		assertEquals(Collections.singletonList(unknownGroup), ack.failed);
+
+		TestProbe<RespondAllGroupTemperatures> allGroupsProbe = testKit.createTestProbe(RespondAllGroupTemperatures.class);
+		managerActor.tell(new RequestAllGroupTemperatures(1L, Collections.emptySet(), allGroupsProbe.getRef()));
+		RespondAllGroupTemperatures all = allGroupsProbe.receiveMessage();
+		assertEquals(GROUP_COUNT, all.temperatures.size());
+		assertEquals(new Temperature(7.0), all.temperatures.get("group7").get("device1"));
+		assertEquals(Collections.emptySet(), all.unavailableGroups);
+
+		TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+		managerActor.tell(new RequestAllTemperatures(2L, "group3", allTempProbe.getRef()));
+		assertEquals(Collections.singletonMap("device1", new Temperature(3.0)), allTempProbe.receiveMessage().temperatures);
+	}
+
+	@Test
+	public void testIdleDevicesArePassivatedAndRespawned() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group",
+				GroupSettings.DEFAULT.withPassivateIdleDevicesAfter(Duration.ofMillis(200))));
+
+		groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef(), Device.AckPolicy.NEVER));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		device1.tell(new Device.UpdateTemperature(1.0));
+
+		registeredProbe.expectTerminated(device1, Duration.ofSeconds(3));
+
+		// the group still knows passivated devices and answers for them from their last reading
+		TestProbe<ReplyDeviceList> deviceListProbe = testKit.createTestProbe(ReplyDeviceList.class);
+		groupActor.tell(new RequestDeviceList(0L, "group", deviceListProbe.getRef()));
+		assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), deviceListProbe.receiveMessage().ids);
+
+		TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+		groupActor.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+		Map<String, TemperatureReading> expected = new HashMap<>();
+		expected.put("device1", new Temperature(1.0));
+		expected.put("device2", TemperatureNotAvailable.INSTANCE);
+		assertEquals(expected, allTempProbe.receiveMessage().temperatures);
+
+		// registering again respawns the device with its reading and its own ack policy
+		groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> respawned = registeredProbe.receiveMessage().device;
+		assertNotEquals(device1, respawned);
+
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		respawned.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+		assertEquals(Optional.of(1.0), readProbe.receiveMessage().value);
+
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		respawned.tell(new Device.RecordTemperature(3L, 2.0, recordProbe.getRef()));
+		recordProbe.expectNoMessage(Duration.ofMillis(100));
+	}
+
+	@Test
+	public void testBatchRespawnsPassivatedDevice() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group",
+				GroupSettings.DEFAULT.withPassivateIdleDevicesAfter(Duration.ofMillis(200))));
+
+		groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		registeredProbe.expectTerminated(device1, Duration.ofSeconds(3));
+
+		TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+		groupActor.tell(new RecordTemperatureBatch(0L, Arrays.asList(new TemperatureEntry("group", "device1", 3.0)), batchProbe.getRef()));
+		assertEquals(1, batchProbe.receiveMessage().recorded);
+
+		TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+		groupActor.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+		assertEquals(Collections.singletonMap("device1", new Temperature(3.0)), allTempProbe.receiveMessage().temperatures);
+	}
+
+	@Test
+	public void testStaleRefFailsWritesAndStillAnswersReads() {
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("stale-group",
+				GroupSettings.DEFAULT.withPassivateIdleDevicesAfter(Duration.ofMillis(200))));
+
+		groupActor.tell(new RequestTrackDevice("stale-group", "device-1", registeredProbe.getRef(), Device.AckPolicy.NEVER));
+		ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+		device1.tell(new Device.UpdateTemperature(1.0));
+		registeredProbe.expectTerminated(device1, Duration.ofSeconds(3));
+
+		// even a write that wouldn't be acked is told it got lost
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		device1.tell(new Device.RecordTemperature(1L, 2.0, recordProbe.getRef()));
+		Device.TemperatureRecorded failed = recordProbe.receiveMessage();
+		assertEquals(1L, failed.requestId);
+		assertNotNull(failed.error);
+
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		device1.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+		assertEquals(Optional.of(1.0), readProbe.receiveMessage().value);
+
+		// registering again hands out the respawned device, the old ref still reads from it
+		groupActor.tell(new RequestTrackDevice("stale-group", "device-1", registeredProbe.getRef()));
+		ActorRef<Device.Command> respawned = registeredProbe.receiveMessage().device;
+		respawned.tell(new Device.RecordTemperature(3L, 3.0, recordProbe.getRef(), true));
+		recordProbe.expectNoMessage(Duration.ofMillis(100));
+		device1.tell(new Device.ReadTemperature(4L, readProbe.getRef()));
+		assertEquals(Optional.of(3.0), readProbe.receiveMessage().value);
+	}
+
+	@Test
+	public void testBulkTrackDevicesWithLastReadings() {
+		ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+		TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+		managerActor.tell(new RequestTrackDevice("bulk", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> existing = registeredProbe.receiveMessage().device;
+
+		TestProbe<DevicesTracked> trackedProbe = testKit.createTestProbe(DevicesTracked.class);
+		managerActor.tell(new BulkTrackDevices(1L, "bulk", Arrays.asList("device1", "device2", "device3"),
+				Collections.singletonMap("device2", 7.5), trackedProbe.getRef()));
+		DevicesTracked tracked = trackedProbe.receiveMessage();
+		assertEquals(1L, tracked.requestId);
+		assertEquals(Stream.of("device1", "device2", "device3").collect(Collectors.toSet()), tracked.devices.keySet());
+		assertEquals(existing, tracked.devices.get("device1"));
+		assertNull(tracked.error);
+
+		// the seeded reading is stamped with the time the group tracked the device
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		tracked.devices.get("device2").tell(new Device.ReadTemperature(0L, readProbe.getRef(), true));
+		assertTrue(readProbe.receiveMessage().timestamp > 0L);
+
+		TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+		managerActor.tell(new RequestAllTemperatures(2L, "bulk", allTempProbe.getRef()));
+		Map<String, TemperatureReading> expected = new HashMap<>();
+		expected.put("device1", TemperatureNotAvailable.INSTANCE);
+		expected.put("device2", new Temperature(7.5));
+		expected.put("device3", TemperatureNotAvailable.INSTANCE);
+		assertEquals(expected, allTempProbe.receiveMessage().temperatures);
+
+		// bulk registration creates the group too
+		managerActor.tell(new BulkTrackDevices(3L, "bulk2", Collections.singletonList("device1"), trackedProbe.getRef()));
+		assertEquals(Collections.singleton("device1"), trackedProbe.receiveMessage().devices.keySet());
+	}
+
+	@Test
+	public void testBulkTrackDevicesForAnotherGroupIsRejected() {
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+		TestProbe<DevicesTracked> trackedProbe = testKit.createTestProbe(DevicesTracked.class);
+		groupActor.tell(new BulkTrackDevices(1L, "wrongGroup", Collections.singletonList("device1"), trackedProbe.getRef()));
+
+		DevicesTracked tracked = trackedProbe.receiveMessage();
+		assertEquals(1L, tracked.requestId);
+		assertNotNull(tracked.error);
+		assertTrue(tracked.devices.isEmpty());
+	}
 }
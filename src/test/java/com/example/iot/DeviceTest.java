@@ -1,7 +1,11 @@
 package com.example.iot;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.time.Duration;
 import java.util.Optional;
 
 import org.junit.ClassRule;
@@ -49,4 +53,161 @@ public class DeviceTest {
 		assertEquals(4L, response2.requestId);
 		assertEquals(Optional.of(55.0), response2.value);
 	}
+
+	@Test
+	public void testNeverAckPolicyRecordsWithoutReplying() {
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(new Device.Builder()
+				.groupId("group")
+				.deviceId("device")
+				.ackPolicy(Device.AckPolicy.NEVER)
+				.build());
+
+		deviceActor.tell(new Device.RecordTemperature(1L, 24.0, recordProbe.getRef(), true));
+		deviceActor.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+		assertEquals(Optional.of(24.0), readProbe.receiveMessage().value);
+		recordProbe.expectNoMessage();
+	}
+
+	@Test
+	public void testEveryNAckPolicyAcksSampledAndRequestedWrites() {
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(new Device.Builder()
+				.groupId("group")
+				.deviceId("device")
+				.ackPolicy(Device.AckPolicy.everyN(3))
+				.build());
+
+		for (long requestId = 1L; requestId <= 6L; requestId++) {
+			deviceActor.tell(new Device.RecordTemperature(requestId, 20.0, recordProbe.getRef()));
+		}
+		assertEquals(3L, recordProbe.receiveMessage().requestId);
+		assertEquals(6L, recordProbe.receiveMessage().requestId);
+
+		deviceActor.tell(new Device.RecordTemperature(7L, 20.0, recordProbe.getRef(), true));
+		assertEquals(7L, recordProbe.receiveMessage().requestId);
+		recordProbe.expectNoMessage();
+	}
+
+	@Test
+	public void testOnRequestAckPolicyOnlyAcksRequestedWrites() {
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(new Device.Builder()
+				.groupId("group")
+				.deviceId("device")
+				.ackPolicy(Device.AckPolicy.ON_REQUEST)
+				.build());
+
+		deviceActor.tell(new Device.RecordTemperature(1L, 20.0, recordProbe.getRef()));
+		deviceActor.tell(new Device.RecordTemperature(2L, 21.0, recordProbe.getRef(), true));
+		assertEquals(2L, recordProbe.receiveMessage().requestId);
+		recordProbe.expectNoMessage();
+	}
+
+	@Test
+	public void testPrimitiveOnlyReadCarriesUnboxedReading() {
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+
+		deviceActor.tell(new Device.ReadTemperature(1L, readProbe.getRef(), true));
+		Device.RespondTemperature empty = readProbe.receiveMessage();
+		assertFalse(empty.hasValue);
+		assertNull(empty.value);
+
+		long before = System.currentTimeMillis();
+		deviceActor.tell(new Device.RecordTemperature(2L, 24.5, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		deviceActor.tell(new Device.ReadTemperature(3L, readProbe.getRef(), true));
+		Device.RespondTemperature response = readProbe.receiveMessage();
+		assertEquals(3L, response.requestId);
+		assertTrue(response.hasValue);
+		assertEquals(24.5, response.temperature, 0.0);
+		assertTrue(response.timestamp >= before);
+	}
+
+	@Test
+	public void testReplyWithStatsOverRecentReadings() {
+		TestProbe<Device.RespondTemperatureStats> statsProbe = testKit.createTestProbe(Device.RespondTemperatureStats.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(new Device.Builder()
+				.groupId("group")
+				.deviceId("device")
+				.readingBufferCapacity(20)
+				.build());
+
+		deviceActor.tell(new Device.ReadTemperatureStats(1L, Duration.ofMinutes(1), statsProbe.getRef()));
+		Device.RespondTemperatureStats empty = statsProbe.receiveMessage();
+		assertEquals(0, empty.count);
+		assertTrue(Double.isNaN(empty.mean));
+
+		// 25 writes into a buffer of 20 leaves readings 6..25
+		for (int i = 1; i <= 25; i++) {
+			deviceActor.tell(new Device.UpdateTemperature(i));
+		}
+		deviceActor.tell(new Device.ReadTemperatureStats(2L, Duration.ofMinutes(1), statsProbe.getRef()));
+		Device.RespondTemperatureStats stats = statsProbe.receiveMessage();
+		assertEquals(2L, stats.requestId);
+		assertEquals(20, stats.count);
+		assertEquals(6.0, stats.min, 0.0);
+		assertEquals(25.0, stats.max, 0.0);
+		assertEquals(15.5, stats.mean, 1e-9);
+		assertEquals(24.0, stats.p95, 0.0);
+	}
+
+	@Test
+	public void testSubscriptionSkipsChangesWithinDeadband() {
+		TestProbe<Device.TemperatureUpdate> subscriber = testKit.createTestProbe(Device.TemperatureUpdate.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+		deviceActor.tell(new Device.UpdateTemperature(20.0));
+		deviceActor.tell(new Device.SubscribeTemperature(subscriber.getRef(), SubscriptionSettings.DEFAULT.withDeadband(0.5)));
+
+		// the current reading right away
+		Device.TemperatureUpdate current = subscriber.receiveMessage();
+		assertEquals("device", current.deviceId);
+		assertEquals(20.0, current.value, 0.0);
+
+		deviceActor.tell(new Device.UpdateTemperature(20.2));
+		deviceActor.tell(new Device.UpdateTemperature(20.4));
+		deviceActor.tell(new Device.UpdateTemperature(20.6));
+		assertEquals(20.6, subscriber.receiveMessage().value, 0.0);
+
+		deviceActor.tell(new Device.UnsubscribeTemperature(subscriber.getRef()));
+		deviceActor.tell(new Device.UpdateTemperature(30.0));
+		subscriber.expectNoMessage(Duration.ofMillis(100));
+	}
+
+	@Test
+	public void testSubscriptionConflatesChangesWithinMinInterval() {
+		TestProbe<Device.TemperatureUpdate> subscriber = testKit.createTestProbe(Device.TemperatureUpdate.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+		deviceActor.tell(new Device.SubscribeTemperature(subscriber.getRef(),
+				SubscriptionSettings.DEFAULT.withMinInterval(Duration.ofMillis(300))));
+
+		deviceActor.tell(new Device.UpdateTemperature(1.0));
+		assertEquals(1.0, subscriber.receiveMessage().value, 0.0);
+
+		for (int i = 2; i <= 10; i++) {
+			deviceActor.tell(new Device.UpdateTemperature(i));
+		}
+		// only the latest, once the interval is over
+		assertEquals(10.0, subscriber.receiveMessage(Duration.ofSeconds(3)).value, 0.0);
+		subscriber.expectNoMessage(Duration.ofMillis(400));
+	}
+
+	@Test
+	public void testSubscriptionConflatesByDefault() {
+		TestProbe<Device.TemperatureUpdate> subscriber = testKit.createTestProbe(Device.TemperatureUpdate.class);
+		ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+		deviceActor.tell(new Device.SubscribeTemperature(subscriber.getRef(), SubscriptionSettings.DEFAULT));
+
+		deviceActor.tell(new Device.UpdateTemperature(1.0));
+		assertEquals(1.0, subscriber.receiveMessage().value, 0.0);
+		for (int i = 2; i <= 10; i++) {
+			deviceActor.tell(new Device.UpdateTemperature(i));
+		}
+		assertEquals(10.0, subscriber.receiveMessage().value, 0.0);
+		subscriber.expectNoMessage(Duration.ofMillis(200));
+	}
 }
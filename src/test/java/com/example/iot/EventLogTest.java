@@ -0,0 +1,62 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+public class EventLogTest {
+
+	private static ListAppender<ILoggingEvent> capture(Logger logger, ch.qos.logback.classic.Level level) {
+		ListAppender<ILoggingEvent> appender = new ListAppender<>();
+		appender.start();
+		logger.detachAndStopAllAppenders();
+		logger.setAdditive(false);
+		logger.setLevel(level);
+		logger.addAppender(appender);
+		return appender;
+	}
+
+	@Test
+	public void testSamplesAndReportsSuppressedLines() {
+		Logger logger = (Logger) LoggerFactory.getLogger("EventLogTest.sampled");
+		ListAppender<ILoggingEvent> appender = capture(logger, ch.qos.logback.classic.Level.DEBUG);
+		EventLog events = EventLog.create(logger, Level.DEBUG, "write", 3, Duration.ZERO);
+
+		for (int i = 0; i < 7; i++) {
+			if (events.shouldLog()) {
+				events.log("n={}", i);
+			}
+		}
+
+		assertEquals(3, appender.list.size());
+		assertEquals("event=write n=0", appender.list.get(0).getFormattedMessage());
+		assertEquals("event=write n=3 suppressed=2", appender.list.get(1).getFormattedMessage());
+		assertEquals("event=write n=6 suppressed=2", appender.list.get(2).getFormattedMessage());
+	}
+
+	@Test
+	public void testRateLimitsAndSkipsDisabledLevels() {
+		Logger logger = (Logger) LoggerFactory.getLogger("EventLogTest.limited");
+		ListAppender<ILoggingEvent> appender = capture(logger, ch.qos.logback.classic.Level.INFO);
+
+		EventLog limited = EventLog.create(logger, Level.INFO, "write", 1, Duration.ofHours(1));
+		assertTrue(limited.shouldLog());
+		limited.log("n={}", 0);
+		assertFalse(limited.shouldLog());
+
+		EventLog disabled = EventLog.create(logger, Level.DEBUG, "write");
+		assertFalse(disabled.shouldLog());
+		// without shouldLog first nothing is written
+		disabled.log("n={}", 1);
+
+		assertEquals(1, appender.list.size());
+	}
+}
@@ -0,0 +1,64 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import akka.actor.ActorRef;
+import akka.dispatch.Envelope;
+
+public class InstrumentedMailboxTest {
+
+	@Test
+	public void testDeprioritizedMessagesGoLastAndCapacityDrops() {
+		LongAdder depth = new LongAdder();
+		LongAdder dropped = new LongAdder();
+		InstrumentedMailbox.InstrumentedQueue queue = new InstrumentedMailbox.InstrumentedQueue(depth, dropped, null, 3,
+				Collections.singleton(String.class), 0);
+
+		queue.enqueue(ActorRef.noSender(), new Envelope("query", ActorRef.noSender()));
+		queue.enqueue(ActorRef.noSender(), new Envelope(1, ActorRef.noSender()));
+		queue.enqueue(ActorRef.noSender(), new Envelope(2, ActorRef.noSender()));
+		// over capacity
+		queue.enqueue(ActorRef.noSender(), new Envelope(3, ActorRef.noSender()));
+		assertEquals(3, queue.numberOfMessages());
+		assertEquals(3, depth.sum());
+		assertEquals(1, dropped.sum());
+
+		assertEquals(1, queue.dequeue().message());
+		assertEquals(2, queue.dequeue().message());
+		assertEquals("query", queue.dequeue().message());
+		assertNull(queue.dequeue());
+		assertEquals(0, depth.sum());
+		assertFalse(queue.hasMessages());
+	}
+
+	@Test
+	public void testDeprioritizedMessagesDontStarveUnderContinuousLoad() {
+		InstrumentedMailbox.InstrumentedQueue queue = new InstrumentedMailbox.InstrumentedQueue(new LongAdder(), new LongAdder(), null, 0,
+				Collections.singleton(String.class), 3);
+
+		queue.enqueue(ActorRef.noSender(), new Envelope(0, ActorRef.noSender()));
+		queue.enqueue(ActorRef.noSender(), new Envelope("query1", ActorRef.noSender()));
+		queue.enqueue(ActorRef.noSender(), new Envelope("query2", ActorRef.noSender()));
+
+		// a new reading arrives for every one handled, the normal queue never runs empty
+		int handled = 0;
+		int queriesSeen = 0;
+		for (int next = 1; queriesSeen < 2; next++) {
+			queue.enqueue(ActorRef.noSender(), new Envelope(next, ActorRef.noSender()));
+			Object message = queue.dequeue().message();
+			if (message instanceof String) {
+				queriesSeen++;
+				assertEquals("query" + queriesSeen, message);
+				assertEquals(3, handled);
+				handled = 0;
+			} else {
+				handled++;
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+
+public class IotMetricsTest {
+
+	@ClassRule public static final TestKitJunitResource testKit = new TestKitJunitResource(
+			ConfigFactory.parseString("iot.metrics.http.enabled = on\niot.metrics.http.port = 0\n"
+					+ "iot.tiers.device.mailbox = \"iot.mailboxes.device\""));
+
+	@Test
+	public void testCountsMessagesActorsAndQueries() throws Exception {
+		IotMetrics metrics = IotMetrics.get(testKit.system());
+		ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		manager.tell(new DeviceManager.RequestTrackDevice("metrics", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+		manager.tell(new DeviceManager.RequestTrackDevice("metrics", "device2", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<DeviceManager.RespondAllTemperatures> allProbe = testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+		manager.tell(new DeviceManager.RequestAllTemperatures(1L, "metrics", allProbe.getRef()));
+		allProbe.receiveMessage();
+
+		// the query stops right after replying
+		allProbe.awaitAssert(() -> {
+			Map<String, Long> snapshot = metrics.snapshot();
+			assertEquals(Long.valueOf(2), snapshot.get("messages.DeviceGroup.RequestTrackDevice"));
+			assertEquals(Long.valueOf(2), snapshot.get("actors.Device.live"));
+			assertEquals(Long.valueOf(1), snapshot.get("actors.DeviceGroup.live"));
+			assertEquals(Long.valueOf(0), snapshot.get("actors.DeviceGroupQuery.live"));
+			assertEquals(Long.valueOf(2), snapshot.get("messages.DeviceGroupQuery.WrappedRespondTemperature"));
+			assertEquals(Long.valueOf(1), snapshot.get("query.fanout.count"));
+			assertEquals(Long.valueOf(2), snapshot.get("query.fanout.max"));
+			assertEquals(Long.valueOf(0), snapshot.get("mailbox.device.depth"));
+			return null;
+		});
+
+		ObjectName name = new ObjectName("com.example.iot:type=IotMetrics,system=" + ObjectName.quote(testKit.system().name()));
+		assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "actors.Device.live"));
+
+		InetSocketAddress address = metrics.httpAddress();
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + address.getPort() + "/metrics").openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertTrue(read(connection.getInputStream()).contains("actors.Device.live 2\n"));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,114 @@
+package com.example.iot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import akka.actor.testkit.typed.javadsl.SerializationTestKit;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+
+import com.typesafe.config.ConfigFactory;
+
+// everything a client or another node may send has to survive the Jackson CBOR round trip
+public class MessageSerializationTest {
+	// the testkit reads application-test.conf by default, the bindings live in application.conf
+	@ClassRule public static final TestKitJunitResource testKit = new TestKitJunitResource(ConfigFactory.load());
+
+	private final SerializationTestKit serialization = new SerializationTestKit(testKit.system());
+
+	private <T> T roundTrip(T message) {
+		return serialization.verifySerialization(message, false);
+	}
+
+	@Test
+	public void testDeviceMessages() {
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe();
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe();
+		TestProbe<Device.RespondTemperatureStats> statsProbe = testKit.createTestProbe();
+
+		Device.RecordTemperature record = roundTrip(new Device.RecordTemperature(1L, 21.5, recordProbe.getRef(), true));
+		assertEquals(21.5, record.value, 0.0);
+		assertEquals(recordProbe.getRef(), record.replyTo);
+
+		Device.ReadTemperature read = roundTrip(new Device.ReadTemperature(2L, readProbe.getRef(), true));
+		assertEquals(readProbe.getRef(), read.replyTo);
+
+		Device.RespondTemperature boxed = roundTrip(new Device.RespondTemperature(3L, "device", Optional.of(1.0)));
+		assertEquals(Optional.of(1.0), boxed.value);
+		Device.RespondTemperature primitive = roundTrip(new Device.RespondTemperature(4L, "device", true, 2.0, 42L));
+		assertEquals(2.0, primitive.temperature, 0.0);
+		assertEquals(42L, primitive.timestamp);
+
+		assertEquals(5L, roundTrip(new Device.TemperatureRecorded(5L)).requestId);
+		assertEquals(6.0, roundTrip(new Device.UpdateTemperature(6.0)).value, 0.0);
+		assertEquals(Duration.ofMinutes(1), roundTrip(new Device.ReadTemperatureStats(7L, Duration.ofMinutes(1), statsProbe.getRef())).window);
+	}
+
+	@Test
+	public void testDeviceManagerMessages() {
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe();
+		TestProbe<DeviceManager.RespondAllTemperatures> queryProbe = testKit.createTestProbe();
+		TestProbe<DeviceManager.TemperatureBatchRecorded> batchProbe = testKit.createTestProbe();
+		TestProbe<Device.Command> deviceProbe = testKit.createTestProbe();
+
+		DeviceManager.RequestTrackDevice track = roundTrip(new DeviceManager.RequestTrackDevice("group", "device", registeredProbe.getRef(),
+				Device.AckPolicy.everyN(5), Device.AckPolicy.NEVER));
+		assertEquals(Device.AckPolicy.everyN(5), track.ackPolicy);
+		assertEquals(Device.AckPolicy.NEVER, track.groupAckPolicy);
+
+		DeviceManager.RequestAllTemperatures query = roundTrip(new DeviceManager.RequestAllTemperatures(1L, "group", queryProbe.getRef(),
+				QueryOptions.DEFAULT.withTimeout(Duration.ofSeconds(1)).withCoverage(0.9)));
+		assertEquals(Duration.ofSeconds(1), query.options.timeout());
+		assertEquals(0.9, query.options.coverage(), 0.0);
+
+		Map<String, DeviceManager.TemperatureReading> temperatures = new HashMap<>();
+		temperatures.put("device1", new DeviceManager.Temperature(1.0));
+		temperatures.put("device2", DeviceManager.TemperatureNotAvailable.INSTANCE);
+		temperatures.put("device3", DeviceManager.DeviceNotAvailable.INSTANCE);
+		temperatures.put("device4", DeviceManager.DeviceTimedOut.INSTANCE);
+		assertEquals(temperatures, roundTrip(new DeviceManager.RespondAllTemperatures(2L, temperatures, false)).temperatures);
+
+		// the compact result of a query goes over the wire as a plain map
+		QueriedDevices devices = new QueriedDevices.Builder(new String[] {"device1", "device2"}, 2)
+				.add(0, deviceProbe.getRef())
+				.add(1, deviceProbe.getRef())
+				.build();
+		TemperatureReadings readings = new TemperatureReadings(devices, new byte[] {TemperatureReadings.TEMPERATURE, 0, 0},
+				new double[] {1.0, Double.NaN, Double.NaN}, Collections.singletonMap("device3", DeviceManager.DeviceNotAvailable.INSTANCE));
+		Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+		expected.put("device1", new DeviceManager.Temperature(1.0));
+		expected.put("device2", DeviceManager.DeviceTimedOut.INSTANCE);
+		expected.put("device3", DeviceManager.DeviceNotAvailable.INSTANCE);
+		assertEquals(expected, readings);
+		assertEquals(expected, roundTrip(new DeviceManager.RespondAllTemperatures(3L, readings)).temperatures);
+
+		DeviceManager.TemperatureEntry entry = new DeviceManager.TemperatureEntry("group", "device", 3.0);
+		DeviceManager.RecordTemperatureBatch batch =
+				roundTrip(new DeviceManager.RecordTemperatureBatch(3L, Arrays.asList(entry), batchProbe.getRef()));
+		assertEquals("device", batch.entries.get(0).deviceId);
+		assertEquals(1, roundTrip(new DeviceManager.TemperatureBatchRecorded(4L, 1, Arrays.asList(entry))).failed.size());
+		assertEquals(1, roundTrip(new DeviceManager.TemperatureBatchRecorded(5L, 0, Collections.emptyList(), Arrays.asList(entry))).pending.size());
+
+		assertEquals(Collections.singleton("device"), roundTrip(new DeviceManager.ReplyDeviceList(5L, Collections.singleton("device"))).ids);
+		assertEquals(deviceProbe.getRef(), roundTrip(new DeviceManager.DeviceRegistered(deviceProbe.getRef())).device);
+
+		TestProbe<Device.TemperatureUpdate> subscriber = testKit.createTestProbe();
+		DeviceManager.SubscribeTemperatures subscribe = roundTrip(new DeviceManager.SubscribeTemperatures("group", null, subscriber.getRef(),
+				SubscriptionSettings.DEFAULT.withDeadband(0.5).withMinInterval(Duration.ofSeconds(1))));
+		assertNull(subscribe.deviceId);
+		assertEquals(subscriber.getRef(), subscribe.subscriber);
+		assertEquals(0.5, subscribe.settings.deadband(), 0.0);
+		assertEquals(Duration.ofSeconds(1), subscribe.settings.minInterval());
+		assertEquals(42L, roundTrip(new Device.TemperatureUpdate("group", "device", 1.0, 42L)).timestamp);
+	}
+}
@@ -0,0 +1,163 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.persistence.testkit.PersistenceTestKitSnapshotPlugin;
+import akka.persistence.testkit.javadsl.EventSourcedBehaviorTestKit;
+
+public class PersistentDeviceTest {
+
+	@ClassRule public static final TestKitJunitResource testKit = new TestKitJunitResource(
+			EventSourcedBehaviorTestKit.config()
+				.withFallback(PersistenceTestKitSnapshotPlugin.config())
+				.withFallback(ConfigFactory.load()));
+
+	@Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+	private EventSourcedBehaviorTestKit<Device.Command, PersistentDevice.Event, PersistentDevice.State> deviceKit;
+
+	@Before
+	public void setUp() {
+		deviceKit = EventSourcedBehaviorTestKit.create(testKit.system(),
+				new Device.Builder().groupId("group").deviceId("device").persistent(true).build());
+		deviceKit.clear();
+	}
+
+	@Test
+	public void testRecordIsJournaledBeforeTheAck() {
+		EventSourcedBehaviorTestKit.CommandResultWithReply<Device.Command, PersistentDevice.Event, PersistentDevice.State, Device.TemperatureRecorded>
+				result = deviceKit.runCommand(replyTo -> new Device.RecordTemperature(1L, 24.0, replyTo));
+
+		assertEquals(1L, result.reply().requestId);
+		assertEquals(24.0, result.eventOfType(PersistentDevice.TemperatureChanged.class).value, 0.0);
+		assertTrue(result.state().hasReading);
+		assertEquals(24.0, result.state().temperature, 0.0);
+	}
+
+	@Test
+	public void testRecoversLastReadingAfterRestart() {
+		deviceKit.<Device.TemperatureRecorded>runCommand(replyTo -> new Device.RecordTemperature(1L, 24.0, replyTo));
+		deviceKit.runCommand(new Device.UpdateTemperature(55.0));
+		long timestamp = deviceKit.getState().timestamp;
+
+		PersistentDevice.State recovered = deviceKit.restart().state();
+		assertTrue(recovered.hasReading);
+		assertEquals(55.0, recovered.temperature, 0.0);
+		assertEquals(timestamp, recovered.timestamp);
+	}
+
+	@Test
+	public void testRecoversFromSnapshot() {
+		int readings = PersistentDevice.SNAPSHOT_EVERY + 5;
+		for (int i = 1; i <= readings; i++) {
+			deviceKit.runCommand(new Device.UpdateTemperature(i));
+		}
+
+		assertEquals(readings, deviceKit.restart().state().temperature, 0.0);
+	}
+
+	@Test
+	public void testGroupRespawnsPersistentDevicesWarm() {
+		GroupSettings settings = GroupSettings.DEFAULT.withPersistentDevices(true);
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("warm-group", settings));
+		groupActor.tell(new DeviceManager.RequestTrackDevice("warm-group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage().device.tell(new Device.RecordTemperature(1L, 5.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		testKit.stop(groupActor);
+
+		ActorRef<DeviceGroup.Command> restartedGroup = testKit.spawn(DeviceGroup.create("warm-group", settings));
+		restartedGroup.tell(new DeviceManager.RequestTrackDevice("warm-group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+
+		TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+		device.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+		assertEquals(Optional.of(5.0), readProbe.receiveMessage().value);
+	}
+
+	@Test
+	public void testStartsFromLastReadingOnlyWithoutRecoveredState() {
+		EventSourcedBehaviorTestKit<Device.Command, PersistentDevice.Event, PersistentDevice.State> seededKit =
+				EventSourcedBehaviorTestKit.create(testKit.system(),
+						new Device.Builder().groupId("group").deviceId("seeded").lastReading(7.0, 1000L).persistent(true).build());
+		seededKit.clear();
+		seededKit.restart();
+
+		PersistentDevice.State seeded = seededKit.getState();
+		assertTrue(seeded.hasReading);
+		assertEquals(7.0, seeded.temperature, 0.0);
+		assertEquals(1000L, seeded.timestamp);
+
+		seededKit.runCommand(new Device.UpdateTemperature(8.0));
+		assertEquals(8.0, seededKit.restart().state().temperature, 0.0);
+	}
+
+	@Test
+	public void testRecoveredReadingIsMaterializedInTheGroup() {
+		GroupSettings settings = GroupSettings.DEFAULT.withPersistentDevices(true).withMaterializedReadings(true);
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("materialized-group", settings));
+		groupActor.tell(new DeviceManager.RequestTrackDevice("materialized-group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage().device.tell(new Device.RecordTemperature(1L, 6.0, recordProbe.getRef()));
+		recordProbe.receiveMessage();
+
+		testKit.stop(groupActor);
+
+		ActorRef<DeviceGroup.Command> restartedGroup = testKit.spawn(DeviceGroup.create("materialized-group", settings));
+		restartedGroup.tell(new DeviceManager.RequestTrackDevice("materialized-group", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage();
+
+		TestProbe<DeviceManager.RespondAllTemperatures> allProbe = testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+		allProbe.awaitAssert(() -> {
+			restartedGroup.tell(new DeviceManager.RequestAllTemperatures(2L, "materialized-group", allProbe.getRef()));
+			assertEquals(new DeviceManager.Temperature(6.0), allProbe.receiveMessage().temperatures.get("device1"));
+			return null;
+		});
+	}
+
+	@Test
+	public void testReadingsGoToTheGroupJournal() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		GroupSettings settings = GroupSettings.DEFAULT.withPersistentDevices(true).withJournal(JournalSettings.create(directory));
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("journaled-group", settings));
+		groupActor.tell(new DeviceManager.RequestTrackDevice("journaled-group", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+		device.tell(new Device.RecordTemperature(1L, 3.0, recordProbe.getRef()));
+		device.tell(new Device.RecordTemperature(2L, 4.0, recordProbe.getRef()));
+		// acks wait for the journal flush with the default durability
+		assertNull(recordProbe.receiveMessage().error);
+		assertNull(recordProbe.receiveMessage().error);
+
+		List<Double> journaled = new ArrayList<>();
+		for (Path segment : ReadingSegmentWriter.segments(directory, "journaled-group")) {
+			ReadingSegmentWriter.read(segment, (deviceId, value, timestamp) -> journaled.add(value));
+		}
+		assertEquals(Arrays.asList(3.0, 4.0), journaled);
+	}
+}
@@ -0,0 +1,40 @@
+package com.example.iot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ReadingBufferTest {
+
+	@Test
+	public void testKeepsOnlyTheMostRecentReadings() {
+		ReadingBuffer buffer = new ReadingBuffer(3);
+		for (int i = 1; i <= 5; i++) {
+			buffer.add(i, i * 10L);
+		}
+		assertEquals(3, buffer.size());
+
+		double[] values = new double[3];
+		int count = buffer.valuesSince(0L, values);
+		Arrays.sort(values, 0, count);
+		assertArrayEquals(new double[] {3.0, 4.0, 5.0}, values, 0.0);
+	}
+
+	@Test
+	public void testSelectsReadingsInsideTheWindow() {
+		ReadingBuffer buffer = new ReadingBuffer(4);
+		buffer.add(1.0, 100L);
+		buffer.add(2.0, 200L);
+		buffer.add(3.0, 300L);
+
+		double[] values = new double[4];
+		int count = buffer.valuesSince(200L, values);
+		Arrays.sort(values, 0, count);
+		assertEquals(2, count);
+		assertEquals(2.0, values[0], 0.0);
+		assertEquals(3.0, values[1], 0.0);
+	}
+}
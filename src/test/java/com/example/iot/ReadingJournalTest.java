@@ -0,0 +1,168 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+
+public class ReadingJournalTest {
+
+	@ClassRule public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+	@Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<String> readAll(Path directory, String groupId) throws IOException {
+		List<String> readings = new ArrayList<>();
+		for (Path segment : ReadingSegmentWriter.segments(directory, groupId)) {
+			ReadingSegmentWriter.read(segment, (deviceId, value, timestamp) -> readings.add(deviceId + "=" + value));
+		}
+		return readings;
+	}
+
+	@Test
+	public void testSegmentWriterRollsOverAndReadsBack() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		// room for two readings of "device1" per segment
+		try (ReadingSegmentWriter writer = new ReadingSegmentWriter(directory, "group", 2 * (8 + 7 + 16) + 4)) {
+			for (int i = 0; i < 5; i++) {
+				writer.append("device1", i, i);
+			}
+		}
+
+		assertEquals(3, ReadingSegmentWriter.segments(directory, "group").size());
+		assertEquals(Arrays.asList("device1=0.0", "device1=1.0", "device1=2.0", "device1=3.0", "device1=4.0"), readAll(directory, "group"));
+
+		// a new writer continues the last segment
+		try (ReadingSegmentWriter writer = new ReadingSegmentWriter(directory, "group", 2 * (8 + 7 + 16) + 4)) {
+			writer.append("device1", 5, 5);
+		}
+		assertEquals(3, ReadingSegmentWriter.segments(directory, "group").size());
+		assertEquals("device1=5.0", readAll(directory, "group").get(5));
+
+		// but not one written with another segment size
+		try (ReadingSegmentWriter writer = new ReadingSegmentWriter(directory, "group", 1024)) {
+			writer.append("device2", 6, 6);
+		}
+		assertEquals(4, ReadingSegmentWriter.segments(directory, "group").size());
+		assertEquals("device2=6.0", readAll(directory, "group").get(6));
+	}
+
+	@Test
+	public void testReadingStopsAtTheFirstInvalidRecord() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		try (ReadingSegmentWriter writer = new ReadingSegmentWriter(directory, "torn", 1024)) {
+			for (int i = 0; i < 3; i++) {
+				writer.append("device1", i, i);
+			}
+		}
+
+		// flip a bit in the value of the second record, as a torn write would leave it
+		Path segment = ReadingSegmentWriter.segments(directory, "torn").get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer value = ByteBuffer.allocate(1);
+			int position = (8 + 7 + 16) + 8 + 7;
+			channel.read(value, position);
+			value.put(0, (byte) (value.get(0) ^ 1)).rewind();
+			channel.write(value, position);
+		}
+		assertEquals(Arrays.asList("device1=0.0"), readAll(directory, "torn"));
+
+		// a new writer continues after the last valid record
+		try (ReadingSegmentWriter writer = new ReadingSegmentWriter(directory, "torn", 1024)) {
+			writer.append("device1", 3, 3);
+		}
+		assertEquals(Arrays.asList("device1=0.0", "device1=3.0"), readAll(directory, "torn"));
+	}
+
+	@Test
+	public void testGroupIdIsEscapedInFileNames() {
+		assertEquals("group-1_a.b", ReadingSegmentWriter.prefixFor("group-1_a.b"));
+		assertEquals("..%2F..%2Fetc%2A", ReadingSegmentWriter.prefixFor("../../etc*"));
+		assertEquals("%C3%A9", ReadingSegmentWriter.prefixFor("\u00e9"));
+	}
+
+	@Test
+	public void testAcksWaitForTheBatchFlush() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("flushed", GroupSettings.DEFAULT
+				.withJournal(JournalSettings.create(directory).withBatching(3, Duration.ofMinutes(1)))));
+
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		groupActor.tell(new DeviceManager.RequestTrackDevice("flushed", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		device.tell(new Device.RecordTemperature(1L, 1.0, recordProbe.getRef()));
+		device.tell(new Device.RecordTemperature(2L, 2.0, recordProbe.getRef()));
+		recordProbe.expectNoMessage(Duration.ofMillis(200));
+
+		TestProbe<DeviceManager.TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(DeviceManager.TemperatureBatchRecorded.class);
+		groupActor.tell(new DeviceManager.RecordTemperatureBatch(3L,
+				Arrays.asList(new DeviceManager.TemperatureEntry("flushed", "device1", 3.0)), batchProbe.getRef()));
+
+		// the third reading fills the batch, one flush releases all three acks
+		assertEquals(1L, recordProbe.receiveMessage().requestId);
+		assertEquals(2L, recordProbe.receiveMessage().requestId);
+		assertEquals(1, batchProbe.receiveMessage().recorded);
+		assertEquals(Arrays.asList("device1=1.0", "device1=2.0", "device1=3.0"), readAll(directory, "flushed"));
+	}
+
+	@Test
+	public void testWriteBehindAcksRightAway() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("behind", GroupSettings.DEFAULT
+				.withJournal(JournalSettings.create(directory)
+						.withBatching(1000, Duration.ofMinutes(1))
+						.withDurability(JournalSettings.Durability.WRITE_BEHIND))));
+
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		groupActor.tell(new DeviceManager.RequestTrackDevice("behind", "device1", registeredProbe.getRef()));
+		ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		device.tell(new Device.RecordTemperature(1L, 1.0, recordProbe.getRef()));
+		assertEquals(1L, recordProbe.receiveMessage().requestId);
+
+		// the ack didn't wait for the journal, Stop still has it write what was acked
+		TestProbe<Void> stopProbe = testKit.createTestProbe();
+		groupActor.tell(DeviceGroup.Stop.INSTANCE);
+		stopProbe.expectTerminated(groupActor);
+		assertEquals(Arrays.asList("device1=1.0"), readAll(directory, "behind"));
+	}
+
+	@Test
+	public void testFailedWriteFailsAcksAndStopsTheGroup() {
+		Path directory = folder.getRoot().toPath();
+		ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("failing", GroupSettings.DEFAULT
+				.withJournal(JournalSettings.create(directory).withSegmentSize(64))));
+
+		TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+		String deviceId = "a-device-id-that-is-too-long-to-fit-in-a-segment-of-64-bytes";
+		groupActor.tell(new DeviceManager.RequestTrackDevice("failing", deviceId, registeredProbe.getRef()));
+		ActorRef<Device.Command> device = registeredProbe.receiveMessage().device;
+
+		TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+		device.tell(new Device.RecordTemperature(1L, 1.0, recordProbe.getRef()));
+		Device.TemperatureRecorded ack = recordProbe.receiveMessage();
+		assertEquals(1L, ack.requestId);
+		assertNotNull(ack.error);
+
+		recordProbe.expectTerminated(groupActor);
+	}
+}
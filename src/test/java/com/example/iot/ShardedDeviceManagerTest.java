@@ -0,0 +1,132 @@
+package com.example.iot;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.example.iot.DeviceManager.*;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.testkit.typed.javadsl.ActorTestKit;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.cluster.MemberStatus;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+
+// two cluster nodes in one JVM, groups registered through one node are reachable through the other
+public class ShardedDeviceManagerTest {
+	private static final int GROUP_COUNT = 10;
+
+	private static final Config CLUSTER_CONFIG = ConfigFactory.parseString(
+			"akka.actor.provider = cluster\n"
+			+ "akka.remote.artery.canonical.hostname = 127.0.0.1\n"
+			+ "akka.remote.artery.canonical.port = 0\n"
+			+ "akka.cluster.jmx.multi-mbeans-in-same-jvm = on\n")
+			.withFallback(ConfigFactory.load());
+
+	private static ActorTestKit node1;
+	private static ActorTestKit node2;
+
+	@BeforeClass
+	public static void formCluster() {
+		// nodes only join a cluster of an actor system with the same name
+		node1 = ActorTestKit.create("ShardedDeviceManagerTest", CLUSTER_CONFIG);
+		node2 = ActorTestKit.create("ShardedDeviceManagerTest", CLUSTER_CONFIG);
+
+		Cluster cluster1 = Cluster.get(node1.system());
+		Cluster cluster2 = Cluster.get(node2.system());
+		cluster1.manager().tell(Join.create(cluster1.selfMember().address()));
+		cluster2.manager().tell(Join.create(cluster1.selfMember().address()));
+
+		node1.createTestProbe().awaitAssert(Duration.ofSeconds(15), () -> {
+			assertEquals(MemberStatus.up(), cluster1.selfMember().status());
+			assertEquals(MemberStatus.up(), cluster2.selfMember().status());
+			return null;
+		});
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		node2.shutdownTestKit();
+		node1.shutdownTestKit();
+	}
+
+	@Test
+	public void testGroupsRegisteredOnOneNodeAreQueryableFromTheOther() {
+		ActorRef<DeviceManager.Command> manager1 = node1.spawn(DeviceManager.createSharded(GroupSettings.DEFAULT));
+		ActorRef<DeviceManager.Command> manager2 = node2.spawn(DeviceManager.createSharded(GroupSettings.DEFAULT));
+
+		TestProbe<DeviceRegistered> registeredProbe = node1.createTestProbe(DeviceRegistered.class);
+		TestProbe<Device.TemperatureRecorded> recordProbe = node1.createTestProbe(Device.TemperatureRecorded.class);
+		for (int i = 0; i < GROUP_COUNT; i++) {
+			manager1.tell(new RequestTrackDevice("group" + i, "device" + i, registeredProbe.getRef()));
+			// the first registration also allocates the shard, which takes longer than a plain reply
+			ActorRef<Device.Command> device = registeredProbe.receiveMessage(Duration.ofSeconds(10)).device;
+			device.tell(new Device.RecordTemperature(i, i, recordProbe.getRef()));
+			recordProbe.receiveMessage();
+		}
+
+		TestProbe<ReplyDeviceList> listProbe = node2.createTestProbe(ReplyDeviceList.class);
+		TestProbe<RespondAllTemperatures> allTempProbe = node2.createTestProbe(RespondAllTemperatures.class);
+		for (int i = 0; i < GROUP_COUNT; i++) {
+			manager2.tell(new RequestDeviceList(i, "group" + i, listProbe.getRef()));
+			ReplyDeviceList reply = listProbe.receiveMessage(Duration.ofSeconds(10));
+			assertEquals(i, reply.requestId);
+			assertEquals(setOf("device" + i), reply.ids);
+
+			manager2.tell(new RequestAllTemperatures(i, "group" + i, allTempProbe.getRef()));
+			Map<String, TemperatureReading> expected = new HashMap<>();
+			expected.put("device" + i, new Temperature(i));
+			assertEquals(expected, allTempProbe.receiveMessage(Duration.ofSeconds(10)).temperatures);
+		}
+	}
+
+	@Test
+	public void testUnknownGroupsAreReportedAndNotStarted() {
+		ActorRef<DeviceManager.Command> manager1 = node1.spawn(DeviceManager.createSharded(GroupSettings.DEFAULT));
+		ActorRef<DeviceManager.Command> manager2 = node2.spawn(DeviceManager.createSharded(GroupSettings.DEFAULT));
+
+		TestProbe<DeviceRegistered> registeredProbe = node1.createTestProbe(DeviceRegistered.class);
+		manager1.tell(new RequestTrackDevice("known", "device1", registeredProbe.getRef()));
+		registeredProbe.receiveMessage(Duration.ofSeconds(10));
+
+		// the group tracked through the other node is found, the mistyped one is reported like in local mode
+		TestProbe<RespondAllGroupTemperatures> allGroupsProbe = node2.createTestProbe(RespondAllGroupTemperatures.class);
+		manager2.tell(new RequestAllGroupTemperatures(1L, setOf("known", "typo"), allGroupsProbe.getRef()));
+		RespondAllGroupTemperatures response = allGroupsProbe.receiveMessage(Duration.ofSeconds(10));
+		assertEquals(setOf("known"), response.temperatures.keySet());
+		assertEquals(setOf("typo"), response.unavailableGroups);
+
+		TestProbe<ReplyDeviceList> listProbe = node2.createTestProbe(ReplyDeviceList.class);
+		manager2.tell(new RequestDeviceList(2L, "typo", listProbe.getRef()));
+		assertEquals(setOf(), listProbe.receiveMessage(Duration.ofSeconds(10)).ids);
+
+		// "all groups" covers what was tracked through any node, and asking didn't create the unknown group
+		allGroupsProbe.awaitAssert(Duration.ofSeconds(10), () -> {
+			manager2.tell(new RequestAllGroupTemperatures(3L, setOf(), allGroupsProbe.getRef()));
+			Set<String> groups = allGroupsProbe.receiveMessage(Duration.ofSeconds(10)).temperatures.keySet();
+			assertTrue(groups.contains("known"));
+			assertFalse(groups.contains("typo"));
+			return null;
+		});
+	}
+
+	private static Set<String> setOf(String... ids) {
+		Set<String> set = new HashSet<>();
+		for (String id : ids) {
+			set.add(id);
+		}
+		return set;
+	}
+}